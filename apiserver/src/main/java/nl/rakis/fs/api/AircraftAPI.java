@@ -1,5 +1,5 @@
 /*
- * Copyright 2016, 2017 Bert Laverman
+ * Copyright 2017 Bert Laverman
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,8 +17,11 @@
 package nl.rakis.fs.api;
 
 import nl.rakis.fs.api.rules.AircraftRules;
+import nl.rakis.fs.api.state.AircraftRegistry;
+import nl.rakis.fs.api.state.SpatialIndex;
+import nl.rakis.fs.api.udp.UdpIngest;
 import nl.rakis.fs.auth.Token;
-import nl.rakis.fs.auth.TokenVerifier;
+import nl.rakis.fs.auth.TokenPrincipal;
 import nl.rakis.fs.info.AircraftInfo;
 import nl.rakis.fs.info.JsonFields;
 import org.apache.logging.log4j.LogManager;
@@ -27,12 +30,22 @@ import org.apache.logging.log4j.Logger;
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
-import javax.json.JsonObject;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * The aircraft resource. All methods are asynchronous: the work runs on the "aircraft" BoundedExecutor, which
+ * answers "503 Service Unavailable" when it is saturated.
+ */
 @Path("aircraft")
 @RequestScoped
 public class AircraftAPI
@@ -41,7 +54,16 @@ public class AircraftAPI
     private static final Logger log = LogManager.getLogger(AircraftAPI.class);
 
     @Inject
-    private TokenVerifier verifier;
+    private AircraftRegistry registry;
+
+    @Inject
+    private SpatialIndex spatialIndex;
+
+    @Inject
+    private UdpIngest udpIngest;
+
+    @Inject
+    private ApiExecutors executors;
 
     private AircraftRules rules;
 
@@ -51,60 +73,257 @@ public class AircraftAPI
         rules = new AircraftRules();
     }
 
+    /**
+     * List the aircraft in the caller's session, optionally only those near a point or in a box.
+     *
+     * With "callsign", a comma separated list of callsigns, only those aircraft are returned, in that order.
+     * Unknown callsigns are left out.
+     *
+     * The point is given with "lat" and "lon", or as the callsign of an aircraft with "near". Around it, "radius"
+     * (in nautical miles) selects all aircraft within that distance, and "nearest" the closest ones, both sorted by
+     * distance. Alternatively "minLat", "minLon", "maxLat" and "maxLon" select the aircraft in a box.
+     *
+     * The response has a weak ETag built from the callsigns and versions of the aircraft, and "If-None-Match" is
+     * answered with "304 Not Modified".
+     */
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    public List<AircraftInfo> getAircraftList(@HeaderParam("authorization") String authHdr)
+    @Produces({MediaType.APPLICATION_JSON, MediaType.APPLICATION_OCTET_STREAM})
+    public void getAircraftList(@QueryParam("callsign")       String callsigns,
+                                @QueryParam("near")           String near,
+                                @QueryParam("lat")            Double lat,
+                                @QueryParam("lon")            Double lon,
+                                @QueryParam("radius")         Double radius,
+                                @QueryParam("nearest")        Integer nearest,
+                                @QueryParam("minLat")         Double minLat,
+                                @QueryParam("minLon")         Double minLon,
+                                @QueryParam("maxLat")         Double maxLat,
+                                @QueryParam("maxLon")         Double maxLon,
+                                @HeaderParam("If-None-Match") String ifNoneMatch,
+                                @Context                      SecurityContext security,
+                                @Suspended                    AsyncResponse response)
     {
-        List<AircraftInfo> result = new ArrayList<>();
+        final Token token = TokenPrincipal.of(security).getToken();
+
+        executors.getAircraft().run(response, () -> {
+            List<AircraftInfo> result;
+            if (callsigns != null) {
+                result = new ArrayList<>();
+                for (String callsign: callsigns.split(",")) {
+                    final AircraftInfo aircraft = registry.get(token.getSession(), callsign.trim());
+                    if (aircraft != null) {
+                        result.add(aircraft);
+                    }
+                }
+            }
+            else if ((minLat != null) || (minLon != null) || (maxLat != null) || (maxLon != null)) {
+                if ((minLat == null) || (minLon == null) || (maxLat == null) || (maxLon == null)) {
+                    throw new BadRequestException("A box needs \"minLat\", \"minLon\", \"maxLat\" and \"maxLon\"");
+                }
+                result = spatialIndex.box(token.getSession(), minLat, minLon, maxLat, maxLon);
+            }
+            else if ((radius != null) || (nearest != null)) {
+                Double centerLat = lat;
+                Double centerLon = lon;
+                if (near != null) {
+                    final AircraftInfo center = registry.get(token.getSession(), near);
+                    if ((center == null) || (center.getLocation() == null) || !center.getLocation().hasPosition()) {
+                        throw new NotFoundException("Unknown location for aircraft \"" + near + "\"");
+                    }
+                    centerLat = center.getLocation().getLatitude();
+                    centerLon = center.getLocation().getLongitude();
+                }
+                else if ((centerLat == null) || (centerLon == null)) {
+                    throw new BadRequestException("Need \"near\" or \"lat\" and \"lon\"");
+                }
+
+                List<SpatialIndex.Hit> hits = (radius != null)
+                        ? spatialIndex.radius(token.getSession(), centerLat, centerLon, radius)
+                        : spatialIndex.nearest(token.getSession(), centerLat, centerLon, nearest);
+                if ((radius != null) && (nearest != null) && (hits.size() > nearest)) {
+                    hits = hits.subList(0, Math.max(0, nearest));
+                }
+                result = new ArrayList<>(hits.size());
+                for (SpatialIndex.Hit hit: hits) {
+                    result.add(hit.getAircraft());
+                }
+            }
+            else {
+                result = registry.list(token.getSession());
+            }
 
-        result.add(getAircraft("PH-BLA", authHdr));
+            final EntityTag tag = ETags.ofList(result, AircraftInfo::getAtcId, AircraftInfo::getVersion);
+            if (ETags.notModified(ifNoneMatch, tag)) {
+                return Response.notModified(tag).build();
+            }
 
-        return result;
+            for (AircraftInfo aircraft: result) {
+                rules.cleanRecord(aircraft, token);
+            }
+            return Response.ok(new GenericEntity<List<AircraftInfo>>(result) {}).tag(tag).build();
+        });
     }
 
+    /**
+     * Return one aircraft, with its version as ETag. "If-None-Match" is answered with "304 Not Modified".
+     */
     @GET
     @Path("{callsign}")
-    @Produces(MediaType.APPLICATION_JSON)
-    public AircraftInfo getAircraft(@PathParam("callsign")        String callsign,
-                                    @HeaderParam("authorization") String authHdr)
+    @Produces({MediaType.APPLICATION_JSON, MediaType.APPLICATION_OCTET_STREAM})
+    public void getAircraft(@PathParam("callsign")        String callsign,
+                            @HeaderParam("If-None-Match") String ifNoneMatch,
+                            @Context                      SecurityContext security,
+                            @Suspended                    AsyncResponse response)
     {
-        Token token = verifier.decodeToken(authHdr);
+        final Token token = TokenPrincipal.of(security).getToken();
+
+        executors.getAircraft().run(response, () -> {
+            AircraftInfo result = registry.get(token.getSession(), callsign);
+            if (result == null) {
+                throw new NotFoundException("Unknown aircraft \"" + callsign + "\"");
+            }
 
-        AircraftInfo result = new AircraftInfo(callsign);
+            final EntityTag tag = ETags.of(result.getVersion());
+            if (ETags.notModified(ifNoneMatch, tag)) {
+                return Response.notModified(tag).build();
+            }
 
-        rules.cleanRecord(result, token);
+            rules.cleanRecord(result, token);
 
-        return result;
+            return Response.ok(result).tag(tag).build();
+        });
     }
 
+    /**
+     * Update an aircraft. With "If-Match", the update is only applied if the aircraft still has that version,
+     * and "412 Precondition Failed" is returned otherwise. The check is done atomically with the update.
+     */
     @PUT
     @Path("{callsign}")
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, MediaType.APPLICATION_OCTET_STREAM})
+    @Produces({MediaType.APPLICATION_JSON, MediaType.APPLICATION_OCTET_STREAM})
+    public void updateAircraft(@PathParam("callsign")        String callsign,
+                                                             AircraftInfo aircraft,
+                               @HeaderParam("If-Match")      String ifMatch,
+                               @Context                      SecurityContext security,
+                               @Suspended                    AsyncResponse response)
+    {
+        final Token token = TokenPrincipal.of(security).getToken();
+
+        executors.getAircraft().run(response, () -> {
+            AircraftInfo result = registry.update(token.getSession(), callsign, (AircraftInfo rec) -> {
+                if (!ETags.matches(ifMatch, rec.getVersion())) {
+                    throw new ClientErrorException("Aircraft was changed", Response.Status.PRECONDITION_FAILED);
+                }
+                rules.checkUpdate(rec, aircraft, token);
+                rec.updateFrom(aircraft);
+            });
+            if (result == null) {
+                throw new NotFoundException("Unknown aircraft \"" + callsign + "\"");
+            }
+
+            rules.cleanRecord(result, token);
+
+            return Response.ok(result).tag(ETags.of(result.getVersion())).build();
+        });
+    }
+
+    /**
+     * Apply updates to several aircraft, with one token check. All updates are checked before any is applied, so
+     * a bad update leaves all aircraft unchanged. Each update is checked again under the aircraft's lock as it is
+     * applied, because the aircraft may have been removed and created again by someone else in between. An
+     * aircraft that disappears in between is skipped. The response holds the updated aircraft.
+     */
+    @POST
+    @Path("batch")
+    @Consumes({MediaType.APPLICATION_JSON, MediaType.APPLICATION_OCTET_STREAM})
+    @Produces({MediaType.APPLICATION_JSON, MediaType.APPLICATION_OCTET_STREAM})
+    public void updateAircraftBatch(                              List<AircraftInfo> updates,
+                                    @Context                      SecurityContext security,
+                                    @Suspended                    AsyncResponse response)
+    {
+        final Token token = TokenPrincipal.of(security).getToken();
+
+        executors.getAircraft().run(response, () -> {
+            if ((updates == null) || updates.isEmpty()) {
+                throw new BadRequestException("No updates");
+            }
+            for (AircraftInfo update: updates) {
+                if (update == null) {
+                    throw new BadRequestException("Empty update");
+                }
+                rules.required(JsonFields.FIELD_ATC_ID, update.getAtcId());
+
+                AircraftInfo current = registry.get(token.getSession(), update.getAtcId());
+                if (current == null) {
+                    throw new NotFoundException("Unknown aircraft \"" + update.getAtcId() + "\"");
+                }
+                rules.checkUpdate(current, update, token);
+            }
+
+            List<AircraftInfo> result = new ArrayList<>(updates.size());
+            for (AircraftInfo update: updates) {
+                AircraftInfo updated = registry.update(token.getSession(), update.getAtcId(), (AircraftInfo rec) -> {
+                    rules.checkUpdate(rec, update, token);
+                    rec.updateFrom(update);
+                });
+                if (updated != null) {
+                    rules.cleanRecord(updated, token);
+                    result.add(updated);
+                }
+            }
+            return new GenericEntity<List<AircraftInfo>>(result) {};
+        });
+    }
+
+    /**
+     * Register the caller's "Authorization" header for sending UDP position reports for one of its aircraft.
+     * The response holds the UDP port to send the reports to. A header can only be registered for one aircraft, so
+     * registering it for another one gives "409 Conflict".
+     */
+    @PUT
+    @Path("{callsign}/udp")
     @Produces(MediaType.APPLICATION_JSON)
-    public AircraftInfo updateAircraft(@PathParam("callsign")        String callsign,
-                                                                     JsonObject aircraft,
-                                       @HeaderParam("authorization") String authHdr)
+    public void registerUdp(@PathParam("callsign")        String callsign,
+                            @Context                      SecurityContext security,
+                            @Suspended                    AsyncResponse response)
     {
-        Token token = verifier.decodeToken(authHdr);
+        final TokenPrincipal principal = TokenPrincipal.of(security);
+        final Token token = principal.getToken();
 
-        AircraftInfo result = getAircraft(callsign, authHdr);
+        executors.getAircraft().run(response, () -> {
+            if (!udpIngest.isEnabled()) {
+                throw new NotFoundException("UDP position reports are not enabled");
+            }
+            AircraftInfo aircraft = registry.get(token.getSession(), callsign);
+            if (aircraft == null) {
+                throw new NotFoundException("Unknown aircraft \"" + callsign + "\"");
+            }
+            rules.checkUpdate(aircraft, new AircraftInfo(), token);
 
-        rules.checkUpdate(result, aircraft, token);
-        result.updateFromJsonObject(aircraft);
+            udpIngest.register(principal.getAuthHeader(), token, callsign);
 
-        return result;
+            return Integer.toString(udpIngest.getPort());
+        });
     }
 
     @POST
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, MediaType.APPLICATION_OCTET_STREAM})
     @Produces(MediaType.APPLICATION_JSON)
-    public String createAircraft(                              JsonObject aircraft,
-                                 @HeaderParam("authorization") String authHdr)
+    public void createAircraft(                              AircraftInfo aircraft,
+                               @Context                      SecurityContext security,
+                               @Suspended                    AsyncResponse response)
     {
-        Token token = verifier.decodeToken(authHdr);
+        final Token token = TokenPrincipal.of(security).getToken();
 
-        rules.checkCreate(aircraft, token);
+        executors.getAircraft().run(response, () -> {
+            rules.checkCreate(aircraft, token);
 
-        return aircraft.getString(JsonFields.FIELD_ATC_ID);
+            final String callsign = aircraft.getAtcId();
+            if (!registry.create(token.getSession(), aircraft)) {
+                log.error("createAircraft(): Aircraft \"" + callsign + "\" already exists in session \"" + token.getSession() + "\"");
+                throw new ClientErrorException("Aircraft already exists", Response.Status.CONFLICT);
+            }
+            return callsign;
+        });
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api;
+
+import nl.rakis.fs.info.AircraftInfo;
+import nl.rakis.fs.info.BinaryCodec;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Reads and writes aircraft (and collections of them) with the BinaryCodec, for clients that ask for
+ * "application/octet-stream".
+ */
+@Provider
+@Produces(MediaType.APPLICATION_OCTET_STREAM)
+@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+public class AircraftBinaryProvider
+    implements MessageBodyReader<Object>, MessageBodyWriter<Object>
+{
+
+    private static final Logger log = LogManager.getLogger(AircraftBinaryProvider.class);
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return AircraftInfo.class.equals(type) || (type.isAssignableFrom(ArrayList.class) && isAircraftCollection(type, genericType));
+    }
+
+    @Override
+    public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                           MultivaluedMap<String, String> httpHeaders, InputStream entityStream)
+            throws IOException, WebApplicationException
+    {
+        try {
+            final DataInputStream in = new DataInputStream(entityStream);
+
+            return AircraftInfo.class.equals(type) ? BinaryCodec.read(in) : BinaryCodec.readList(in);
+        }
+        catch (IOException e) {
+            log.error("readFrom(): Bad binary aircraft: " + e.getMessage());
+            throw new BadRequestException("Bad binary aircraft");
+        }
+    }
+
+    private static boolean isAircraftCollection(Class<?> type, Type genericType) {
+        if (!Collection.class.isAssignableFrom(type) || !(genericType instanceof ParameterizedType)) {
+            return false;
+        }
+        final Type[] args = ((ParameterizedType) genericType).getActualTypeArguments();
+
+        return (args.length == 1) && AircraftInfo.class.equals(args [0]);
+    }
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return AircraftInfo.class.equals(type) || isAircraftCollection(type, genericType);
+    }
+
+    @Override
+    public long getSize(Object o, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void writeTo(Object o, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+            throws IOException, WebApplicationException
+    {
+        // Don't close the stream, that is up to the container
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(entityStream));
+
+        if (o instanceof AircraftInfo) {
+            BinaryCodec.write(out, (AircraftInfo) o);
+        }
+        else {
+            BinaryCodec.writeList(out, (Collection<AircraftInfo>) o);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api;
+
+import nl.rakis.fs.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The executors for the API resources, one per resource so a slow one cannot starve the others. Their statistics are
+ * logged every few minutes.
+ */
+@ApplicationScoped
+public class ApiExecutors
+{
+
+    private static final Logger log = LogManager.getLogger(ApiExecutors.class);
+
+    public static final String EXECUTOR_AIRCRAFT = "aircraft";
+    public static final String EXECUTOR_SESSION = "session";
+
+    public static final String CFG_EXECUTOR_STATS = "nl.rakis.fs.api.executor.stats";
+    public static final String DEF_EXECUTOR_STATS = "300";
+
+    @Inject
+    private Config config;
+
+    private BoundedExecutor aircraft;
+    private BoundedExecutor session;
+    private ScheduledExecutorService statistics;
+
+    @PostConstruct
+    private void init()
+    {
+        log.debug("init()");
+
+        aircraft = BoundedExecutor.fromConfig(config, EXECUTOR_AIRCRAFT);
+        session = BoundedExecutor.fromConfig(config, EXECUTOR_SESSION);
+
+        long statsSecs = Long.parseLong(DEF_EXECUTOR_STATS);
+        try {
+            statsSecs = Long.parseLong(config.get(CFG_EXECUTOR_STATS, DEF_EXECUTOR_STATS).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init(): Bad executor statistics interval, using default", e);
+        }
+        if (statsSecs > 0) {
+            statistics = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "ApiExecutors-stats");
+                t.setDaemon(true);
+                return t;
+            });
+            statistics.scheduleWithFixedDelay(this::logStatistics, statsSecs, statsSecs, TimeUnit.SECONDS);
+        }
+    }
+
+    private void logStatistics() {
+        aircraft.logStatistics();
+        session.logStatistics();
+    }
+
+    @PreDestroy
+    private void destroy()
+    {
+        log.debug("destroy()");
+
+        if (statistics != null) {
+            statistics.shutdownNow();
+        }
+        aircraft.shutdown();
+        session.shutdown();
+    }
+
+    public BoundedExecutor getAircraft() {
+        return aircraft;
+    }
+
+    public BoundedExecutor getSession() {
+        return session;
+    }
+}
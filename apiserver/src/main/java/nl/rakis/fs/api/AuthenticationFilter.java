@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api;
+
+import nl.rakis.fs.auth.Token;
+import nl.rakis.fs.auth.TokenPrincipal;
+import nl.rakis.fs.auth.TokenSecurityContext;
+import nl.rakis.fs.auth.TokenVerifier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Priority;
+import javax.inject.Inject;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Decodes the bearer token of every API request exactly once, and publishes it as the request's principal. Requests
+ * without a valid token are refused with "401 Unauthorized" before they reach a resource.
+ */
+@Provider
+@Priority(Priorities.AUTHENTICATION)
+public class AuthenticationFilter
+    implements ContainerRequestFilter
+{
+
+    private static final Logger log = LogManager.getLogger(AuthenticationFilter.class);
+
+    @Inject
+    private TokenVerifier verifier;
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+        final String authHdr = requestContext.getHeaderString(HttpHeaders.AUTHORIZATION);
+        final Token token = verifier.decodeToken(authHdr);
+
+        if (log.isDebugEnabled()) {
+            log.debug("filter(): Request by \"" + token.getUsername() + "\"");
+        }
+        requestContext.setSecurityContext(new TokenSecurityContext(new TokenPrincipal(token, authHdr),
+                                                                   requestContext.getSecurityContext()));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api;
+
+import nl.rakis.fs.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs the work of suspended requests on a fixed number of threads with a bounded queue, so one slow resource
+ * cannot tie up the container's request threads. When the queue is full, or the work has not started within the
+ * timeout, the request fails right away with "503 Service Unavailable".
+ */
+public class BoundedExecutor
+{
+
+    private static final Logger log = LogManager.getLogger(BoundedExecutor.class);
+
+    public static final String CFG_EXECUTOR_PREFIX = "nl.rakis.fs.api.executor.";
+    public static final String CFG_EXECUTOR_THREADS = ".threads";
+    public static final String DEF_EXECUTOR_THREADS = "8";
+    public static final String CFG_EXECUTOR_QUEUE = ".queue";
+    public static final String DEF_EXECUTOR_QUEUE = "64";
+    public static final String CFG_EXECUTOR_TIMEOUT = ".timeout";
+    public static final String DEF_EXECUTOR_TIMEOUT = "10";
+
+    private static final long RETRY_AFTER_SECS = 1;
+
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_TIMED_OUT = 2;
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    public BoundedExecutor(String name, int threads, int queueSize, long timeoutMillis) {
+        if (log.isDebugEnabled()) {
+            log.debug("BoundedExecutor(\"" + name + "\", " + threads + ", " + queueSize + ", " + timeoutMillis + ")");
+        }
+        this.name = name;
+        this.timeoutMillis = timeoutMillis;
+
+        final AtomicInteger threadNr = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                r -> {
+                    Thread t = new Thread(r, "api-" + name + "-" + threadNr.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Build a BoundedExecutor using the sizes from the configuration, e.g. "nl.rakis.fs.api.executor.aircraft.threads"
+     * for the executor named "aircraft".
+     * @param cfg The configuration to use.
+     * @param name The executor's name.
+     * @return The new BoundedExecutor.
+     */
+    public static BoundedExecutor fromConfig(Config cfg, String name) {
+        final String prefix = CFG_EXECUTOR_PREFIX + name;
+
+        int threads = Integer.parseInt(DEF_EXECUTOR_THREADS);
+        int queueSize = Integer.parseInt(DEF_EXECUTOR_QUEUE);
+        long timeout = Long.parseLong(DEF_EXECUTOR_TIMEOUT);
+        try {
+            threads = Integer.parseInt(cfg.get(prefix + CFG_EXECUTOR_THREADS, DEF_EXECUTOR_THREADS).trim());
+            queueSize = Integer.parseInt(cfg.get(prefix + CFG_EXECUTOR_QUEUE, DEF_EXECUTOR_QUEUE).trim());
+            timeout = Long.parseLong(cfg.get(prefix + CFG_EXECUTOR_TIMEOUT, DEF_EXECUTOR_TIMEOUT).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("fromConfig(): Bad executor setting for \"" + name + "\", using defaults", e);
+        }
+        return new BoundedExecutor(name, Math.max(1, threads), queueSize, Math.max(1L, timeout) * 1000L);
+    }
+
+    /**
+     * Run the work for a suspended request, and resume it with the result. A WebApplicationException thrown by the
+     * work becomes the response as usual, anything else becomes "500 Internal Server Error".
+     *
+     * A request that times out while still queued gets a 503 and its work is never started. Work that has started is
+     * allowed to finish and answer, because it may already have changed something the client must be told about.
+     * @param response The suspended request.
+     * @param work Code that returns the response entity, or a Response.
+     */
+    public void run(AsyncResponse response, Supplier<?> work) {
+        final AtomicInteger state = new AtomicInteger(STATE_QUEUED);
+
+        response.setTimeoutHandler(r -> {
+            if (state.compareAndSet(STATE_QUEUED, STATE_TIMED_OUT)) {
+                timedOut.increment();
+                log.warn("run(): Request on \"" + name + "\" timed out");
+                r.resume(new ServiceUnavailableException(RETRY_AFTER_SECS));
+            }
+            else {
+                log.warn("run(): Request on \"" + name + "\" is taking long, waiting for it to finish");
+                r.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+        response.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            executor.execute(() -> {
+                if (!state.compareAndSet(STATE_QUEUED, STATE_RUNNING)) {
+                    // Timed out while queued, the client already got its answer
+                    return;
+                }
+                try {
+                    response.resume(work.get());
+                }
+                catch (WebApplicationException e) {
+                    response.resume(e);
+                }
+                catch (Throwable e) {
+                    log.error("run(): Request on \"" + name + "\" failed", e);
+                    response.resume(new InternalServerErrorException());
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            rejected.increment();
+            log.warn("run(): Executor \"" + name + "\" is saturated, refusing request");
+            response.resume(new ServiceUnavailableException(RETRY_AFTER_SECS));
+        }
+    }
+
+    /**
+     * Log how busy we are, and how many requests were refused or timed out since the last time.
+     */
+    public void logStatistics() {
+        final long nrRejected = rejected.sumThenReset();
+        final long nrTimedOut = timedOut.sumThenReset();
+
+        if (log.isInfoEnabled()) {
+            log.info("logStatistics(): Executor \"" + name + "\": " + executor.getActiveCount() + " active, "
+                    + executor.getQueue().size() + " queued, " + nrRejected + " rejected, " + nrTimedOut + " timed out");
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public String getName() {
+        return name;
+    }
+}
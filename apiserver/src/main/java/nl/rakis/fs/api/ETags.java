@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api;
+
+import javax.ws.rs.core.EntityTag;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Entity tags for versioned records. A single record's tag is its version, and a list's tag is a hash over the
+ * keys and versions of its records, so neither needs the record to be serialized.
+ */
+final class ETags
+{
+
+    private static final String ANY = "*";
+    private static final String WEAK_PREFIX = "W/";
+
+    private ETags() {
+    }
+
+    /**
+     * @return The strong tag for a record with this version.
+     */
+    static EntityTag of(long version) {
+        return new EntityTag(Long.toString(version));
+    }
+
+    /**
+     * Build a weak tag for a list of records. The tag changes when a record is added, removed, moved, or gets a new
+     * version. It is weak because two lists with the same tag may still serialize differently, e.g. with their
+     * numbers formatted another way.
+     * @param list The records.
+     * @param key How to get a record's unique key.
+     * @param version How to get a record's version.
+     * @return The tag.
+     */
+    static <T> EntityTag ofList(List<T> list, Function<T,String> key, ToLongFunction<T> version) {
+        long hash = 0xcbf29ce484222325L;
+        for (T rec: list) {
+            hash = mix(hash, key.apply(rec).hashCode());
+            hash = mix(hash, version.applyAsLong(rec));
+        }
+        return new EntityTag(Integer.toString(list.size()) + "-" + Long.toHexString(hash), true);
+    }
+
+    private static long mix(long hash, long value) {
+        hash ^= value;
+        hash *= 0x100000001b3L;
+        return hash ^ (hash >>> 29);
+    }
+
+    /**
+     * Check an "If-None-Match" header against a tag, using the weak comparison that RFC 7232 requires.
+     * @param ifNoneMatch The header's value, may be null.
+     * @param tag The current tag.
+     * @return true if the header is "*" or lists the tag, so the client's copy is still good.
+     */
+    static boolean notModified(String ifNoneMatch, EntityTag tag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        if (ifNoneMatch.trim().equals(ANY)) {
+            return true;
+        }
+        for (String candidate: ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith(WEAK_PREFIX)) {
+                candidate = candidate.substring(WEAK_PREFIX.length());
+            }
+            if ((candidate.length() >= 2) && candidate.startsWith("\"") && candidate.endsWith("\"")
+                    && candidate.substring(1, candidate.length() - 1).equals(tag.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check an "If-Match" header against a record's version, using the strong comparison that RFC 7232 requires.
+     * @param ifMatch The header's value, may be null.
+     * @param version The record's current version.
+     * @return true if there is no header, it is "*", or it lists the record's tag.
+     */
+    static boolean matches(String ifMatch, long version) {
+        if ((ifMatch == null) || ifMatch.trim().equals(ANY)) {
+            return true;
+        }
+        final String current = of(version).getValue();
+
+        for (String tag: ifMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith(WEAK_PREFIX) || (tag.length() < 2) || !tag.startsWith("\"") || !tag.endsWith("\"")) {
+                continue;
+            }
+            if (tag.substring(1, tag.length() - 1).equals(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api;
+
+import nl.rakis.fs.info.AircraftInfo;
+import nl.rakis.fs.info.FSData;
+import nl.rakis.fs.info.JsonFields;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reads and writes FSData records (and lists of them) with the streaming JSON API, so no intermediate
+ * JsonObject trees are built.
+ */
+@Provider
+@Produces(MediaType.APPLICATION_JSON)
+@Consumes(MediaType.APPLICATION_JSON)
+public class FSDataJsonProvider
+    implements MessageBodyReader<Object>, MessageBodyWriter<Object>
+{
+
+    private static final Logger log = LogManager.getLogger(FSDataJsonProvider.class);
+
+    private static final JsonParserFactory parserFactory = Json.createParserFactory(null);
+    private static final JsonGeneratorFactory generatorFactory = Json.createGeneratorFactory(null);
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return FSData.class.isAssignableFrom(type) || (type.isAssignableFrom(ArrayList.class) && (elementType(genericType) != null));
+    }
+
+    private static FSData newRecord(Class<?> type) {
+        try {
+            return (FSData) type.getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e) {
+            log.error("newRecord(): Cannot instantiate " + type.getName(), e);
+            throw new InternalServerErrorException();
+        }
+    }
+
+    @Override
+    public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                           MultivaluedMap<String, String> httpHeaders, InputStream entityStream)
+            throws IOException, WebApplicationException
+    {
+        // Don't close the parser, as that would close the entity stream
+        final JsonParser parser = parserFactory.createParser(entityStream, StandardCharsets.UTF_8);
+        try {
+            if (FSData.class.isAssignableFrom(type)) {
+                if (!parser.hasNext() || (parser.next() != JsonParser.Event.START_OBJECT)) {
+                    throw new BadRequestException("Expected a JSON object");
+                }
+                final FSData result = newRecord(type);
+                result.readFrom(parser);
+                checkInbound(result);
+                return result;
+            }
+
+            final Class<?> elementType = elementType(genericType);
+            if (!parser.hasNext() || (parser.next() != JsonParser.Event.START_ARRAY)) {
+                throw new BadRequestException("Expected a JSON array");
+            }
+            final List<FSData> result = new ArrayList<>();
+            while (parser.hasNext()) {
+                final JsonParser.Event event = parser.next();
+                if (event == JsonParser.Event.END_ARRAY) {
+                    break;
+                }
+                if (event != JsonParser.Event.START_OBJECT) {
+                    throw new BadRequestException("Expected a JSON object");
+                }
+                final FSData rec = newRecord(elementType);
+                rec.readFrom(parser);
+                checkInbound(rec);
+                result.add(rec);
+            }
+            return result;
+        }
+        catch (JsonException e) {
+            log.error("readFrom(): Bad JSON", e);
+            throw new BadRequestException("Bad JSON");
+        }
+        catch (IllegalArgumentException e) {
+            // Values that don't parse, such as a malformed session ID or number
+            log.error("readFrom(): Bad value", e);
+            throw new BadRequestException("Bad value");
+        }
+    }
+
+    /**
+     * Refuse the parts of a record that only the server may send. The "cleared" list of pushed deltas would otherwise
+     * let a client null fields such as the owner.
+     */
+    private static void checkInbound(FSData rec) {
+        if ((rec instanceof AircraftInfo) && (((AircraftInfo) rec).getCleared() != null)) {
+            throw new BadRequestException("\"" + JsonFields.FIELD_CLEARED + "\" cannot be sent to the server");
+        }
+    }
+
+    /**
+     * @return The FSData element type if the type is a collection of FSData records, or null otherwise.
+     */
+    private static Class<?> elementType(Type genericType) {
+        if (!(genericType instanceof ParameterizedType)) {
+            return null;
+        }
+        final Type[] args = ((ParameterizedType) genericType).getActualTypeArguments();
+
+        return ((args.length == 1) && (args [0] instanceof Class) && FSData.class.isAssignableFrom((Class<?>) args [0]))
+                ? (Class<?>) args [0]
+                : null;
+    }
+
+    private static boolean isFSDataCollection(Class<?> type, Type genericType) {
+        return Collection.class.isAssignableFrom(type) && (elementType(genericType) != null);
+    }
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return FSData.class.isAssignableFrom(type) || isFSDataCollection(type, genericType);
+    }
+
+    @Override
+    public long getSize(Object o, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(Object o, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+            throws IOException, WebApplicationException
+    {
+        // Don't close the generator, as that would close the entity stream
+        final JsonGenerator gen = generatorFactory.createGenerator(entityStream, StandardCharsets.UTF_8);
+
+        if (o instanceof FSData) {
+            ((FSData) o).writeTo(gen);
+        }
+        else {
+            gen.writeStartArray();
+            for (Object rec: (Collection<?>) o) {
+                ((FSData) rec).writeTo(gen);
+            }
+            gen.writeEnd();
+        }
+        gen.flush();
+    }
+}
@@ -16,9 +16,12 @@
  */
 package nl.rakis.fs.api;
 
+import nl.rakis.fs.api.push.TrafficHub;
 import nl.rakis.fs.api.rules.SessionRules;
+import nl.rakis.fs.api.state.ChangeLog;
+import nl.rakis.fs.api.state.SessionRegistry;
 import nl.rakis.fs.auth.Token;
-import nl.rakis.fs.auth.TokenVerifier;
+import nl.rakis.fs.auth.TokenPrincipal;
 import nl.rakis.fs.info.JsonFields;
 import nl.rakis.fs.info.SessionInfo;
 import org.apache.logging.log4j.LogManager;
@@ -27,20 +30,47 @@ import org.apache.logging.log4j.Logger;
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
-import javax.json.JsonObject;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
-import java.util.ArrayList;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import java.io.StringWriter;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * The session resource. All methods are asynchronous: the work runs on the "session" BoundedExecutor, which
+ * answers "503 Service Unavailable" when it is saturated. Only waiting for changes is done without it, as that
+ * never blocks.
+ */
 @Path("session")
 @RequestScoped
 public class SessionAPI {
 
     private static final Logger log = LogManager.getLogger(SessionAPI.class);
 
+    public static final String TYPE_CHANGES = "Changes";
+
+    private static final JsonGeneratorFactory generatorFactory = Json.createGeneratorFactory(null);
+
+    @Inject
+    private SessionRegistry registry;
+
     @Inject
-    private TokenVerifier verifier;
+    private ChangeLog changeLog;
+
+    @Inject
+    private ApiExecutors executors;
 
     private SessionRules rules;
 
@@ -49,61 +79,179 @@ public class SessionAPI {
         rules = new SessionRules();
     }
 
+    /**
+     * List all sessions, with a weak ETag built from their names and versions. "If-None-Match" is answered with
+     * "304 Not Modified".
+     */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public List<SessionInfo> getSessionList(@HeaderParam("authorization") String authHdr)
+    public void getSessionList(@HeaderParam("If-None-Match") String ifNoneMatch,
+                               @Context                      SecurityContext security,
+                               @Suspended                    AsyncResponse response)
     {
-        List<SessionInfo> result = new ArrayList<>();
+        final Token token = TokenPrincipal.of(security).getToken();
+
+        executors.getSession().run(response, () -> {
+            List<SessionInfo> result = registry.list();
 
-        result.add(getSession("Sundowners", authHdr));
+            final EntityTag tag = ETags.ofList(result, SessionInfo::getName, SessionInfo::getVersion);
+            if (ETags.notModified(ifNoneMatch, tag)) {
+                return Response.notModified(tag).build();
+            }
 
-        return result;
+            for (SessionInfo session: result) {
+                rules.cleanRecord(session, token);
+            }
+            return Response.ok(new GenericEntity<List<SessionInfo>>(result) {}).tag(tag).build();
+        });
     }
 
+    /**
+     * Return one session, with its version as ETag. "If-None-Match" is answered with "304 Not Modified".
+     */
     @GET
     @Path("{name}")
     @Produces(MediaType.APPLICATION_JSON)
-    public SessionInfo getSession(@PathParam("name")            String name,
-                                  @HeaderParam("authorization") String authHdr)
+    public void getSession(@PathParam("name")            String name,
+                           @HeaderParam("If-None-Match") String ifNoneMatch,
+                           @Context                      SecurityContext security,
+                           @Suspended                    AsyncResponse response)
     {
-        Token token = verifier.decodeToken(authHdr);
+        final Token token = TokenPrincipal.of(security).getToken();
 
-        SessionInfo result = new SessionInfo(name, "FSGG Sundowners");
+        executors.getSession().run(response, () -> {
+            SessionInfo result = registry.get(name);
 
-        rules.cleanRecord(result, token);
+            final EntityTag tag = ETags.of(result.getVersion());
+            if (ETags.notModified(ifNoneMatch, tag)) {
+                return Response.notModified(tag).build();
+            }
 
-        return result;
+            rules.cleanRecord(result, token);
+
+            return Response.ok(result).tag(tag).build();
+        });
     }
 
+    /**
+     * Update a session. With "If-Match", the update is only applied if the session still has that version, and
+     * "412 Precondition Failed" is returned otherwise.
+     */
     @PUT
     @Path("{name}")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public SessionInfo updateSession(@PathParam("name")            String name,
-                                                                   JsonObject session,
-                                     @HeaderParam("authorization") String authHdr)
+    public void updateSession(@PathParam("name")            String name,
+                                                            SessionInfo session,
+                              @HeaderParam("If-Match")      String ifMatch,
+                              @Context                      SecurityContext security,
+                              @Suspended                    AsyncResponse response)
+    {
+        final Token token = TokenPrincipal.of(security).getToken();
+
+        executors.getSession().run(response, () -> {
+            SessionInfo result = registry.update(name, (SessionInfo rec) -> {
+                if (!ETags.matches(ifMatch, rec.getVersion())) {
+                    throw new ClientErrorException("Session was changed", Response.Status.PRECONDITION_FAILED);
+                }
+                rules.checkUpdate(rec, session, token);
+                rec.updateFrom(session);
+            });
+
+            rules.cleanRecord(result, token);
+
+            return Response.ok(result).tag(ETags.of(result.getVersion())).build();
+        });
+    }
+
+    /**
+     * Return the aircraft changes in a session after sequence number "since", with only the last change per
+     * aircraft. If there are none yet, wait at most "wait" seconds for one to arrive, and return an empty list
+     * otherwise.
+     *
+     * The answer is a "Changes" message with the changed aircraft, "AircraftRemoved" for removed ones, and the
+     * "seq" to ask from next time. If "resync" is set, the changes since "since" are no longer known, and the
+     * client should get all aircraft with "GET /aircraft" before asking from "seq" again. That is also the answer to
+     * a "since" from before a restart, and to a missing "since" once the oldest changes have been dropped.
+     */
+    @GET
+    @Path("{name}/changes")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getChanges(@PathParam("name")            String name,
+                           @QueryParam("since")          @DefaultValue("0") long since,
+                           @QueryParam("wait")           Long wait,
+                           @Context                      SecurityContext security,
+                           @Suspended                    AsyncResponse response)
     {
-        Token token = verifier.decodeToken(authHdr);
+        final Token token = TokenPrincipal.of(security).getToken();
+        if (!name.equals(token.getSession())) {
+            throw new NotAuthorizedException("Not your session");
+        }
 
-        SessionInfo result = getSession(name, authHdr);
+        // Nothing here can block, so this runs on the request thread, and the waiting itself holds no thread at all
+        final long maxWait = changeLog.getMaxWait();
+        final long timeout = (wait == null) ? maxWait : Math.max(0L, Math.min(wait, maxWait));
+        if (timeout == 0) {
+            response.resume(encode(changeLog.since(name, since)));
+            return;
+        }
 
-        rules.checkUpdate(result, session, token);
-        result.updateFromJsonObject(session);
+        final AtomicReference<Runnable> cancel = new AtomicReference<>();
+        response.setTimeoutHandler(r -> {
+            final Runnable stopWaiting = cancel.get();
+            if (stopWaiting != null) {
+                stopWaiting.run();
+            }
+            r.resume(encode(new ChangeLog.Changes(since, false, Collections.emptyList())));
+        });
+        response.setTimeout(timeout, TimeUnit.SECONDS);
 
-        return result;
+        cancel.set(changeLog.await(name, since, changes -> response.resume(encode(changes))));
+    }
+
+    private static String encode(ChangeLog.Changes changes) {
+        final StringWriter result = new StringWriter();
+        try (JsonGenerator gen = generatorFactory.createGenerator(result)) {
+            gen.writeStartObject()
+               .write(JsonFields.FIELD_TYPE, TYPE_CHANGES)
+               .write(JsonFields.FIELD_SEQ, changes.getSeq())
+               .write(JsonFields.FIELD_RESYNC, changes.isResync())
+               .writeStartArray(JsonFields.FIELD_CHANGES);
+            for (ChangeLog.Change change: changes.getChanges()) {
+                if (change.getAircraft() != null) {
+                    change.getAircraft().writeTo(gen);
+                }
+                else {
+                    gen.writeStartObject()
+                       .write(JsonFields.FIELD_TYPE, TrafficHub.TYPE_REMOVED)
+                       .write(JsonFields.FIELD_ATC_ID, change.getCallsign())
+                       .writeEnd();
+                }
+            }
+            gen.writeEnd()
+               .writeEnd();
+        }
+        return result.toString();
     }
 
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public String createSession(                              JsonObject session,
-                                @HeaderParam("authorization") String authHdr)
+    public void createSession(                              SessionInfo session,
+                              @Context                      SecurityContext security,
+                              @Suspended                    AsyncResponse response)
     {
-        Token token = verifier.decodeToken(authHdr);
+        final Token token = TokenPrincipal.of(security).getToken();
 
-        rules.checkCreate(session, token);
+        executors.getSession().run(response, () -> {
+            rules.checkCreate(session, token);
 
-        return session.getString(JsonFields.FIELD_NAME);
+            if (!registry.create(session)) {
+                log.error("createSession(): Session \"" + session.getName() + "\" already exists");
+                throw new ClientErrorException("Session already exists", Response.Status.CONFLICT);
+            }
+            return session.getName();
+        });
     }
-    
+
 }
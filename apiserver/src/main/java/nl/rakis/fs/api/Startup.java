@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api;
+
+import nl.rakis.fs.api.state.ChangeLog;
+import nl.rakis.fs.api.state.SpatialIndex;
+import nl.rakis.fs.api.udp.UdpIngest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+/**
+ * Creates the beans that must exist before the first request, instead of on first use: the ChangeLog and the
+ * SpatialIndex must see every aircraft from the first one onwards, and the UDP port must be open before the first
+ * client registers.
+ */
+@ApplicationScoped
+public class Startup
+{
+
+    private static final Logger log = LogManager.getLogger(Startup.class);
+
+    @Inject
+    private ChangeLog changeLog;
+    @Inject
+    private SpatialIndex spatialIndex;
+    @Inject
+    private UdpIngest udpIngest;
+
+    private void startup(@Observes @Initialized(ApplicationScoped.class) Object ignored) {
+        log.debug("startup()");
+
+        // The injected references are proxies, calling a method on them is what creates the beans
+        changeLog.toString();
+        spatialIndex.toString();
+        udpIngest.toString();
+
+        log.debug("startup(): Done");
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.push;
+
+import nl.rakis.fs.api.state.SpatialIndex;
+import nl.rakis.fs.info.AircraftInfo;
+import nl.rakis.fs.info.ControlsInfo;
+import nl.rakis.fs.info.EngineInfo;
+import nl.rakis.fs.info.LocationInfo;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Dead reckoning model used to suppress updates that clients can predict themselves. From the last forwarded
+ * location, the position is extrapolated along the heading at the reported airspeed, with the altitude held.
+ * An update is only forwarded if the real position is further off than the thresholds, if something a client
+ * cannot predict changed (identification, ground state, lights, engines running, gear), or if the last forwarded
+ * update is older than the maximum interval.
+ *
+ * The heading is taken as a true heading in degrees and the airspeed in knots. Using indicated instead of true
+ * airspeed makes the prediction fall short at altitude, which the thresholds absorb.
+ */
+class DeadReckoning
+{
+
+    private static final double EARTH_RADIUS_NM = 3440.065;
+    private static final double MILLIS_PER_HOUR = 3600000.0;
+
+    private final double maxError;
+    private final double maxAltError;
+    private final long maxInterval;
+
+    /**
+     * @param maxError Maximum horizontal error in nautical miles. Zero or less disables suppression.
+     * @param maxAltError Maximum altitude error in feet.
+     * @param maxInterval Maximum milliseconds between forwarded updates.
+     */
+    DeadReckoning(double maxError, double maxAltError, long maxInterval) {
+        this.maxError = maxError;
+        this.maxAltError = maxAltError;
+        this.maxInterval = maxInterval;
+    }
+
+    boolean isEnabled() {
+        return maxError > 0.0;
+    }
+
+    /**
+     * Predict where an aircraft is after some time.
+     * @param from The last known location.
+     * @param millis Milliseconds since that location.
+     * @return The predicted latitude and longitude, in degrees.
+     */
+    static double[] predict(LocationInfo from, long millis) {
+        final double angle = (from.getAirspeed() * millis / MILLIS_PER_HOUR) / EARTH_RADIUS_NM;
+        final double heading = Math.toRadians(from.getHeading());
+        final double lat1 = Math.toRadians(from.getLatitude());
+        final double lon1 = Math.toRadians(from.getLongitude());
+
+        final double lat2 = Math.asin(Math.sin(lat1) * Math.cos(angle) + Math.cos(lat1) * Math.sin(angle) * Math.cos(heading));
+        final double lon2 = lon1 + Math.atan2(Math.sin(heading) * Math.sin(angle) * Math.cos(lat1),
+                                              Math.cos(angle) - Math.sin(lat1) * Math.sin(lat2));
+
+        return new double[]{ Math.toDegrees(lat2), Math.IEEEremainder(Math.toDegrees(lon2), 360.0) };
+    }
+
+    /**
+     * Decide if an update must be sent to clients.
+     * @param last The last forwarded state, or null if there is none.
+     * @param lastMillis When the last state was forwarded.
+     * @param current The new state.
+     * @param nowMillis The current time.
+     * @return true if the update must be forwarded.
+     */
+    boolean mustForward(AircraftInfo last, long lastMillis, AircraftInfo current, long nowMillis) {
+        if (!isEnabled() || (last == null) || ((nowMillis - lastMillis) >= maxInterval)) {
+            return true;
+        }
+        final LocationInfo from = last.getLocation();
+        final LocationInfo to = current.getLocation();
+        if ((from == null) || (to == null) || (from.isOnGround() != to.isOnGround())) {
+            return true;
+        }
+        // Without a full position, speed and altitude there is nothing to predict from
+        if (!canPredict(from) || !canPredict(to)) {
+            return true;
+        }
+        if (!sameDiscreteState(last, current)) {
+            return true;
+        }
+
+        final double[] predicted = predict(from, nowMillis - lastMillis);
+        return (Math.abs(to.getAltitude() - from.getAltitude()) > maxAltError) ||
+               (SpatialIndex.distance(predicted [0], predicted [1], to.getLatitude(), to.getLongitude()) > maxError);
+    }
+
+    private static boolean canPredict(LocationInfo location) {
+        return location.hasPosition() && LocationInfo.isSet(location.getAltitude()) &&
+               LocationInfo.isSet(location.getHeading()) && LocationInfo.isSet(location.getAirspeed());
+    }
+
+    private static boolean sameDiscreteState(AircraftInfo last, AircraftInfo current) {
+        if (!Objects.equals(last.getTitle(), current.getTitle()) ||
+            !Objects.equals(last.getAtcType(), current.getAtcType()) ||
+            !Objects.equals(last.getAtcModel(), current.getAtcModel()) ||
+            !Objects.equals(last.getAtcAirline(), current.getAtcAirline()) ||
+            !Objects.equals(last.getAtcFlightNumber(), current.getAtcFlightNumber()) ||
+            !Objects.equals(last.getLights(), current.getLights()))
+        {
+            return false;
+        }
+
+        final EngineInfo lastEngines = last.getEngines();
+        final EngineInfo engines = current.getEngines();
+        if ((lastEngines != engines) &&
+            ((lastEngines == null) || (engines == null) || !Arrays.equals(lastEngines.getEng(), engines.getEng())))
+        {
+            return false;
+        }
+
+        final ControlsInfo lastControls = last.getControls();
+        final ControlsInfo controls = current.getControls();
+        return (lastControls == controls) ||
+               ((lastControls != null) && (controls != null) && (lastControls.getGrs() == controls.getGrs()));
+    }
+}
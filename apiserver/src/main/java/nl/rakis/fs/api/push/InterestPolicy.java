@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.push;
+
+/**
+ * Decides how often a subscriber gets updates for an aircraft, based on the distance between the subscriber's own
+ * aircraft and the other one. Close aircraft are sent on every tick, mid-range ones every few ticks, and far ones
+ * only occasionally, as a summary.
+ */
+class InterestPolicy
+{
+
+    enum Tier { NEAR, MID, FAR }
+
+    private final double nearRadius;
+    private final double midRadius;
+    private final int midInterval;
+    private final int farInterval;
+
+    /**
+     * @param nearRadius Aircraft within this many nautical miles get every update.
+     * @param midRadius Aircraft within this many nautical miles get an update every midInterval ticks.
+     * @param midInterval Ticks between updates for mid-range aircraft.
+     * @param farInterval Ticks between summaries for aircraft further away.
+     */
+    InterestPolicy(double nearRadius, double midRadius, int midInterval, int farInterval) {
+        this.nearRadius = nearRadius;
+        this.midRadius = Math.max(nearRadius, midRadius);
+        this.midInterval = Math.max(1, midInterval);
+        this.farInterval = Math.max(1, farInterval);
+    }
+
+    Tier tier(double distance) {
+        if (distance <= nearRadius) {
+            return Tier.NEAR;
+        }
+        return (distance <= midRadius) ? Tier.MID : Tier.FAR;
+    }
+
+    int interval(Tier tier) {
+        switch (tier) {
+            case NEAR:
+                return 1;
+            case MID:
+                return midInterval;
+            default:
+                return farInterval;
+        }
+    }
+}
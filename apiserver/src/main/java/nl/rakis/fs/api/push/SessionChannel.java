@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.push;
+
+import nl.rakis.fs.api.state.SpatialIndex;
+import nl.rakis.fs.info.AircraftInfo;
+import nl.rakis.fs.info.LocationInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.websocket.Session;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The subscribers of one session, plus the changes collected since the last tick. Only the last change per callsign
+ * is kept, so an aircraft that reports ten times during a tick is sent once.
+ *
+ * Every subscriber gets the changes its InterestPolicy says are due, based on the distance to its own aircraft.
+ * Changes that are not due yet are kept per subscriber until they are. Each aircraft is encoded at most once per
+ * tick in each form, and subscribers share those encodings.
+ *
+ * Before all that, updates that clients can predict with DeadReckoning are dropped. What is sent is a delta against
+ * the state the subscriber's client has after the previous messages, see Subscriber. When a subscriber starts over,
+ * every aircraft in the session is sent to it, including those that don't change.
+ */
+class SessionChannel
+{
+
+    private static final Logger log = LogManager.getLogger(SessionChannel.class);
+
+    /** Unacknowledged messages after which a subscriber gets full records again. */
+    private static final int MAX_UNACKED = 64;
+
+    private final String session;
+    private final InterestPolicy policy;
+    private final DeadReckoning deadReckoning;
+    private final Function<String,LocationInfo> positions;
+    private final Supplier<Collection<AircraftInfo>> current;
+    private final ConcurrentMap<Session,Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    /** The last forwarded state per callsign, with the time it was forwarded. */
+    private final ConcurrentMap<String,Forwarded> forwarded = new ConcurrentHashMap<>();
+
+    private final Object pendingLock = new Object();
+    private Map<String,AircraftInfo> pending = new HashMap<>();
+
+    private ScheduledFuture<?> task;
+    private long tickNr;
+
+    /**
+     * @param session The session's name.
+     * @param policy How often to send aircraft at what distance.
+     * @param deadReckoning Which updates can be left out.
+     * @param positions Returns the current location of an aircraft in this session, or null if it is unknown.
+     * @param current Returns all aircraft in this session.
+     */
+    SessionChannel(String session, InterestPolicy policy, DeadReckoning deadReckoning,
+                   Function<String,LocationInfo> positions, Supplier<Collection<AircraftInfo>> current)
+    {
+        this.session = session;
+        this.policy = policy;
+        this.deadReckoning = deadReckoning;
+        this.positions = positions;
+        this.current = current;
+    }
+
+    Subscriber add(Session connection, String callsign) {
+        final Subscriber result = new Subscriber(connection, callsign);
+        subscribers.put(connection, result);
+        return result;
+    }
+
+    void remove(Session connection) {
+        subscribers.remove(connection);
+    }
+
+    boolean isIdle() {
+        return subscribers.isEmpty();
+    }
+
+    void start(ScheduledExecutorService ticker, long tickMillis) {
+        task = ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Remember a change for the next tick, unless clients can predict it. Changes for one aircraft are never
+     * reported concurrently.
+     * @param callsign The aircraft's callsign.
+     * @param aircraft The new state, or null if the aircraft was removed.
+     */
+    void changed(String callsign, AircraftInfo aircraft) {
+        if (aircraft == null) {
+            forwarded.remove(callsign);
+        }
+        else {
+            final long now = System.currentTimeMillis();
+            final Forwarded last = forwarded.get(callsign);
+            if ((last != null) && !deadReckoning.mustForward(last.aircraft, last.millis, aircraft, now)) {
+                return;
+            }
+            forwarded.put(callsign, new Forwarded(aircraft, now));
+        }
+        synchronized (pendingLock) {
+            pending.put(callsign, aircraft);
+        }
+    }
+
+    /**
+     * Send every subscriber what is due. Runs on the ticker, one tick at a time.
+     */
+    void tick() {
+        tickNr++;
+
+        final Map<String,AircraftInfo> changes;
+        synchronized (pendingLock) {
+            changes = pending;
+            if (!changes.isEmpty()) {
+                pending = new HashMap<>();
+            }
+        }
+
+        // An exception would cancel the schedule, so never let one escape
+        try {
+            final Encodings encoded = new Encodings();
+            for (Subscriber subscriber: subscribers.values()) {
+                final String message = collect(subscriber, changes, encoded);
+                if (message != null) {
+                    TrafficHub.send(subscriber.getConnection(), message);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            log.error("tick(): Broadcast for session \"" + session + "\" failed", e);
+        }
+    }
+
+    /**
+     * Merge this tick's changes into the subscriber's backlog, and build a message with everything that is due.
+     * Aircraft the subscriber has a baseline for are sent as deltas against it. While the previous message is still
+     * being written, everything stays in the backlog, so a slow client gets fewer, larger messages.
+     * @param encoded Encodings made during this tick.
+     * @return The message, or null if nothing is due.
+     */
+    private String collect(Subscriber subscriber, Map<String,AircraftInfo> changes, Encodings encoded) {
+        final Map<String,AircraftInfo> deferred = subscriber.getDeferred();
+        final Map<String,Long> lastSent = subscriber.getLastSent();
+        final Map<String,AircraftInfo> baselines = subscriber.getBaselines();
+        final List<String> elements = new ArrayList<>();
+
+        if (subscriber.processAcks(MAX_UNACKED)) {
+            // The client may have missed anything, so it gets everything, right away
+            lastSent.clear();
+            for (AircraftInfo aircraft: current.get()) {
+                deferred.put(aircraft.getAtcId(), aircraft);
+            }
+        }
+        // A removal is kept as null until it is sent
+        deferred.putAll(changes);
+        if (TrafficHub.isSending(subscriber.getConnection())) {
+            return null;
+        }
+
+        final Map<String,AircraftInfo> states = new HashMap<>();
+        if (!deferred.isEmpty()) {
+            final LocationInfo own = (subscriber.getCallsign() == null) ? null : positions.apply(subscriber.getCallsign());
+            for (Iterator<Map.Entry<String,AircraftInfo>> i = deferred.entrySet().iterator(); i.hasNext(); ) {
+                final Map.Entry<String,AircraftInfo> entry = i.next();
+                final AircraftInfo aircraft = entry.getValue();
+                if (aircraft == null) {
+                    elements.add(encoded.removed(entry.getKey()));
+                    i.remove();
+                    subscriber.forget(entry.getKey());
+                    continue;
+                }
+                final LocationInfo location = aircraft.getLocation();
+
+                final InterestPolicy.Tier tier = ((own == null) || !own.hasPosition() || (location == null) || !location.hasPosition())
+                        ? InterestPolicy.Tier.NEAR
+                        : policy.tier(SpatialIndex.distance(own.getLatitude(), own.getLongitude(), location.getLatitude(), location.getLongitude()));
+                final Long sent = lastSent.get(entry.getKey());
+                if ((sent != null) && ((tickNr - sent) < policy.interval(tier))) {
+                    continue;
+                }
+
+                final AircraftInfo baseline = baselines.get(entry.getKey());
+                final AircraftInfo target = (tier == InterestPolicy.Tier.FAR)
+                        ? TrafficHub.summaryOf(aircraft, baseline)
+                        : aircraft;
+                elements.add(encoded.delta(target, baseline));
+                states.put(entry.getKey(), target);
+                lastSent.put(entry.getKey(), tickNr);
+                i.remove();
+            }
+        }
+        return elements.isEmpty() ? null : TrafficHub.trafficMessage(subscriber.sent(states), elements);
+    }
+
+    private static final class Forwarded
+    {
+        private final AircraftInfo aircraft;
+        private final long millis;
+
+        Forwarded(AircraftInfo aircraft, long millis) {
+            this.aircraft = aircraft;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * A record and the baseline it is encoded against, compared by identity. Subscribers that were sent the same
+     * state share their baselines, and so their encodings.
+     */
+    private static final class DeltaKey
+    {
+        private final AircraftInfo target;
+        private final AircraftInfo baseline;
+
+        DeltaKey(AircraftInfo target, AircraftInfo baseline) {
+            this.target = target;
+            this.baseline = baseline;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof DeltaKey) && (((DeltaKey) o).target == target) && (((DeltaKey) o).baseline == baseline);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(target) + System.identityHashCode(baseline);
+        }
+    }
+
+    /**
+     * Encodings made during one tick, so every record is encoded at most once against each baseline.
+     */
+    private static final class Encodings
+    {
+        private final Map<DeltaKey,String> deltas = new HashMap<>();
+        private final Map<String,String> removed = new HashMap<>();
+
+        String delta(AircraftInfo target, AircraftInfo baseline) {
+            return deltas.computeIfAbsent(new DeltaKey(target, baseline), k -> TrafficHub.encode(target.deltaFrom(baseline)));
+        }
+
+        String removed(String callsign) {
+            return removed.computeIfAbsent(callsign, TrafficHub::encodeRemoved);
+        }
+    }
+}
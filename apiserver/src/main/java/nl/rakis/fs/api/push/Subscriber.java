@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.push;
+
+import nl.rakis.fs.info.AircraftInfo;
+
+import javax.websocket.Session;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One WebSocket connection following a session, with its interest and delta bookkeeping. Only the session's tick
+ * touches the bookkeeping, so it needs no locking. Acknowledgements and resync requests come in on other threads,
+ * and are only recorded until the next tick.
+ *
+ * The baseline of an aircraft is the state the client has after applying every message sent so far, rather than the
+ * last state it acknowledged. A WebSocket delivers messages reliably and in order, or the connection breaks and this
+ * subscriber goes with it, so when a message arrives the client has exactly the state it was made against, whether or
+ * not the earlier ones were acknowledged yet. Deltas against the acknowledged state would have to repeat every change
+ * that is still in flight. Acknowledgements only tell us the client keeps up: when too many messages are outstanding,
+ * or the client asks for a resync because it lost track, the baselines are dropped and the client gets a full record
+ * of every aircraft in the session. A new subscriber starts out that way.
+ */
+class Subscriber
+{
+
+    private final Session connection;
+    private final String callsign;
+
+    /** The tick on which each aircraft was last sent. */
+    private final Map<String,Long> lastSent = new HashMap<>();
+    /** Changes that were not yet due or not yet sent, by callsign, with null for a removal. */
+    private final Map<String,AircraftInfo> deferred = new HashMap<>();
+
+    /** The client state after the last message sent, by callsign. */
+    private final Map<String,AircraftInfo> baselines = new HashMap<>();
+    private long lastSeq = 0;
+    /** The last message sent before the baselines were dropped, so only later ones count as outstanding. */
+    private long resetSeq = 0;
+
+    private final AtomicLong ackedSeq = new AtomicLong();
+    private final AtomicBoolean resync = new AtomicBoolean(true);
+
+    Subscriber(Session connection, String callsign) {
+        this.connection = connection;
+        this.callsign = callsign;
+    }
+
+    Session getConnection() {
+        return connection;
+    }
+
+    String getCallsign() {
+        return callsign;
+    }
+
+    Map<String,Long> getLastSent() {
+        return lastSent;
+    }
+
+    Map<String,AircraftInfo> getDeferred() {
+        return deferred;
+    }
+
+    Map<String,AircraftInfo> getBaselines() {
+        return baselines;
+    }
+
+    /**
+     * Record that the client has processed all messages up to and including the given one. Called from any thread.
+     */
+    void ack(long seq) {
+        ackedSeq.accumulateAndGet(seq, Math::max);
+    }
+
+    /**
+     * Send full records from the next tick on. Called from any thread.
+     */
+    void requestResync() {
+        resync.set(true);
+    }
+
+    /**
+     * Drop the baselines if the client is new, asked for it, or stopped acknowledging. Called at the start of a tick.
+     * @param maxUnacked The number of outstanding messages after which we start over with full records.
+     * @return true if the baselines were dropped, and the client must be sent every aircraft.
+     */
+    boolean processAcks(int maxUnacked) {
+        if (resync.getAndSet(false) || ((lastSeq - Math.max(ackedSeq.get(), resetSeq)) > maxUnacked)) {
+            baselines.clear();
+            resetSeq = lastSeq;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remember a message that is about to be sent.
+     * @param states The client state of each aircraft in the message, after processing it.
+     * @return The message's sequence number.
+     */
+    long sent(Map<String,AircraftInfo> states) {
+        baselines.putAll(states);
+        return ++lastSeq;
+    }
+
+    /**
+     * Drop what we know about an aircraft, because its removal was sent.
+     */
+    void forget(String aircraft) {
+        lastSent.remove(aircraft);
+        baselines.remove(aircraft);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.push;
+
+import nl.rakis.fs.api.rules.AircraftRules;
+import nl.rakis.fs.api.state.AircraftRegistry;
+import nl.rakis.fs.auth.Token;
+import nl.rakis.fs.auth.TokenVerifier;
+import nl.rakis.fs.info.AircraftInfo;
+import nl.rakis.fs.info.BinaryCodec;
+import nl.rakis.fs.info.FSData;
+import nl.rakis.fs.info.JsonFields;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+import javax.websocket.CloseReason;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.Session;
+import javax.websocket.server.ServerEndpoint;
+import javax.ws.rs.WebApplicationException;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * WebSocket endpoint for live traffic. The connection is authenticated once, with the usual "Bearer ..." value either
+ * in a "token" query parameter, or in the "token" field of an "Auth" message that must be the first one sent, and then
+ * follows the token's session. Handshake headers are not used, because the only place to keep them is the endpoint
+ * configuration, which all connections share. Aircraft changes in that session are pushed as "Traffic" messages on every
+ * tick of the TrafficHub, which the client acknowledges with "Ack" messages. The client can send updates for its own
+ * aircraft as AircraftInfo JSON objects (of type "Aircraft"), or as binary messages encoded with the BinaryCodec.
+ * Messages of any other type are refused with an "Error" message.
+ */
+@ServerEndpoint("/traffic")
+public class TrafficEndpoint
+{
+
+    private static final Logger log = LogManager.getLogger(TrafficEndpoint.class);
+
+    private static final String PARAM_TOKEN = "token";
+
+    private static final JsonParserFactory parserFactory = Json.createParserFactory(null);
+
+    @Inject
+    private TokenVerifier verifier;
+
+    @Inject
+    private AircraftRegistry registry;
+
+    @Inject
+    private TrafficHub hub;
+
+    private final AircraftRules rules = new AircraftRules();
+
+    // Endpoint instances are per connection, but close and error may come in on another thread
+    private volatile Token token;
+    private volatile Subscriber subscriber;
+
+    @OnOpen
+    public void open(Session connection)
+        throws IOException
+    {
+        final List<String> param = connection.getRequestParameterMap().get(PARAM_TOKEN);
+        if ((param != null) && !param.isEmpty()) {
+            authenticate(connection, param.get(0));
+        }
+    }
+
+    /**
+     * Verify the token, and on success subscribe the connection to the token's session. A bad token closes the
+     * connection.
+     */
+    private void authenticate(Session connection, String authHeader)
+        throws IOException
+    {
+        final Token newToken;
+        try {
+            newToken = verifier.decodeToken(authHeader);
+        }
+        catch (WebApplicationException e) {
+            log.error("authenticate(): Connection \"" + connection.getId() + "\" refused: " + e.getMessage());
+            refuse(connection);
+            return;
+        }
+        token = newToken;
+        if (log.isDebugEnabled()) {
+            log.debug("authenticate(): Connection \"" + connection.getId() + "\" for \"" + token.getUsername() + "\" in session \"" + token.getSession() + "\"");
+        }
+
+        // The first tick sends it every aircraft in the session
+        subscriber = hub.subscribe(token.getSession(), connection, token.getCallsign());
+    }
+
+    private static void refuse(Session connection)
+        throws IOException
+    {
+        connection.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "Not authorized"));
+    }
+
+    @OnMessage
+    public void message(Session connection, String message)
+        throws IOException
+    {
+        final AircraftInfo update = new AircraftInfo();
+        final String[] type = { null };
+        final String[] authHeader = { null };
+        final long[] seq = { 0 };
+        try (JsonParser parser = parserFactory.createParser(new StringReader(message))) {
+            if (!parser.hasNext() || (parser.next() != JsonParser.Event.START_OBJECT)) {
+                sendError(connection, "Expected a JSON object");
+                return;
+            }
+            FSData.readObject(parser, (String field, JsonParser.Event event) -> {
+                switch (field) {
+                    case JsonFields.FIELD_TYPE:
+                        type [0] = FSData.readString(parser, event, null);
+                        return true;
+                    case JsonFields.FIELD_SEQ:
+                        seq [0] = FSData.readLong(parser, event, 0);
+                        return true;
+                    case JsonFields.FIELD_TOKEN:
+                        authHeader [0] = FSData.readString(parser, event, null);
+                        return true;
+                    default:
+                        return update.readField(parser, field, event);
+                }
+            });
+        }
+        catch (JsonException e) {
+            log.error("message(): Bad JSON from \"" + connection.getId() + "\": " + e.getMessage());
+            sendError(connection, "Bad JSON");
+            return;
+        }
+
+        if (token == null) {
+            if (TrafficHub.TYPE_AUTH.equals(type [0])) {
+                authenticate(connection, authHeader [0]);
+            }
+            else {
+                log.error("message(): Connection \"" + connection.getId() + "\" sent \"" + type [0] + "\" before authenticating");
+                refuse(connection);
+            }
+        }
+        else if (TrafficHub.TYPE_AUTH.equals(type [0])) {
+            sendError(connection, "Already authenticated");
+        }
+        else if (TrafficHub.TYPE_ACK.equals(type [0])) {
+            subscriber.ack(seq [0]);
+        }
+        else if (TrafficHub.TYPE_RESYNC.equals(type [0])) {
+            subscriber.requestResync();
+        }
+        else if (!AircraftInfo.AIRCRAFT_TYPE.equals(type [0])) {
+            sendError(connection, "Unknown message type \"" + type [0] + "\"");
+        }
+        else if (update.getCleared() != null) {
+            // Only deltas pushed by the server may clear fields
+            sendError(connection, "\"" + JsonFields.FIELD_CLEARED + "\" cannot be sent to the server");
+        }
+        else {
+            apply(connection, update);
+        }
+    }
+
+    /**
+     * Same as a text message, but with the update encoded with the BinaryCodec.
+     */
+    @OnMessage
+    public void binaryMessage(Session connection, ByteBuffer message)
+        throws IOException
+    {
+        if (token == null) {
+            log.error("binaryMessage(): Connection \"" + connection.getId() + "\" sent an update before authenticating");
+            refuse(connection);
+            return;
+        }
+
+        final byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+
+        final AircraftInfo update;
+        try {
+            update = BinaryCodec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+        }
+        catch (IOException e) {
+            log.error("binaryMessage(): Bad binary aircraft from \"" + connection.getId() + "\": " + e.getMessage());
+            sendError(connection, "Bad binary aircraft");
+            return;
+        }
+        apply(connection, update);
+    }
+
+    private void apply(Session connection, AircraftInfo update) {
+        final String callsign = (update.getAtcId() != null) ? update.getAtcId() : token.getCallsign();
+        try {
+            AircraftInfo result = registry.update(token.getSession(), callsign, (AircraftInfo rec) -> {
+                rules.checkUpdate(rec, update, token);
+                rec.updateFrom(update);
+            });
+            if (result == null) {
+                sendError(connection, "Unknown aircraft \"" + callsign + "\"");
+            }
+        }
+        catch (WebApplicationException e) {
+            sendError(connection, e.getMessage());
+        }
+    }
+
+    @OnClose
+    public void close(Session connection) {
+        if (token != null) {
+            hub.unsubscribe(token.getSession(), connection);
+        }
+    }
+
+    @OnError
+    public void error(Session connection, Throwable t) {
+        log.error("error(): Connection \"" + connection.getId() + "\" failed", t);
+
+        close(connection);
+    }
+
+    private static void sendError(Session connection, String message) {
+        TrafficHub.send(connection, TrafficHub.encodeMessage(TrafficHub.TYPE_ERROR, JsonFields.FIELD_MESSAGE, message));
+    }
+}
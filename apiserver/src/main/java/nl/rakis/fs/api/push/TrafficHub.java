@@ -0,0 +1,387 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.push;
+
+import nl.rakis.fs.api.state.AircraftListener;
+import nl.rakis.fs.api.state.AircraftRegistry;
+import nl.rakis.fs.config.Config;
+import nl.rakis.fs.info.AircraftInfo;
+import nl.rakis.fs.info.FSData;
+import nl.rakis.fs.info.JsonFields;
+import nl.rakis.fs.info.LocationInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps track of the WebSocket connections per session, and pushes aircraft changes from the AircraftRegistry to
+ * every connection in the aircraft's session.
+ *
+ * Changes are not sent right away. Every session with subscribers has a SessionChannel that collects them, keeping
+ * only the last change per callsign, and sends them on a fixed tick as a "Traffic" message with a sequence number.
+ * Aircraft records in it are deltas against what the client acknowledged (with an "Ack" message with that sequence
+ * number), and should be merged into the client's own state. A client that lost track sends "Resync" to get full
+ * records again. The ticks of all sessions run on a bounded pool of threads.
+ *
+ * What a connection gets depends on how far away the aircraft are from the connection's own aircraft: nearby
+ * aircraft on every tick, mid-range aircraft less often, and far away aircraft only as an occasional summary with
+ * just their identification and location. Updates that match what clients can predict with dead reckoning are not
+ * pushed at all.
+ */
+@ApplicationScoped
+public class TrafficHub
+    implements AircraftListener
+{
+
+    private static final Logger log = LogManager.getLogger(TrafficHub.class);
+
+    public static final String CFG_PUSH_TICK = "nl.rakis.fs.api.push.tick";
+    public static final String DEF_PUSH_TICK = "100";
+    public static final String CFG_PUSH_THREADS = "nl.rakis.fs.api.push.threads";
+    public static final String DEF_PUSH_THREADS = "4";
+    public static final String CFG_INTEREST_NEAR = "nl.rakis.fs.api.interest.near";
+    public static final String DEF_INTEREST_NEAR = "40";
+    public static final String CFG_INTEREST_MID = "nl.rakis.fs.api.interest.mid";
+    public static final String DEF_INTEREST_MID = "200";
+    public static final String CFG_INTEREST_MID_INTERVAL = "nl.rakis.fs.api.interest.mid.interval";
+    public static final String DEF_INTEREST_MID_INTERVAL = "5";
+    public static final String CFG_INTEREST_FAR_INTERVAL = "nl.rakis.fs.api.interest.far.interval";
+    public static final String DEF_INTEREST_FAR_INTERVAL = "50";
+    public static final String CFG_DR_ERROR = "nl.rakis.fs.api.deadreckoning.error";
+    public static final String DEF_DR_ERROR = "0.1";
+    public static final String CFG_DR_ALTITUDE = "nl.rakis.fs.api.deadreckoning.altitude";
+    public static final String DEF_DR_ALTITUDE = "100";
+    public static final String CFG_DR_MAXINTERVAL = "nl.rakis.fs.api.deadreckoning.maxinterval";
+    public static final String DEF_DR_MAXINTERVAL = "5000";
+
+    public static final String TYPE_TRAFFIC = "Traffic";
+    public static final String TYPE_REMOVED = "AircraftRemoved";
+    public static final String TYPE_ACK = "Ack";
+    public static final String TYPE_RESYNC = "Resync";
+    public static final String TYPE_ERROR = "Error";
+    public static final String TYPE_AUTH = "Auth";
+
+    /** The most messages that may wait for one connection. */
+    static final int MAX_QUEUED = 1000;
+
+    private static final String PROP_OUTBOX = "nl.rakis.fs.api.push.outbox";
+
+    /**
+     * The messages waiting for one connection, kept in the connection's user properties.
+     */
+    private static final class Outbox
+    {
+        private final Queue<String> queue = new ArrayDeque<>();
+        private boolean sending;
+    }
+
+    private static final JsonGeneratorFactory generatorFactory = Json.createGeneratorFactory(null);
+
+    @Inject
+    private Config config;
+
+    @Inject
+    private AircraftRegistry registry;
+
+    private final ConcurrentMap<String,SessionChannel> channels = new ConcurrentHashMap<>();
+
+    private long tickMillis;
+    private InterestPolicy policy;
+    private DeadReckoning deadReckoning;
+    private ScheduledExecutorService ticker;
+
+    @PostConstruct
+    private void init()
+    {
+        log.debug("init()");
+
+        long tick = Long.parseLong(DEF_PUSH_TICK);
+        int threads = Integer.parseInt(DEF_PUSH_THREADS);
+        try {
+            tick = Long.parseLong(config.get(CFG_PUSH_TICK, DEF_PUSH_TICK).trim());
+            threads = Integer.parseInt(config.get(CFG_PUSH_THREADS, DEF_PUSH_THREADS).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init(): Bad push setting, using defaults", e);
+        }
+        tickMillis = Math.max(1L, tick);
+
+        double near = Double.parseDouble(DEF_INTEREST_NEAR);
+        double mid = Double.parseDouble(DEF_INTEREST_MID);
+        int midInterval = Integer.parseInt(DEF_INTEREST_MID_INTERVAL);
+        int farInterval = Integer.parseInt(DEF_INTEREST_FAR_INTERVAL);
+        try {
+            near = Double.parseDouble(config.get(CFG_INTEREST_NEAR, DEF_INTEREST_NEAR).trim());
+            mid = Double.parseDouble(config.get(CFG_INTEREST_MID, DEF_INTEREST_MID).trim());
+            midInterval = Integer.parseInt(config.get(CFG_INTEREST_MID_INTERVAL, DEF_INTEREST_MID_INTERVAL).trim());
+            farInterval = Integer.parseInt(config.get(CFG_INTEREST_FAR_INTERVAL, DEF_INTEREST_FAR_INTERVAL).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init(): Bad interest setting, using defaults", e);
+        }
+        policy = new InterestPolicy(near, mid, midInterval, farInterval);
+
+        double drError = Double.parseDouble(DEF_DR_ERROR);
+        double drAltitude = Double.parseDouble(DEF_DR_ALTITUDE);
+        long drInterval = Long.parseLong(DEF_DR_MAXINTERVAL);
+        try {
+            drError = Double.parseDouble(config.get(CFG_DR_ERROR, DEF_DR_ERROR).trim());
+            drAltitude = Double.parseDouble(config.get(CFG_DR_ALTITUDE, DEF_DR_ALTITUDE).trim());
+            drInterval = Long.parseLong(config.get(CFG_DR_MAXINTERVAL, DEF_DR_MAXINTERVAL).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init(): Bad dead reckoning setting, using defaults", e);
+        }
+        deadReckoning = new DeadReckoning(drError, drAltitude, drInterval);
+
+        final AtomicInteger threadNr = new AtomicInteger();
+        ticker = Executors.newScheduledThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "TrafficHub-tick-" + threadNr.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        registry.addListener(this);
+        log.debug("init(): Done");
+    }
+
+    @PreDestroy
+    private void destroy()
+    {
+        log.debug("destroy()");
+
+        registry.removeListener(this);
+        ticker.shutdownNow();
+    }
+
+    /**
+     * Start pushing changes in a session to a connection.
+     * @param session The session to follow.
+     * @param connection The WebSocket connection.
+     * @param callsign The callsign of the connection's own aircraft, or null if it has none.
+     * @return The subscription, for acknowledgements.
+     */
+    Subscriber subscribe(String session, Session connection, String callsign) {
+        if (log.isDebugEnabled()) {
+            log.debug("subscribe(\"" + session + "\", \"" + connection.getId() + "\")");
+        }
+        final Subscriber[] subscriber = { null };
+        channels.compute(session, (name, channel) -> {
+            final SessionChannel result = (channel == null)
+                    ? new SessionChannel(name, policy, deadReckoning, c -> locationOf(name, c), () -> registry.list(name))
+                    : channel;
+            subscriber [0] = result.add(connection, callsign);
+            if (channel == null) {
+                result.start(ticker, tickMillis);
+            }
+            return result;
+        });
+        return subscriber [0];
+    }
+
+    /**
+     * Stop pushing to a connection.
+     * @param session The session the connection followed.
+     * @param connection The WebSocket connection.
+     */
+    public void unsubscribe(String session, Session connection) {
+        if (log.isDebugEnabled()) {
+            log.debug("unsubscribe(\"" + session + "\", \"" + connection.getId() + "\")");
+        }
+        channels.computeIfPresent(session, (name, channel) -> {
+            channel.remove(connection);
+            if (channel.isIdle()) {
+                channel.stop();
+                return null;
+            }
+            return channel;
+        });
+    }
+
+    private LocationInfo locationOf(String session, String callsign) {
+        final AircraftInfo aircraft = registry.get(session, callsign);
+
+        return (aircraft == null) ? null : aircraft.getLocation();
+    }
+
+    @Override
+    public void aircraftChanged(String session, AircraftInfo aircraft) {
+        final SessionChannel channel = channels.get(session);
+        if (channel != null) {
+            channel.changed(aircraft.getAtcId(), aircraft);
+        }
+    }
+
+    @Override
+    public void aircraftRemoved(String session, String callsign) {
+        final SessionChannel channel = channels.get(session);
+        if (channel != null) {
+            channel.changed(callsign, null);
+        }
+    }
+
+    /**
+     * Send a message without waiting for it to be written. Only one message per connection is written at a time, the
+     * others wait in order. A client that lets more than MAX_QUEUED messages pile up is too slow to follow the traffic,
+     * and is disconnected so it can come back and start again from the current state.
+     * @param connection The WebSocket connection.
+     * @param message The encoded message.
+     */
+    public static void send(Session connection, String message) {
+        if (!connection.isOpen()) {
+            return;
+        }
+        final Outbox outbox = (Outbox) connection.getUserProperties().computeIfAbsent(PROP_OUTBOX, key -> new Outbox());
+        final boolean tooSlow;
+        synchronized (outbox) {
+            if (!outbox.sending) {
+                outbox.sending = true;
+                tooSlow = false;
+            }
+            else if (outbox.queue.size() < MAX_QUEUED) {
+                outbox.queue.add(message);
+                return;
+            }
+            else {
+                outbox.queue.clear();
+                tooSlow = true;
+            }
+        }
+        if (tooSlow) {
+            log.warn("send(): Connection \"" + connection.getId() + "\" cannot keep up, closing it");
+            try {
+                connection.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Too slow"));
+            }
+            catch (IOException e) {
+                log.error("send(): Cannot close \"" + connection.getId() + "\": " + e.getMessage());
+            }
+        }
+        else {
+            write(connection, outbox, message);
+        }
+    }
+
+    /**
+     * Write a message, and when that is done the next one waiting.
+     */
+    private static void write(Session connection, Outbox outbox, String message) {
+        try {
+            connection.getAsyncRemote().sendText(message, result -> {
+                if (!result.isOK()) {
+                    log.error("write(): Failed to send to \"" + connection.getId() + "\"", result.getException());
+                }
+                final String next;
+                synchronized (outbox) {
+                    next = outbox.queue.poll();
+                    outbox.sending = (next != null);
+                }
+                if (next != null) {
+                    write(connection, outbox, next);
+                }
+            });
+        }
+        catch (IllegalStateException e) {
+            log.error("write(): Cannot send to \"" + connection.getId() + "\": " + e.getMessage());
+            synchronized (outbox) {
+                outbox.queue.clear();
+                outbox.sending = false;
+            }
+        }
+    }
+
+    /**
+     * @return true if a message to the connection is still being written, or waiting to be.
+     */
+    static boolean isSending(Session connection) {
+        final Outbox outbox = (Outbox) connection.getUserProperties().get(PROP_OUTBOX);
+        if (outbox == null) {
+            return false;
+        }
+        synchronized (outbox) {
+            return outbox.sending;
+        }
+    }
+
+    public static String encode(AircraftInfo aircraft) {
+        final StringWriter result = new StringWriter();
+        try (JsonGenerator gen = generatorFactory.createGenerator(result)) {
+            aircraft.writeTo(gen);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Return the state a client gets to when it only receives the identification and location of an aircraft.
+     * @param aircraft The current state.
+     * @param baseline The state the client has, or null if it has none.
+     */
+    public static AircraftInfo summaryOf(AircraftInfo aircraft, AircraftInfo baseline) {
+        final AircraftInfo result = (baseline == null) ? new AircraftInfo(aircraft.getAtcId()) : baseline.copy();
+        result.setTitle(aircraft.getTitle());
+        result.setAtcType(aircraft.getAtcType());
+        result.setAtcModel(aircraft.getAtcModel());
+        result.setLocation(aircraft.getLocation());
+
+        return result;
+    }
+
+    public static String encodeRemoved(String callsign) {
+        return encodeMessage(TYPE_REMOVED, JsonFields.FIELD_ATC_ID, callsign);
+    }
+
+    /**
+     * Combine encoded records into a traffic message.
+     * @param seq The message's sequence number, which the client acknowledges.
+     * @param elements The encoded records.
+     */
+    public static String trafficMessage(long seq, Collection<String> elements) {
+        return elements.stream().collect(Collectors.joining(",",
+                "{\"" + JsonFields.FIELD_TYPE + "\":\"" + TYPE_TRAFFIC + "\",\"" + JsonFields.FIELD_SEQ + "\":" + seq +
+                ",\"" + JsonFields.FIELD_CHANGES + "\":[", "]}"));
+    }
+
+    public static String encodeMessage(String type, String field, String value) {
+        final StringWriter result = new StringWriter();
+        try (JsonGenerator gen = generatorFactory.createGenerator(result)) {
+            gen.writeStartObject()
+               .write(JsonFields.FIELD_TYPE, type);
+            FSData.writeIf(gen, field, value);
+            gen.writeEnd();
+        }
+        return result.toString();
+    }
+}
@@ -20,7 +20,6 @@ import nl.rakis.fs.auth.Token;
 import nl.rakis.fs.info.AircraftInfo;
 import nl.rakis.fs.info.JsonFields;
 
-import javax.json.JsonObject;
 import javax.ws.rs.BadRequestException;
 import javax.ws.rs.NotAuthorizedException;
 
@@ -32,25 +31,25 @@ public class AircraftRules extends ApiRules<AircraftInfo>
     }
 
     @Override
-    public void checkUpdate(AircraftInfo rec, JsonObject obj, Token token) throws NotAuthorizedException, BadRequestException {
+    public void checkUpdate(AircraftInfo rec, AircraftInfo update, Token token) throws NotAuthorizedException, BadRequestException {
         if (!token.getUsername().equals(rec.getUsername())) {
             throw new NotAuthorizedException("Not your aircraft");
         }
-        if (!obj.isNull(JsonFields.FIELD_USERNAME) && !rec.getUsername().equals(obj.getString(JsonFields.FIELD_USERNAME))) {
+        if ((update.getUsername() != null) && !rec.getUsername().equals(update.getUsername())) {
             throw new BadRequestException("Cannot give away aircraft");
         }
-        if (!obj.isNull(JsonFields.FIELD_ATC_ID) && !rec.getAtcId().equals(obj.getString(JsonFields.FIELD_ATC_ID))) {
+        if ((update.getAtcId() != null) && !rec.getAtcId().equals(update.getAtcId())) {
             throw new BadRequestException("Cannot change ATC Id (callsign)");
         }
     }
 
     @Override
-    public void checkCreate(JsonObject obj, Token token) throws NotAuthorizedException, BadRequestException {
-        required(obj, JsonFields.FIELD_USERNAME);
-        if (!token.getUsername().equals(obj.getString(JsonFields.FIELD_USERNAME))) {
+    public void checkCreate(AircraftInfo rec, Token token) throws NotAuthorizedException, BadRequestException {
+        required(JsonFields.FIELD_USERNAME, rec.getUsername());
+        if (!token.getUsername().equals(rec.getUsername())) {
             throw new NotAuthorizedException("Cannot create other people's aircraft");
         }
-        required(obj, JsonFields.FIELD_TITLE);
-        required(obj, JsonFields.FIELD_ATC_ID);
+        required(JsonFields.FIELD_TITLE, rec.getTitle());
+        required(JsonFields.FIELD_ATC_ID, rec.getAtcId());
     }
 }
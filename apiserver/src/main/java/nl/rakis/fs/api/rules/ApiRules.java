@@ -19,7 +19,6 @@ package nl.rakis.fs.api.rules;
 import nl.rakis.fs.auth.Token;
 import nl.rakis.fs.info.FSData;
 
-import javax.json.JsonObject;
 import javax.ws.rs.BadRequestException;
 import javax.ws.rs.NotAuthorizedException;
 
@@ -27,12 +26,18 @@ public abstract class ApiRules<T extends FSData> {
 
     public abstract void cleanRecord(T rec, Token token) throws NotAuthorizedException;
 
-    public abstract void checkUpdate(T rec, JsonObject obj, Token token) throws NotAuthorizedException, BadRequestException;
+    /**
+     * Check an update before it is applied.
+     * @param rec The current record.
+     * @param update The update, with only the fields that should change set.
+     * @param token The caller's token.
+     */
+    public abstract void checkUpdate(T rec, T update, Token token) throws NotAuthorizedException, BadRequestException;
 
-    public abstract void checkCreate(JsonObject obj, Token token) throws NotAuthorizedException, BadRequestException;
+    public abstract void checkCreate(T rec, Token token) throws NotAuthorizedException, BadRequestException;
 
-    protected void required(JsonObject obj, String field) throws BadRequestException {
-        if (obj.isNull(field)) {
+    public void required(String field, Object value) throws BadRequestException {
+        if (value == null) {
             throw new BadRequestException("Missing field \"" + field + "\"");
         }
     }
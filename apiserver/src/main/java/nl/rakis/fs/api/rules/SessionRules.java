@@ -17,9 +17,9 @@
 package nl.rakis.fs.api.rules;
 
 import nl.rakis.fs.auth.Token;
+import nl.rakis.fs.info.JsonFields;
 import nl.rakis.fs.info.SessionInfo;
 
-import javax.json.JsonObject;
 import javax.ws.rs.BadRequestException;
 import javax.ws.rs.NotAuthorizedException;
 
@@ -34,16 +34,23 @@ public class SessionRules
     }
 
     @Override
-    public void checkUpdate(SessionInfo rec, JsonObject obj, Token token)
+    public void checkUpdate(SessionInfo rec, SessionInfo update, Token token)
             throws NotAuthorizedException, BadRequestException
     {
-        //TODO
+        // Sessions have no owner, so only those logged in to it may change one
+        if (!rec.getName().equals(token.getSession())) {
+            throw new NotAuthorizedException("Not your session");
+        }
+        if ((update.getName() != null) && !rec.getName().equals(update.getName())) {
+            throw new BadRequestException("Cannot rename a session");
+        }
     }
 
     @Override
-    public void checkCreate(JsonObject obj, Token token)
+    public void checkCreate(SessionInfo rec, Token token)
             throws NotAuthorizedException, BadRequestException
     {
+        required(JsonFields.FIELD_NAME, rec.getName());
         //TODO
     }
 }
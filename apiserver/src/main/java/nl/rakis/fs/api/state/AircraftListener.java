@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.state;
+
+import nl.rakis.fs.info.AircraftInfo;
+
+/**
+ * Gets told about changes in the AircraftRegistry. Listeners are called on the thread making the change, while it
+ * holds the aircraft's lock, so they should return quickly.
+ */
+public interface AircraftListener
+{
+    /**
+     * An aircraft was created or updated.
+     * @param session The session the aircraft flies in.
+     * @param aircraft The new state. This is a shared snapshot, so don't change it.
+     */
+    void aircraftChanged(String session, AircraftInfo aircraft);
+
+    /**
+     * An aircraft was removed, either explicitly or because it went stale.
+     * @param session The session the aircraft flew in.
+     * @param callsign The aircraft's callsign.
+     */
+    void aircraftRemoved(String session, String callsign);
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.state;
+
+import nl.rakis.fs.config.Config;
+import nl.rakis.fs.info.AircraftInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * In-memory state of all aircraft, per session and callsign.
+ *
+ * Every aircraft has its own lock, which is only taken by writers. An update works on a copy and then publishes
+ * it, so readers never block and always see a consistent record. Removal marks the entry as dead under the same
+ * lock, so an update that raced with it fails as if the aircraft was unknown, and a late update can never report
+ * an aircraft that listeners were already told is gone. Records returned from this registry are shared snapshots
+ * and must not be changed by the caller.
+ *
+ * Every published record carries a version, so clients can use it for conditional requests. Versions come from a
+ * single counter for the whole registry, so an aircraft that is removed and created again never repeats a version
+ * a client may still hold for its previous incarnation.
+ *
+ * Changes are reported to registered AircraftListeners.
+ */
+@ApplicationScoped
+public class AircraftRegistry
+{
+
+    private static final Logger log = LogManager.getLogger(AircraftRegistry.class);
+
+    public static final String CFG_AIRCRAFT_STALE = "nl.rakis.fs.api.aircraft.stale";
+    public static final String DEF_AIRCRAFT_STALE = "60";
+
+    private static final class Entry
+    {
+        private volatile AircraftInfo current;
+        private volatile long lastUpdate;
+        /** Set under the entry's lock once it has been taken out of the registry. */
+        private boolean removed;
+
+        Entry(AircraftInfo aircraft) {
+            this.current = aircraft;
+            this.lastUpdate = System.currentTimeMillis();
+        }
+    }
+
+    @Inject
+    private Config config;
+
+    private final ConcurrentMap<String,ConcurrentMap<String,Entry>> sessions = new ConcurrentHashMap<>();
+    private final List<AircraftListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong versions = new AtomicLong();
+
+    private long staleMillis;
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    private void init()
+    {
+        log.debug("init()");
+
+        long staleSecs = Long.parseLong(DEF_AIRCRAFT_STALE);
+        try {
+            staleSecs = Long.parseLong(config.get(CFG_AIRCRAFT_STALE, DEF_AIRCRAFT_STALE).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init(): Bad value for \"" + CFG_AIRCRAFT_STALE + "\", using " + DEF_AIRCRAFT_STALE);
+        }
+        staleMillis = staleSecs * 1000L;
+
+        if (staleSecs > 0) {
+            final long sweepSecs = Math.max(1L, staleSecs / 2);
+            sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "AircraftRegistry-sweep");
+                t.setDaemon(true);
+                return t;
+            });
+            sweeper.scheduleWithFixedDelay(this::evictStale, sweepSecs, sweepSecs, TimeUnit.SECONDS);
+        }
+        log.debug("init(): Done");
+    }
+
+    @PreDestroy
+    private void destroy()
+    {
+        log.debug("destroy()");
+
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    public void addListener(AircraftListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(AircraftListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireChanged(String session, AircraftInfo aircraft) {
+        for (AircraftListener listener: listeners) {
+            try {
+                listener.aircraftChanged(session, aircraft);
+            }
+            catch (RuntimeException e) {
+                log.error("fireChanged(): Listener failed", e);
+            }
+        }
+    }
+
+    private void fireRemoved(String session, String callsign) {
+        for (AircraftListener listener: listeners) {
+            try {
+                listener.aircraftRemoved(session, callsign);
+            }
+            catch (RuntimeException e) {
+                log.error("fireRemoved(): Listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Return the current state of an aircraft.
+     * @param session The session the aircraft flies in.
+     * @param callsign The aircraft's callsign.
+     * @return The aircraft, or null if we don't know it.
+     */
+    public AircraftInfo get(String session, String callsign) {
+        final Map<String,Entry> aircraft = sessions.get(session);
+        final Entry entry = (aircraft == null) ? null : aircraft.get(callsign);
+
+        return (entry == null) ? null : entry.current;
+    }
+
+    /**
+     * Return all aircraft in a session. Only this session's aircraft are looked at.
+     * @param session The session.
+     * @return The aircraft in the session, in no particular order.
+     */
+    public List<AircraftInfo> list(String session) {
+        final Map<String,Entry> aircraft = sessions.get(session);
+        if (aircraft == null) {
+            return Collections.emptyList();
+        }
+
+        final Collection<Entry> entries = aircraft.values();
+        final List<AircraftInfo> result = new ArrayList<>(entries.size());
+        for (Entry entry: entries) {
+            result.add(entry.current);
+        }
+        return result;
+    }
+
+    /**
+     * Add a new aircraft to a session.
+     * @param session The session the aircraft flies in.
+     * @param aircraft The aircraft. The registry takes ownership and sets its version, so don't change it afterwards.
+     * @return false if an aircraft with this callsign already exists in the session.
+     */
+    public boolean create(String session, AircraftInfo aircraft) {
+        if (log.isDebugEnabled()) {
+            log.debug("create(\"" + session + "\", \"" + aircraft.getAtcId() + "\")");
+        }
+        aircraft.setVersion(versions.incrementAndGet());
+        final Entry entry = new Entry(aircraft);
+        final boolean[] created = { false };
+
+        // Session maps are only created and removed inside compute(), so the sweeper cannot drop a map we just used.
+        sessions.compute(session, (name, aircraftMap) -> {
+            final ConcurrentMap<String,Entry> result = (aircraftMap == null) ? new ConcurrentHashMap<>() : aircraftMap;
+            created [0] = (result.putIfAbsent(aircraft.getAtcId(), entry) == null);
+            return result;
+        });
+        if (created [0]) {
+            synchronized (entry) {
+                if (!entry.removed) {
+                    fireChanged(session, aircraft);
+                }
+            }
+        }
+        return created [0];
+    }
+
+    /**
+     * Update an aircraft. The updater is called with a private copy while holding this aircraft's lock, and the
+     * copy is published with a new version when it returns normally. If it throws, nothing changes. The copy
+     * still carries the current version, so the updater can check it for optimistic concurrency.
+     * @param session The session the aircraft flies in.
+     * @param callsign The aircraft's callsign.
+     * @param updater Code to change the aircraft.
+     * @return The new state, or null if we don't know the aircraft.
+     */
+    public AircraftInfo update(String session, String callsign, Consumer<AircraftInfo> updater) {
+        final Map<String,Entry> aircraft = sessions.get(session);
+        final Entry entry = (aircraft == null) ? null : aircraft.get(callsign);
+        if (entry == null) {
+            return null;
+        }
+
+        synchronized (entry) {
+            if (entry.removed) {
+                return null;
+            }
+            final AircraftInfo result = entry.current.copy();
+            updater.accept(result);
+            result.setVersion(versions.incrementAndGet());
+            entry.current = result;
+            entry.lastUpdate = System.currentTimeMillis();
+            fireChanged(session, result);
+
+            return result;
+        }
+    }
+
+    /**
+     * Remove an aircraft.
+     * @param session The session the aircraft flies in.
+     * @param callsign The aircraft's callsign.
+     * @return The removed aircraft, or null if we didn't know it.
+     */
+    public AircraftInfo remove(String session, String callsign) {
+        final Map<String,Entry> aircraft = sessions.get(session);
+        final Entry entry = (aircraft == null) ? null : aircraft.remove(callsign);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            entry.removed = true;
+            fireRemoved(session, callsign);
+
+            return entry.current;
+        }
+    }
+
+    /**
+     * @param session The session.
+     * @return The number of aircraft in the session.
+     */
+    public int size(String session) {
+        final Map<String,Entry> aircraft = sessions.get(session);
+
+        return (aircraft == null) ? 0 : aircraft.size();
+    }
+
+    /**
+     * Remove aircraft that have not been updated within the configured time, and sessions without aircraft.
+     */
+    void evictStale() {
+        final long limit = System.currentTimeMillis() - staleMillis;
+
+        for (Map.Entry<String,ConcurrentMap<String,Entry>> session: sessions.entrySet()) {
+            for (Map.Entry<String,Entry> aircraft: session.getValue().entrySet()) {
+                final Entry entry = aircraft.getValue();
+                if (entry.lastUpdate >= limit) {
+                    continue;
+                }
+                // Check again under the lock, an update may just have come in
+                synchronized (entry) {
+                    if ((entry.lastUpdate < limit) && session.getValue().remove(aircraft.getKey(), entry)) {
+                        entry.removed = true;
+                        if (log.isInfoEnabled()) {
+                            log.info("evictStale(): Removed \"" + aircraft.getKey() + "\" from session \"" + session.getKey() + "\"");
+                        }
+                        fireRemoved(session.getKey(), aircraft.getKey());
+                    }
+                }
+            }
+            sessions.computeIfPresent(session.getKey(), (name, aircraftMap) -> aircraftMap.isEmpty() ? null : aircraftMap);
+        }
+    }
+}
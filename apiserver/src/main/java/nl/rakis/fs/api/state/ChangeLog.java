@@ -0,0 +1,338 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.state;
+
+import nl.rakis.fs.config.Config;
+import nl.rakis.fs.info.AircraftInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * An ordered log of the aircraft changes per session, for clients that poll instead of holding a WebSocket.
+ *
+ * Every change gets a sequence number, which increases over all sessions. A session keeps its last changes in a
+ * ring buffer of fixed size, so a client can ask for everything after the last sequence number it saw. If that has
+ * already been overwritten, or comes from before a restart, the client is told to get a full snapshot instead.
+ *
+ * Sequence numbers start at the time we started, in microseconds, so every number handed out before a restart is
+ * lower than the first one after it, as long as we made fewer than a thousand changes per millisecond. They stay
+ * well below 2^53, so JavaScript clients can keep them in a plain number.
+ * Clients can also wait for the next change; they are told on a small pool of threads, not on the thread that made
+ * the change.
+ */
+@ApplicationScoped
+public class ChangeLog
+    implements AircraftListener
+{
+
+    private static final Logger log = LogManager.getLogger(ChangeLog.class);
+
+    public static final String CFG_CHANGES_SIZE = "nl.rakis.fs.api.changes.size";
+    public static final String DEF_CHANGES_SIZE = "1024";
+    public static final String CFG_CHANGES_THREADS = "nl.rakis.fs.api.changes.threads";
+    public static final String DEF_CHANGES_THREADS = "2";
+    public static final String CFG_CHANGES_WAIT = "nl.rakis.fs.api.changes.wait";
+    public static final String DEF_CHANGES_WAIT = "30";
+
+    /**
+     * One change. The aircraft is null if it was removed.
+     */
+    public static final class Change
+    {
+        private final long seq;
+        private final String callsign;
+        private final AircraftInfo aircraft;
+
+        Change(long seq, String callsign, AircraftInfo aircraft) {
+            this.seq = seq;
+            this.callsign = callsign;
+            this.aircraft = aircraft;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getCallsign() {
+            return callsign;
+        }
+
+        public AircraftInfo getAircraft() {
+            return aircraft;
+        }
+    }
+
+    /**
+     * The answer to "what changed since N". If resync is set, the changes are empty and the client should get a
+     * full snapshot, and continue from seq.
+     */
+    public static final class Changes
+    {
+        private final long seq;
+        private final boolean resync;
+        private final Collection<Change> changes;
+
+        public Changes(long seq, boolean resync, Collection<Change> changes) {
+            this.seq = seq;
+            this.resync = resync;
+            this.changes = changes;
+        }
+
+        /**
+         * @return The sequence number to ask from next time.
+         */
+        public long getSeq() {
+            return seq;
+        }
+
+        public boolean isResync() {
+            return resync;
+        }
+
+        /**
+         * @return The changes in order, with only the last change per callsign.
+         */
+        public Collection<Change> getChanges() {
+            return changes;
+        }
+    }
+
+    private final class Ring
+    {
+        private final Change[] buffer = new Change[size];
+        private long written;
+        private long lastDropped;
+        private List<Waiter> waiters = new ArrayList<>();
+
+        synchronized Change append(String callsign, AircraftInfo aircraft) {
+            final int pos = (int) (written % buffer.length);
+            if (buffer [pos] != null) {
+                lastDropped = buffer [pos].seq;
+            }
+            // Numbered inside the lock, so the ring stays in order
+            final Change result = new Change(nextSeq.incrementAndGet(), callsign, aircraft);
+            buffer [pos] = result;
+            written++;
+
+            return result;
+        }
+
+        synchronized List<Waiter> takeWaiters() {
+            if (waiters.isEmpty()) {
+                return Collections.emptyList();
+            }
+            final List<Waiter> result = waiters;
+            waiters = new ArrayList<>();
+            return result;
+        }
+
+        synchronized Changes since(long since) {
+            if ((since < lastDropped) || isUnknown(since)) {
+                return new Changes(nextSeq.get(), true, Collections.emptyList());
+            }
+            final Map<String,Change> result = new LinkedHashMap<>();
+            long last = since;
+
+            final long first = Math.max(0L, written - buffer.length);
+            for (long i = first; i < written; i++) {
+                final Change change = buffer [(int) (i % buffer.length)];
+                if (change.seq > since) {
+                    // Keep only the last change per callsign, in the position of that last change
+                    result.remove(change.callsign);
+                    result.put(change.callsign, change);
+                    last = change.seq;
+                }
+            }
+            return new Changes(last, false, result.values());
+        }
+
+        /**
+         * Return the changes, or register the waiter if there are none yet.
+         */
+        synchronized Changes sinceOrWait(long since, Waiter waiter) {
+            final Changes result = since(since);
+            if (result.isResync() || !result.getChanges().isEmpty()) {
+                return result;
+            }
+            waiters.add(waiter);
+            return null;
+        }
+
+        synchronized void cancel(Waiter waiter) {
+            waiters.remove(waiter);
+        }
+    }
+
+    private static final class Waiter
+    {
+        private final long since;
+        private final Consumer<Changes> listener;
+
+        Waiter(long since, Consumer<Changes> listener) {
+            this.since = since;
+            this.listener = listener;
+        }
+    }
+
+    @Inject
+    private Config config;
+
+    @Inject
+    private AircraftRegistry registry;
+
+    private final ConcurrentMap<String,Ring> rings = new ConcurrentHashMap<>();
+    private final long firstSeq = System.currentTimeMillis() * 1000L;
+    private final AtomicLong nextSeq = new AtomicLong(firstSeq);
+
+    private int size;
+    private long maxWait;
+    private ExecutorService notifier;
+
+    @PostConstruct
+    private void init()
+    {
+        log.debug("init()");
+
+        int ringSize = Integer.parseInt(DEF_CHANGES_SIZE);
+        int threads = Integer.parseInt(DEF_CHANGES_THREADS);
+        long wait = Long.parseLong(DEF_CHANGES_WAIT);
+        try {
+            ringSize = Integer.parseInt(config.get(CFG_CHANGES_SIZE, DEF_CHANGES_SIZE).trim());
+            threads = Integer.parseInt(config.get(CFG_CHANGES_THREADS, DEF_CHANGES_THREADS).trim());
+            wait = Long.parseLong(config.get(CFG_CHANGES_WAIT, DEF_CHANGES_WAIT).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init(): Bad change log setting, using defaults", e);
+        }
+        size = Math.max(1, ringSize);
+        maxWait = Math.max(0L, wait);
+
+        final AtomicInteger threadNr = new AtomicInteger();
+        notifier = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "ChangeLog-notify-" + threadNr.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        registry.addListener(this);
+        log.debug("init(): Done");
+    }
+
+    @PreDestroy
+    private void destroy()
+    {
+        log.debug("destroy()");
+
+        registry.removeListener(this);
+        notifier.shutdownNow();
+    }
+
+    /**
+     * @return true if we never handed out this sequence number, e.g. because it is from before a restart.
+     */
+    private boolean isUnknown(long since) {
+        return (since != 0) && ((since < firstSeq) || (since > nextSeq.get()));
+    }
+
+    private Ring ringOf(String session) {
+        return rings.computeIfAbsent(session, name -> new Ring());
+    }
+
+    private void append(String session, String callsign, AircraftInfo aircraft) {
+        final Ring ring = ringOf(session);
+        ring.append(callsign, aircraft);
+
+        for (Waiter waiter: ring.takeWaiters()) {
+            try {
+                notifier.execute(() -> waiter.listener.accept(ring.since(waiter.since)));
+            }
+            catch (RejectedExecutionException e) {
+                log.error("append(): Cannot notify waiter, shutting down?");
+            }
+        }
+    }
+
+    @Override
+    public void aircraftChanged(String session, AircraftInfo aircraft) {
+        append(session, aircraft.getAtcId(), aircraft);
+    }
+
+    @Override
+    public void aircraftRemoved(String session, String callsign) {
+        append(session, callsign, null);
+    }
+
+    /**
+     * @return The maximum number of seconds a client may wait for changes.
+     */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Return the changes in a session after a sequence number.
+     * @param session The session.
+     * @param since The last sequence number the client saw, or 0 if it has seen none. That gives all changes in
+     *              the session if we still have every one of them, and a resync otherwise.
+     * @return The changes, which may be empty.
+     */
+    public Changes since(String session, long since) {
+        final Ring ring = rings.get(session);
+        if (ring == null) {
+            return new Changes(nextSeq.get(), isUnknown(since), Collections.emptyList());
+        }
+        return ring.since(since);
+    }
+
+    /**
+     * Wait for changes in a session after a sequence number. If there are any already, the listener is called right
+     * away on this thread, otherwise it is called on another thread as soon as there are.
+     * @param session The session.
+     * @param since The last sequence number the client saw.
+     * @param listener Gets the changes, at most once.
+     * @return Code that stops the waiting, e.g. when the client gives up.
+     */
+    public Runnable await(String session, long since, Consumer<Changes> listener) {
+        final Ring ring = ringOf(session);
+        final Waiter waiter = new Waiter(since, listener);
+
+        final Changes result = ring.sinceOrWait(since, waiter);
+        if (result != null) {
+            listener.accept(result);
+        }
+        return () -> ring.cancel(waiter);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.state;
+
+import nl.rakis.fs.info.SessionInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * In-memory state of all sessions, by name.
+ *
+ * Like the AircraftRegistry, updates work on a copy that is published with a new version, so records returned
+ * from this registry are shared snapshots and must not be changed by the caller. Versions come from a single
+ * counter for all sessions, so they are never repeated.
+ */
+@ApplicationScoped
+public class SessionRegistry
+{
+
+    private static final Logger log = LogManager.getLogger(SessionRegistry.class);
+
+    public static final String DEFAULT_SESSION = "Sundowners";
+    public static final String DEFAULT_DESCRIPTION = "FSGG Sundowners";
+
+    private final ConcurrentMap<String,SessionInfo> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+
+    @PostConstruct
+    private void init()
+    {
+        log.debug("init()");
+
+        create(newSession(DEFAULT_SESSION));
+    }
+
+    /**
+     * @return An unversioned session with the default description.
+     */
+    private static SessionInfo newSession(String name) {
+        return new SessionInfo(name, DEFAULT_DESCRIPTION);
+    }
+
+    /**
+     * Return the current state of a session. Sessions are named by the clients when they log in, so an unknown
+     * session is answered with an unversioned default. That is not stored, only create() and update() add sessions.
+     * @param name The session's name.
+     * @return The session.
+     */
+    public SessionInfo get(String name) {
+        final SessionInfo result = sessions.get(name);
+
+        return (result == null) ? newSession(name) : result;
+    }
+
+    /**
+     * @return All known sessions, in no particular order.
+     */
+    public List<SessionInfo> list() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    /**
+     * Add a new session.
+     * @param session The session. The registry takes ownership and sets its version, so don't change it afterwards.
+     * @return false if a session with this name already exists.
+     */
+    public boolean create(SessionInfo session) {
+        if (log.isDebugEnabled()) {
+            log.debug("create(\"" + session.getName() + "\")");
+        }
+        session.setVersion(versions.incrementAndGet());
+
+        return sessions.putIfAbsent(session.getName(), session) == null;
+    }
+
+    /**
+     * Update a session. The updater is called with a private copy, and the copy is published with a new version
+     * when it returns normally. If it throws, nothing changes. The copy still carries the current version, so the
+     * updater can check it for optimistic concurrency. An unknown session is created from the unversioned default.
+     * @param name The session's name.
+     * @param updater Code to change the session. It must not change the name.
+     * @return The new state.
+     */
+    public SessionInfo update(String name, Consumer<SessionInfo> updater) {
+        return sessions.compute(name, (key, current) -> {
+            final SessionInfo base = (current == null) ? newSession(key) : current;
+            final SessionInfo result = base.copy();
+            updater.accept(result);
+            result.setName(key);
+            result.setVersion(versions.incrementAndGet());
+            return result;
+        });
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.state;
+
+import nl.rakis.fs.config.Config;
+import nl.rakis.fs.info.AircraftInfo;
+import nl.rakis.fs.info.LocationInfo;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * A grid over latitude and longitude, per session, of all aircraft with a known location. The grid is kept up to
+ * date by listening to the AircraftRegistry, so a query only looks at the cells it covers instead of all aircraft.
+ *
+ * Distances are great circle distances in nautical miles.
+ */
+@ApplicationScoped
+public class SpatialIndex
+    implements AircraftListener
+{
+
+    private static final Logger log = LogManager.getLogger(SpatialIndex.class);
+
+    public static final String CFG_SPATIAL_CELL = "nl.rakis.fs.api.spatial.cell";
+    public static final String DEF_SPATIAL_CELL = "0.5";
+
+    private static final double EARTH_RADIUS_NM = 3440.065;
+    private static final double NM_PER_DEGREE = 60.0;
+
+    /**
+     * An aircraft with its distance to the point a query was about.
+     */
+    public static final class Hit
+    {
+        private final AircraftInfo aircraft;
+        private final double distance;
+
+        Hit(AircraftInfo aircraft, double distance) {
+            this.aircraft = aircraft;
+            this.distance = distance;
+        }
+
+        public AircraftInfo getAircraft() {
+            return aircraft;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+    }
+
+    /**
+     * The cells of one session. Changes hold the read lock, so they can run side by side. Dropping an empty grid holds
+     * the write lock, and marks the grid dead so a change that got hold of it just before moves on to a new one.
+     */
+    private static final class Grid
+    {
+        private final ConcurrentMap<Long,ConcurrentMap<String,AircraftInfo>> cells = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String,Long> cellOf = new ConcurrentHashMap<>();
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private boolean dead;
+    }
+
+    @Inject
+    private Config config;
+
+    @Inject
+    private AircraftRegistry registry;
+
+    private final ConcurrentMap<String,Grid> grids = new ConcurrentHashMap<>();
+
+    private double cellSize;
+    private int latCells;
+    private int lonCells;
+
+    public SpatialIndex() {
+    }
+
+    /**
+     * For use outside the container, with a fixed cell size and without a registry to listen to.
+     */
+    SpatialIndex(double cellSize) {
+        setCellSize(cellSize);
+    }
+
+    private void setCellSize(double size) {
+        cellSize = size;
+        latCells = (int) Math.ceil(180.0 / cellSize);
+        lonCells = (int) Math.ceil(360.0 / cellSize);
+    }
+
+    @PostConstruct
+    private void init()
+    {
+        log.debug("init()");
+
+        double size = Double.parseDouble(DEF_SPATIAL_CELL);
+        try {
+            size = Double.parseDouble(config.get(CFG_SPATIAL_CELL, DEF_SPATIAL_CELL).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init(): Bad value for \"" + CFG_SPATIAL_CELL + "\", using " + DEF_SPATIAL_CELL);
+        }
+        if ((size <= 0.0) || (size > 90.0)) {
+            log.error("init(): Value for \"" + CFG_SPATIAL_CELL + "\" out of range, using " + DEF_SPATIAL_CELL);
+            size = Double.parseDouble(DEF_SPATIAL_CELL);
+        }
+        setCellSize(size);
+
+        registry.addListener(this);
+        log.debug("init(): Done");
+    }
+
+    @PreDestroy
+    private void destroy()
+    {
+        log.debug("destroy()");
+
+        registry.removeListener(this);
+    }
+
+    private int latIndex(double lat) {
+        return Math.max(0, Math.min(latCells - 1, (int) Math.floor((lat + 90.0) / cellSize)));
+    }
+
+    private int lonIndex(double lon) {
+        return Math.floorMod((int) Math.floor((lon + 180.0) / cellSize), lonCells);
+    }
+
+    private long cellKey(int latIdx, int lonIdx) {
+        return ((long) latIdx * lonCells) + lonIdx;
+    }
+
+    @Override
+    public void aircraftChanged(String session, AircraftInfo aircraft) {
+        final LocationInfo location = aircraft.getLocation();
+        if ((location == null) || !location.hasPosition()) {
+            aircraftRemoved(session, aircraft.getAtcId());
+            return;
+        }
+        final String callsign = aircraft.getAtcId();
+        final long key = cellKey(latIndex(location.getLatitude()), lonIndex(location.getLongitude()));
+
+        while (!place(grids.computeIfAbsent(session, name -> new Grid()), callsign, key, aircraft)) {
+            if (log.isDebugEnabled()) {
+                log.debug("aircraftChanged(): Grid for session \"" + session + "\" was dropped, retrying");
+            }
+        }
+    }
+
+    /**
+     * Put an aircraft in its cell.
+     * @return false if the grid was dropped, so nothing was changed.
+     */
+    private static boolean place(Grid grid, String callsign, long key, AircraftInfo aircraft) {
+        grid.lock.readLock().lock();
+        try {
+            if (grid.dead) {
+                return false;
+            }
+            // Changes for one aircraft are serialized by the registry, so only other aircraft can race with us here
+            final Long oldKey = grid.cellOf.put(callsign, key);
+            if ((oldKey != null) && (oldKey != key)) {
+                removeFromCell(grid, oldKey, callsign);
+            }
+            grid.cells.compute(key, (k, cell) -> {
+                final ConcurrentMap<String,AircraftInfo> result = (cell == null) ? new ConcurrentHashMap<>() : cell;
+                result.put(callsign, aircraft);
+                return result;
+            });
+            return true;
+        }
+        finally {
+            grid.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void aircraftRemoved(String session, String callsign) {
+        final Grid grid = grids.get(session);
+        if (grid == null) {
+            return;
+        }
+        grid.lock.readLock().lock();
+        try {
+            final Long oldKey = grid.cellOf.remove(callsign);
+            if (oldKey != null) {
+                removeFromCell(grid, oldKey, callsign);
+            }
+        }
+        finally {
+            grid.lock.readLock().unlock();
+        }
+
+        // Drop the grid of a session without aircraft, or every session ever seen would keep one
+        if (grid.cellOf.isEmpty()) {
+            grid.lock.writeLock().lock();
+            try {
+                if (!grid.dead && grid.cellOf.isEmpty()) {
+                    grid.dead = true;
+                    grids.remove(session, grid);
+                }
+            }
+            finally {
+                grid.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return The number of sessions with aircraft in the index.
+     */
+    int sessionCount() {
+        return grids.size();
+    }
+
+    private static void removeFromCell(Grid grid, long key, String callsign) {
+        grid.cells.computeIfPresent(key, (k, cell) -> {
+            cell.remove(callsign);
+            return cell.isEmpty() ? null : cell;
+        });
+    }
+
+    /**
+     * @return The great circle distance between two points in nautical miles.
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        final double dLat = Math.toRadians(lat2 - lat1);
+        final double dLon = Math.toRadians(lon2 - lon1);
+        final double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                       + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+
+        return 2.0 * EARTH_RADIUS_NM * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    /**
+     * Find all aircraft within a distance of a point.
+     * @param session The session to look in.
+     * @param lat Latitude of the center, in degrees.
+     * @param lon Longitude of the center, in degrees.
+     * @param radius The distance in nautical miles.
+     * @return The aircraft, sorted by distance.
+     */
+    public List<Hit> radius(String session, double lat, double lon, double radius) {
+        final Grid grid = grids.get(session);
+        if (grid == null) {
+            return Collections.emptyList();
+        }
+        final List<Hit> result = new ArrayList<>();
+
+        final double dLat = radius / NM_PER_DEGREE;
+        final double minLat = Math.max(-90.0, lat - dLat);
+        final double maxLat = Math.min(90.0, lat + dLat);
+        final double cosLat = Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))));
+        final double dLon = (cosLat < 1e-9) ? 180.0 : (dLat / cosLat);
+
+        forCells(grid, minLat, maxLat, lon - dLon, lon + dLon, (AircraftInfo aircraft) -> {
+            final LocationInfo location = aircraft.getLocation();
+            final double d = distance(lat, lon, location.getLatitude(), location.getLongitude());
+            if (d <= radius) {
+                result.add(new Hit(aircraft, d));
+            }
+        });
+        result.sort(Comparator.comparingDouble(Hit::getDistance));
+        return result;
+    }
+
+    /**
+     * Find all aircraft within a box. If minLon is larger than maxLon, the box crosses the date line.
+     * @param session The session to look in.
+     * @return The aircraft, in no particular order.
+     */
+    public List<AircraftInfo> box(String session, double minLat, double minLon, double maxLat, double maxLon) {
+        final Grid grid = grids.get(session);
+        if (grid == null) {
+            return Collections.emptyList();
+        }
+        final List<AircraftInfo> result = new ArrayList<>();
+        final double toLon = (maxLon < minLon) ? (maxLon + 360.0) : maxLon;
+
+        forCells(grid, minLat, maxLat, minLon, toLon, (AircraftInfo aircraft) -> {
+            final LocationInfo location = aircraft.getLocation();
+            final double aLat = location.getLatitude();
+            double aLon = location.getLongitude();
+            if (aLon < minLon) {
+                aLon += 360.0;
+            }
+            if ((aLat >= minLat) && (aLat <= maxLat) && (aLon >= minLon) && (aLon <= toLon)) {
+                result.add(aircraft);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Find the aircraft closest to a point. The search radius starts at one cell and doubles until enough aircraft
+     * are found, so it only grows as far as needed.
+     * @param session The session to look in.
+     * @param lat Latitude of the center, in degrees.
+     * @param lon Longitude of the center, in degrees.
+     * @param count The maximum number of aircraft to return.
+     * @return The aircraft, closest first.
+     */
+    public List<Hit> nearest(String session, double lat, double lon, int count) {
+        final Grid grid = grids.get(session);
+        if ((grid == null) || (count <= 0)) {
+            return Collections.emptyList();
+        }
+        final int available = grid.cellOf.size();
+        final double maxRadius = Math.PI * EARTH_RADIUS_NM;
+
+        double radius = cellSize * NM_PER_DEGREE;
+        List<Hit> result = radius(session, lat, lon, radius);
+        while ((result.size() < count) && (result.size() < available) && (radius < maxRadius)) {
+            radius *= 2.0;
+            result = radius(session, lat, lon, radius);
+        }
+        return (result.size() > count) ? new ArrayList<>(result.subList(0, count)) : result;
+    }
+
+    /**
+     * Call the visitor for all aircraft in the cells covering the given range. If the range covers more cells than
+     * are occupied, the occupied cells are filtered instead.
+     */
+    private void forCells(Grid grid, double minLat, double maxLat, double minLon, double maxLon,
+                          Consumer<AircraftInfo> visitor)
+    {
+        final int fromLat = latIndex(minLat);
+        final int toLat = latIndex(maxLat);
+        final int fromLon = (int) Math.floor((minLon + 180.0) / cellSize);
+        final int numLon = Math.min(lonCells, (int) Math.floor((maxLon + 180.0) / cellSize) - fromLon + 1);
+
+        if (((long) (toLat - fromLat + 1) * numLon) > grid.cells.size()) {
+            for (Map.Entry<Long,ConcurrentMap<String,AircraftInfo>> cell: grid.cells.entrySet()) {
+                final int latIdx = (int) (cell.getKey() / lonCells);
+                final int lonIdx = (int) (cell.getKey() % lonCells);
+                if ((latIdx >= fromLat) && (latIdx <= toLat) && (Math.floorMod(lonIdx - fromLon, lonCells) < numLon)) {
+                    cell.getValue().values().forEach(visitor);
+                }
+            }
+        }
+        else {
+            for (int latIdx = fromLat; latIdx <= toLat; latIdx++) {
+                for (int i = 0; i < numLon; i++) {
+                    final Map<String,AircraftInfo> cell = grid.cells.get(cellKey(latIdx, Math.floorMod(fromLon + i, lonCells)));
+                    if (cell != null) {
+                        cell.values().forEach(visitor);
+                    }
+                }
+            }
+        }
+    }
+}
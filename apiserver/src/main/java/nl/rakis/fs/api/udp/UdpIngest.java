@@ -0,0 +1,299 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.udp;
+
+import nl.rakis.fs.api.rules.AircraftRules;
+import nl.rakis.fs.api.state.AircraftRegistry;
+import nl.rakis.fs.auth.Token;
+import nl.rakis.fs.config.Config;
+import nl.rakis.fs.info.AircraftInfo;
+import nl.rakis.fs.info.PositionReport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.Mac;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional UDP listener for PositionReport datagrams. A client first registers its "Authorization" header for one
+ * of its aircraft, and can then send reports tagged with that header. Valid reports go into the AircraftRegistry
+ * just like updates through the AircraftAPI. Reports with a bad tag, or with a sequence number that is not newer
+ * than the last accepted one, are dropped.
+ *
+ * A channel is derived from the header alone, so a header can only be registered for one aircraft at a time.
+ * Registering it again for the same aircraft keeps the channel and its last sequence number, so reports that were
+ * already accepted cannot be replayed.
+ *
+ * All datagrams are handled by one thread, which also owns the per-channel state. The numbers of accepted and
+ * dropped reports are logged every "stats" seconds.
+ */
+@ApplicationScoped
+public class UdpIngest
+{
+
+    private static final Logger log = LogManager.getLogger(UdpIngest.class);
+
+    public static final String CFG_UDP_PORT = "nl.rakis.fs.api.udp.port";
+    public static final String DEF_UDP_PORT = "0";
+    public static final String CFG_UDP_IDLE = "nl.rakis.fs.api.udp.idle";
+    public static final String DEF_UDP_IDLE = "60";
+    public static final String CFG_UDP_STATS = "nl.rakis.fs.api.udp.stats";
+    public static final String DEF_UDP_STATS = "300";
+
+    private static final class Channel
+    {
+        private final Token token;
+        private final String callsign;
+        private final Mac mac;
+
+        private boolean seen = false;
+        private int lastSeq;
+        private volatile long lastUsed;
+
+        Channel(Token token, String callsign, Mac mac) {
+            this.token = token;
+            this.callsign = callsign;
+            this.mac = mac;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    @Inject
+    private Config config;
+
+    @Inject
+    private AircraftRegistry registry;
+
+    private final AircraftRules rules = new AircraftRules();
+
+    private final ConcurrentMap<Long,Channel> channels = new ConcurrentHashMap<>();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private int port;
+    private long idleMillis;
+    private DatagramChannel socket;
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    private void init()
+    {
+        log.debug("init()");
+
+        long idleSecs = Long.parseLong(DEF_UDP_IDLE);
+        long statsSecs = Long.parseLong(DEF_UDP_STATS);
+        try {
+            port = Integer.parseInt(config.get(CFG_UDP_PORT, DEF_UDP_PORT).trim());
+            idleSecs = Long.parseLong(config.get(CFG_UDP_IDLE, DEF_UDP_IDLE).trim());
+            statsSecs = Long.parseLong(config.get(CFG_UDP_STATS, DEF_UDP_STATS).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init(): Bad UDP setting, UDP ingest disabled", e);
+            port = 0;
+        }
+        idleSecs = Math.max(1L, idleSecs);
+        idleMillis = idleSecs * 1000L;
+
+        if (port <= 0) {
+            log.info("init(): UDP ingest disabled");
+            return;
+        }
+        try {
+            socket = DatagramChannel.open();
+            socket.bind(new InetSocketAddress(port));
+        }
+        catch (IOException e) {
+            log.error("init(): Cannot listen on UDP port " + port + ", UDP ingest disabled", e);
+            port = 0;
+            return;
+        }
+
+        final Thread reader = new Thread(this::receive, "UdpIngest-" + port);
+        reader.setDaemon(true);
+        reader.start();
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "UdpIngest-sweep");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::evictIdle, idleSecs, idleSecs, TimeUnit.SECONDS);
+        if (statsSecs > 0) {
+            sweeper.scheduleWithFixedDelay(this::logStatistics, statsSecs, statsSecs, TimeUnit.SECONDS);
+        }
+
+        log.info("init(): Listening for position reports on UDP port " + port);
+    }
+
+    @PreDestroy
+    private void destroy()
+    {
+        log.debug("destroy()");
+
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                log.error("destroy(): Cannot close UDP socket", e);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return port > 0;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Accept reports for an aircraft, tagged with the given header. If the header is already registered for this
+     * aircraft, the existing channel is kept.
+     * @param authHdr The client's "Authorization" header.
+     * @param token The token decoded from the header.
+     * @param callsign The aircraft the reports are for.
+     * @return The channel the client must send its reports on.
+     * @throws ClientErrorException with "409 Conflict" if the header is registered for another aircraft.
+     */
+    public long register(String authHdr, Token token, String callsign) throws ClientErrorException {
+        final long result = PositionReport.channelOf(authHdr);
+        final Channel channel = channels.compute(result, (key, current) -> {
+            if (current == null) {
+                return new Channel(token, callsign, PositionReport.newMac(authHdr));
+            }
+            if (current.callsign.equals(callsign)) {
+                current.lastUsed = System.currentTimeMillis();
+            }
+            return current;
+        });
+        if (!channel.callsign.equals(callsign)) {
+            log.warn("register(): Channel " + Long.toHexString(result) + " is already used for \"" + channel.callsign + "\"");
+            throw new ClientErrorException("Already registered for another aircraft", Response.Status.CONFLICT);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("register(): Channel " + Long.toHexString(result) + " for \"" + callsign + "\" in session \"" + token.getSession() + "\"");
+        }
+        return result;
+    }
+
+    /**
+     * Log the numbers of accepted and dropped reports since the last time.
+     */
+    private void logStatistics() {
+        final long nrAccepted = accepted.sumThenReset();
+        final long nrDropped = dropped.sumThenReset();
+
+        if (log.isInfoEnabled()) {
+            log.info("logStatistics(): " + nrAccepted + " report(s) accepted, " + nrDropped + " dropped, " +
+                     channels.size() + " channel(s)");
+        }
+    }
+
+    private void receive() {
+        // One byte extra, so we can tell oversized datagrams from correct ones
+        final ByteBuffer buf = ByteBuffer.allocateDirect(PositionReport.SIZE + 1);
+
+        while (socket.isOpen()) {
+            try {
+                buf.clear();
+                socket.receive(buf);
+                buf.flip();
+                if (handle(buf)) {
+                    accepted.increment();
+                }
+                else {
+                    dropped.increment();
+                }
+            }
+            catch (ClosedChannelException e) {
+                log.debug("receive(): Socket closed");
+            }
+            catch (IOException | RuntimeException e) {
+                log.error("receive(): Failed to handle datagram", e);
+            }
+        }
+    }
+
+    private boolean handle(ByteBuffer buf) {
+        if (!PositionReport.isReport(buf)) {
+            return false;
+        }
+        final Channel channel = channels.get(PositionReport.getChannel(buf));
+        if ((channel == null) || !PositionReport.verify(buf, channel.mac)) {
+            return false;
+        }
+
+        // Serial number arithmetic, so the sequence can wrap around
+        final int seq = PositionReport.getSequence(buf);
+        if (channel.seen && ((seq - channel.lastSeq) <= 0)) {
+            return false;
+        }
+        channel.seen = true;
+        channel.lastSeq = seq;
+        channel.lastUsed = System.currentTimeMillis();
+
+        final AircraftInfo update = PositionReport.decode(buf);
+        try {
+            final AircraftInfo result = registry.update(channel.token.getSession(), channel.callsign, (AircraftInfo rec) -> {
+                rules.checkUpdate(rec, update, channel.token);
+                rec.updateFrom(update);
+            });
+            return result != null;
+        }
+        catch (WebApplicationException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("handle(): Update for \"" + channel.callsign + "\" refused: " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        final long limit = System.currentTimeMillis() - idleMillis;
+
+        for (Map.Entry<Long,Channel> channel: channels.entrySet()) {
+            if ((channel.getValue().lastUsed < limit) && channels.remove(channel.getKey(), channel.getValue()) && log.isDebugEnabled()) {
+                log.debug("evictIdle(): Removed channel " + Long.toHexString(channel.getKey()));
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api;
+
+import nl.rakis.fs.info.AircraftInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.ws.rs.BadRequestException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+public class TestFSDataJsonProvider
+{
+
+    private final FSDataJsonProvider provider = new FSDataJsonProvider();
+
+    @SuppressWarnings("unchecked")
+    private AircraftInfo read(String json)
+        throws IOException
+    {
+        return (AircraftInfo) provider.readFrom((Class<Object>) (Class<?>) AircraftInfo.class, AircraftInfo.class, null, null, null,
+                                                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testRead()
+        throws IOException
+    {
+        AircraftInfo aircraft = read("{\"atcId\":\"PH-AAA\",\"title\":\"Cessna\"}");
+
+        Assert.assertEquals("PH-AAA", aircraft.getAtcId());
+        Assert.assertEquals("Cessna", aircraft.getTitle());
+    }
+
+    @Test
+    public void testBadNumber()
+        throws IOException
+    {
+        Assert.assertEquals(52.5, read("{\"atcId\":\"PH-AAA\",\"location\":{\"latitude\":\"52.5\"}}").getLocation().getLatitude(), 0.0);
+
+        for (String json: new String[]{ "{\"atcId\":\"PH-AAA\",\"location\":{\"latitude\":\"north\"}}",
+                                        "{\"atcId\":\"PH-AAA\",\"location\":{\"latitude\":true}}",
+                                        "{\"atcId\":\"PH-AAA\",\"controls\":{\"grs\":1.5}}" })
+        {
+            try {
+                read(json);
+                Assert.fail("A bad number must be refused: " + json);
+            }
+            catch (BadRequestException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testClearedRefused()
+        throws IOException
+    {
+        try {
+            read("{\"atcId\":\"PH-AAA\",\"cleared\":[\"username\"]}");
+            Assert.fail("A client must not be able to send cleared fields");
+        }
+        catch (BadRequestException e) {
+            // Expected
+        }
+
+        // Even if one got through, a server side update ignores it
+        AircraftInfo rec = new AircraftInfo("PH-AAA");
+        rec.setUsername("owner");
+        AircraftInfo update = new AircraftInfo("PH-AAA");
+        update.setCleared(Collections.singletonList("username"));
+        rec.updateFrom(update);
+        Assert.assertEquals("owner", rec.getUsername());
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.push;
+
+import nl.rakis.fs.info.AircraftInfo;
+import nl.rakis.fs.info.JsonFields;
+import nl.rakis.fs.info.LightInfo;
+import nl.rakis.fs.info.LocationInfo;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.stream.JsonParser;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestSessionChannel
+{
+
+    private static final String TITLE = "\"" + JsonFields.FIELD_TITLE + "\":\"Cessna\"";
+    private static final String CLEARED = "\"" + JsonFields.FIELD_CLEARED + "\"";
+
+    private SessionChannel channel;
+    private final List<String> sent = new ArrayList<>();
+    /** If set, sends don't finish until the test finishes them. */
+    private boolean slow;
+    private final List<SendHandler> unfinished = new ArrayList<>();
+    private Subscriber subscriber;
+
+    /** What the server has. */
+    private final Map<String,AircraftInfo> server = new HashMap<>();
+    /** What the client has, built only from the messages it received. */
+    private final Map<String,AircraftInfo> client = new HashMap<>();
+    private long seq;
+
+    @Before
+    public void setup()
+    {
+        channel = new SessionChannel("session", new InterestPolicy(Double.MAX_VALUE, Double.MAX_VALUE, 1, 1),
+                                     new DeadReckoning(0.0, 0.0, 0), callsign -> null, server::values);
+        subscriber = channel.add(connection(), null);
+    }
+
+    /**
+     * @return A connection that records what is sent to it, and finishes every send right away unless it is slow.
+     */
+    private Session connection()
+    {
+        final RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { RemoteEndpoint.Async.class },
+                (Object proxy, Method method, Object[] args) -> {
+                    if (method.getName().equals("sendText")) {
+                        sent.add((String) args [0]);
+                        if ((args.length > 1) && (args [1] instanceof SendHandler)) {
+                            if (slow) {
+                                unfinished.add((SendHandler) args [1]);
+                            }
+                            else {
+                                ((SendHandler) args [1]).onResult(new SendResult());
+                            }
+                        }
+                    }
+                    return null;
+                });
+        final Map<String,Object> properties = new HashMap<>();
+        return (Session) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { Session.class },
+                (Object proxy, Method method, Object[] args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "getId":
+                            return "test";
+                        case "getAsyncRemote":
+                            return remote;
+                        case "getUserProperties":
+                            return properties;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args [0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static AircraftInfo newAircraft()
+    {
+        final AircraftInfo result = new AircraftInfo("PH-AAA");
+        result.setTitle("Cessna");
+        final LocationInfo location = new LocationInfo();
+        location.setLatitude(52.0);
+        location.setLongitude(5.0);
+        result.setLocation(location);
+        result.setLights(new LightInfo());
+        return result;
+    }
+
+    private static LightInfo landingLights(boolean on)
+    {
+        final LightInfo result = new LightInfo();
+        result.setLand(on);
+        return result;
+    }
+
+    /**
+     * Send a changed aircraft, and apply the message the way a client does.
+     * @return The message.
+     */
+    private String send(AircraftInfo aircraft)
+    {
+        server.put(aircraft.getAtcId(), aircraft);
+        return tick(Collections.singletonMap(aircraft.getAtcId(), aircraft));
+    }
+
+    /**
+     * Run a tick with the given changes, and apply the message the way a client does.
+     * @return The message.
+     */
+    private String tick(Map<String,AircraftInfo> changes)
+    {
+        for (Map.Entry<String,AircraftInfo> change: changes.entrySet()) {
+            channel.changed(change.getKey(), change.getValue());
+        }
+        sent.clear();
+        channel.tick();
+        Assert.assertEquals("Expected one message", 1, sent.size());
+        final String message = sent.get(0);
+
+        final JsonObject obj;
+        try (JsonReader reader = Json.createReader(new StringReader(message))) {
+            obj = reader.readObject();
+        }
+        for (JsonValue change: obj.getJsonArray(JsonFields.FIELD_CHANGES)) {
+            final AircraftInfo update = new AircraftInfo();
+            try (JsonParser parser = Json.createParser(new StringReader(change.toString()))) {
+                parser.next();
+                update.readFrom(parser);
+            }
+            client.computeIfAbsent(update.getAtcId(), AircraftInfo::new).applyDelta(update);
+        }
+        seq = obj.getJsonNumber(JsonFields.FIELD_SEQ).longValue();
+        return message;
+    }
+
+    @Test
+    public void testLostAck()
+    {
+        final AircraftInfo off = newAircraft();
+        send(off);
+        subscriber.ack(seq);
+
+        // The client gets this one, but its acknowledgement is lost
+        final AircraftInfo on = off.copy();
+        on.setLights(landingLights(true));
+        send(on);
+        Assert.assertTrue(client.get("PH-AAA").getLights().isLand());
+
+        final AircraftInfo offAgain = on.copy();
+        offAgain.setLights(landingLights(false));
+        send(offAgain);
+        Assert.assertFalse("The lights must not get stuck on", client.get("PH-AAA").getLights().isLand());
+
+        final AircraftInfo noLocation = offAgain.copy();
+        noLocation.setLocation(null);
+        Assert.assertTrue(send(noLocation).contains(CLEARED));
+        Assert.assertNull("A cleared field must be cleared at the client", client.get("PH-AAA").getLocation());
+        Assert.assertEquals("Cessna", client.get("PH-AAA").getTitle());
+        Assert.assertFalse(client.get("PH-AAA").getLights().isLand());
+    }
+
+    @Test
+    public void testFullRecordWithoutAcks()
+    {
+        AircraftInfo aircraft = newAircraft();
+        Assert.assertTrue(send(aircraft).contains(TITLE));
+
+        // Deltas leave out the unchanged title, until too many messages are outstanding
+        for (int i = 1; i <= 64; i++) {
+            aircraft = aircraft.copy();
+            aircraft.setLights(landingLights((i % 2) == 1));
+            Assert.assertFalse(send(aircraft).contains(TITLE));
+        }
+        Assert.assertEquals(65, seq);
+
+        aircraft = aircraft.copy();
+        aircraft.setAtcType("C172");
+        Assert.assertTrue("Expected a full record", send(aircraft).contains(TITLE));
+        subscriber.ack(seq);
+
+        aircraft = aircraft.copy();
+        aircraft.setAtcType("C72R");
+        Assert.assertFalse(send(aircraft).contains(TITLE));
+
+        // A full record also replaces fields the client should no longer have
+        aircraft = aircraft.copy();
+        aircraft.setLights(null);
+        subscriber.requestResync();
+        Assert.assertTrue("Expected a full record", send(aircraft).contains(TITLE));
+        Assert.assertNull(client.get("PH-AAA").getLights());
+        Assert.assertEquals("C72R", client.get("PH-AAA").getAtcType());
+    }
+
+    @Test
+    public void testResyncSendsEverything()
+    {
+        final AircraftInfo other = newAircraft();
+        other.setAtcId("PH-BBB");
+        server.put(other.getAtcId(), other);
+
+        // A new subscriber gets every aircraft, not just the ones that change
+        send(newAircraft());
+        Assert.assertEquals(2, client.size());
+
+        // The client loses track, and gets the aircraft that don't change as well
+        client.clear();
+        subscriber.requestResync();
+        tick(Collections.emptyMap());
+        Assert.assertEquals(2, client.size());
+        Assert.assertEquals("Cessna", client.get("PH-BBB").getTitle());
+    }
+
+    @Test
+    public void testSlowClient()
+    {
+        AircraftInfo aircraft = newAircraft();
+        slow = true;
+        send(aircraft);
+
+        // While the first message is being written, changes wait
+        aircraft = aircraft.copy();
+        aircraft.setAtcType("C172");
+        channel.changed(aircraft.getAtcId(), aircraft);
+        sent.clear();
+        channel.tick();
+        channel.changed("PH-BBB", null);
+        channel.tick();
+        Assert.assertTrue("Nothing may be sent before the previous message is written", sent.isEmpty());
+
+        // Once it is, everything that waited goes out in one message
+        slow = false;
+        unfinished.remove(0).onResult(new SendResult());
+        channel.tick();
+        Assert.assertEquals(1, sent.size());
+        Assert.assertTrue(sent.get(0).contains("C172"));
+        Assert.assertTrue(sent.get(0).contains("PH-BBB"));
+    }
+}
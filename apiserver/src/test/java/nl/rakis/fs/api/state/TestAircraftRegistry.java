@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.state;
+
+import nl.rakis.fs.info.AircraftInfo;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestAircraftRegistry
+{
+
+    private AircraftRegistry registry;
+    private final List<String> events = new ArrayList<>();
+
+    @Before
+    public void setup()
+    {
+        registry = new AircraftRegistry();
+        registry.addListener(new AircraftListener() {
+            @Override
+            public void aircraftChanged(String session, AircraftInfo aircraft) {
+                events.add("changed " + aircraft.getAtcId() + " v" + aircraft.getVersion());
+            }
+
+            @Override
+            public void aircraftRemoved(String session, String callsign) {
+                events.add("removed " + callsign);
+            }
+        });
+    }
+
+    @Test
+    public void testVersions()
+    {
+        Assert.assertTrue(registry.create("session", new AircraftInfo("PH-AAA")));
+        Assert.assertFalse("A callsign can only be created once", registry.create("session", new AircraftInfo("PH-AAA")));
+        final long created = registry.get("session", "PH-AAA").getVersion();
+        Assert.assertTrue(created > 0);
+        final long updated = registry.update("session", "PH-AAA", a -> a.setTitle("Cessna")).getVersion();
+        Assert.assertTrue("An update must give a new version", updated > created);
+        Assert.assertEquals("Cessna", registry.get("session", "PH-AAA").getTitle());
+        Assert.assertEquals(1, registry.size("session"));
+        Assert.assertEquals(0, registry.size("other"));
+    }
+
+    @Test
+    public void testVersionsNotReused()
+    {
+        registry.create("session", new AircraftInfo("PH-AAA"));
+        final long old = registry.update("session", "PH-AAA", a -> a.setTitle("Cessna")).getVersion();
+        registry.remove("session", "PH-AAA");
+
+        registry.create("session", new AircraftInfo("PH-AAA"));
+        Assert.assertTrue("A new aircraft with the same callsign must not repeat an old version",
+                          registry.get("session", "PH-AAA").getVersion() > old);
+    }
+
+    @Test
+    public void testNoUpdateAfterRemove()
+    {
+        registry.create("session", new AircraftInfo("PH-AAA"));
+        Assert.assertNotNull(registry.remove("session", "PH-AAA"));
+        Assert.assertNull("A removed aircraft cannot be updated", registry.update("session", "PH-AAA", a -> a.setTitle("Ghost")));
+        Assert.assertNull(registry.remove("session", "PH-AAA"));
+
+        Assert.assertEquals("Listeners must not hear of an aircraft after its removal",
+                            "[changed PH-AAA v1, removed PH-AAA]", events.toString());
+    }
+}
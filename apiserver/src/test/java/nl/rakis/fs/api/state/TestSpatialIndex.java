@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.api.state;
+
+import nl.rakis.fs.info.AircraftInfo;
+import nl.rakis.fs.info.LocationInfo;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestSpatialIndex
+{
+
+    private SpatialIndex index;
+
+    @Before
+    public void setup()
+    {
+        index = new SpatialIndex(1.0);
+    }
+
+    private void put(String callsign, double lat, double lon)
+    {
+        final LocationInfo location = new LocationInfo();
+        location.setLatitude(lat);
+        location.setLongitude(lon);
+        final AircraftInfo aircraft = new AircraftInfo(callsign);
+        aircraft.setLocation(location);
+        index.aircraftChanged("session", aircraft);
+    }
+
+    private static List<String> callsigns(List<SpatialIndex.Hit> hits)
+    {
+        final List<String> result = new ArrayList<>();
+        for (SpatialIndex.Hit hit: hits) {
+            result.add(hit.getAircraft().getAtcId());
+        }
+        return result;
+    }
+
+    @Test
+    public void testCells()
+    {
+        put("PH-AAA", 52.3, 4.7);
+        Assert.assertEquals(1, index.box("session", 52.0, 4.0, 53.0, 5.0).size());
+
+        put("PH-AAA", 52.3, 5.2);
+        Assert.assertTrue("A moved aircraft must leave its old cell", index.box("session", 52.0, 4.0, 53.0, 5.0).isEmpty());
+        Assert.assertEquals(1, index.box("session", 52.0, 5.0, 53.0, 6.0).size());
+
+        // The poles and the date line are still valid positions
+        put("PH-BBB", 90.0, 180.0);
+        Assert.assertEquals(1, index.box("session", 89.5, 179.5, 90.0, -179.5).size());
+        Assert.assertTrue(index.box("other", 52.0, 5.0, 53.0, 6.0).isEmpty());
+    }
+
+    @Test
+    public void testRadiusAcrossCells()
+    {
+        // The center is on the corner of four cells, and the aircraft are spread over them
+        put("PH-AAA", 52.05, 5.05);
+        put("PH-BBB", 51.98, 4.99);
+        put("PH-CCC", 52.01, 4.98);
+        put("PH-DDD", 51.96, 5.02);
+        put("PH-FAR", 52.5, 5.0);
+
+        Assert.assertEquals("[PH-CCC, PH-BBB, PH-DDD, PH-AAA]", callsigns(index.radius("session", 52.0, 5.0, 5.0)).toString());
+        Assert.assertEquals("[PH-CCC, PH-BBB]", callsigns(index.nearest("session", 52.0, 5.0, 2)).toString());
+    }
+
+    @Test
+    public void testRadiusAcrossAntimeridian()
+    {
+        put("ZK-AAA", 0.0, -179.95);
+        put("ZK-BBB", 0.0, 179.9);
+        put("ZK-FAR", 0.0, -179.5);
+
+        final List<SpatialIndex.Hit> hits = index.radius("session", 0.0, 179.95, 10.0);
+        Assert.assertEquals("[ZK-BBB, ZK-AAA]", callsigns(hits).toString());
+        Assert.assertEquals(6.0, hits.get(1).getDistance(), 0.01);
+
+        Assert.assertEquals("[ZK-AAA, ZK-BBB]", callsigns(index.radius("session", 0.0, -179.98, 10.0)).toString());
+    }
+
+    @Test
+    public void testEmptySessionDropped()
+    {
+        put("PH-AAA", 52.3, 4.7);
+        put("PH-BBB", 52.3, 4.7);
+        Assert.assertEquals(1, index.sessionCount());
+
+        index.aircraftRemoved("session", "PH-AAA");
+        Assert.assertEquals(1, index.sessionCount());
+        index.aircraftRemoved("session", "PH-BBB");
+        Assert.assertEquals("The grid of an empty session must be dropped", 0, index.sessionCount());
+        index.aircraftRemoved("session", "PH-BBB");
+        Assert.assertEquals(0, index.sessionCount());
+
+        put("PH-AAA", 52.3, 4.7);
+        Assert.assertEquals(1, index.sessionCount());
+        Assert.assertEquals(1, index.radius("session", 52.3, 4.7, 1.0).size());
+    }
+}
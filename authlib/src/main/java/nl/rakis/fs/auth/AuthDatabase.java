@@ -0,0 +1,456 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.auth;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A read-only binary copy of the passwd, shadow and group files, for communities too large to parse at every start.
+ * The file is memory-mapped and every lookup is a binary search on it, so nothing is loaded onto the heap up front.
+ * Lookups only use absolute reads, so they are safe from any number of threads.
+ *
+ * Layout, all numbers big-endian:
+ * <pre>
+ *   header:  int MAGIC, int VERSION, int number of users, int number of groups
+ *   index:   the int offset of every user record, then of every group record, both sorted by the UTF-8 bytes of
+ *            their name
+ *   records: a sequence of fields, each an unsigned short length followed by that many bytes of UTF-8, or just
+ *            NULL_FIELD for a missing value
+ *     user:  name, real name, default session, password hash, groups separated by commas
+ *     group: name, users separated by commas
+ * </pre>
+ * A user without an account (only a password or group membership) has a null real name and default session.
+ */
+public class AuthDatabase
+{
+
+    private static final Logger log = LogManager.getLogger(AuthDatabase.class);
+
+    public static final int MAGIC = 0x46534442; // "FSDB"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int NULL_FIELD = 0xFFFF;
+    private static final int MAX_FIELD = NULL_FIELD - 1;
+
+    private static final int FLD_NAME = 0;
+    private static final int FLD_REALNAME = 1;
+    private static final int FLD_SESSION = 2;
+    private static final int FLD_HASH = 3;
+    private static final int FLD_GROUPS = 4;
+    private static final int FLD_USERS = 1;
+    private static final int USER_FIELDS = 5;
+    private static final int GROUP_FIELDS = 2;
+
+    private final File path;
+    private final ByteBuffer data;
+    private final int numUsers;
+    private final int numGroups;
+
+    private AuthDatabase(File path, ByteBuffer data) throws IOException {
+        this.path = path;
+        this.data = data;
+
+        if ((data.capacity() < HEADER_SIZE) || (data.getInt(0) != MAGIC)) {
+            throw new IOException("\"" + path.getAbsolutePath() + "\" is not an authentication database");
+        }
+        if (data.getInt(4) != VERSION) {
+            throw new IOException("\"" + path.getAbsolutePath() + "\" has unsupported version " + data.getInt(4));
+        }
+        numUsers = data.getInt(8);
+        numGroups = data.getInt(12);
+        if ((numUsers < 0) || (numGroups < 0) || ((HEADER_SIZE + 4L * (numUsers + numGroups)) > data.capacity())) {
+            throw new IOException("\"" + path.getAbsolutePath() + "\" is damaged");
+        }
+
+        // Lookups trust the index, so check every record it points to is complete
+        final int recordsStart = HEADER_SIZE + 4 * (numUsers + numGroups);
+        for (int i = 0; i < numUsers + numGroups; i++) {
+            final int record = data.getInt(HEADER_SIZE + 4 * i);
+            if ((record < recordsStart) || !isComplete(record, (i < numUsers) ? USER_FIELDS : GROUP_FIELDS)) {
+                throw new IOException("\"" + path.getAbsolutePath() + "\" is damaged at index entry " + i);
+            }
+        }
+    }
+
+    /**
+     * @return true if the record at the given offset has the given number of fields within the file, and a name.
+     */
+    private boolean isComplete(int record, int numFields) {
+        long offset = record;
+        for (int i = 0; i < numFields; i++) {
+            if (offset + 2 > data.capacity()) {
+                return false;
+            }
+            final int len = fieldLength((int) offset);
+            if ((len == NULL_FIELD) && (i == FLD_NAME)) {
+                return false;
+            }
+            offset += 2 + ((len == NULL_FIELD) ? 0 : len);
+        }
+        return offset <= data.capacity();
+    }
+
+    /**
+     * Map a database file.
+     */
+    public static AuthDatabase open(File path) throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("open(): Mapping \"" + path.getAbsolutePath() + "\"");
+        }
+        try (FileChannel ch = FileChannel.open(path.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            final AuthDatabase result = new AuthDatabase(path, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+
+            if (log.isInfoEnabled()) {
+                log.info("open(): \"" + path.getAbsolutePath() + "\" has " + result.numUsers + " user(s) and " + result.numGroups + " group(s)");
+            }
+            return result;
+        }
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    public int getUserCount() {
+        return numUsers;
+    }
+
+    public int getGroupCount() {
+        return numGroups;
+    }
+
+    /*
+     * Reading
+     */
+
+    private int fieldLength(int offset) {
+        return data.getShort(offset) & 0xFFFF;
+    }
+
+    /**
+     * @return The offset of the n-th field of the record at the given offset.
+     */
+    private int field(int record, int n) {
+        int offset = record;
+        for (int i = 0; i < n; i++) {
+            final int len = fieldLength(offset);
+            offset += 2 + ((len == NULL_FIELD) ? 0 : len);
+        }
+        return offset;
+    }
+
+    private String readField(int record, int n) {
+        final int offset = field(record, n);
+        final int len = fieldLength(offset);
+        if (len == NULL_FIELD) {
+            return null;
+        }
+        final byte[] buf = new byte [len];
+        for (int i = 0; i < len; i++) {
+            buf [i] = data.get(offset + 2 + i);
+        }
+
+        return new String(buf, StandardCharsets.UTF_8);
+    }
+
+    private Set<String> readList(int record, int n) {
+        final String list = readField(record, n);
+
+        return ((list == null) || list.isEmpty())
+                ? Collections.emptySet()
+                : Collections.unmodifiableSet(new HashSet<>(Arrays.asList(list.split(","))));
+    }
+
+    /**
+     * Compare a name with the name field of a record, as unsigned bytes.
+     */
+    private int compareName(byte[] name, int record) {
+        final int len = fieldLength(record);
+        final int common = Math.min(name.length, len);
+        for (int i = 0; i < common; i++) {
+            final int diff = (name [i] & 0xFF) - (data.get(record + 2 + i) & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return name.length - len;
+    }
+
+    /**
+     * @return The offset of the record with the given name, or -1 if there is none.
+     */
+    private int find(int indexStart, int count, String name) {
+        final byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int record = data.getInt(indexStart + 4 * mid);
+            final int cmp = compareName(key, record);
+            if (cmp == 0) {
+                return record;
+            }
+            if (cmp < 0) {
+                high = mid - 1;
+            }
+            else {
+                low = mid + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int findUser(String userName) {
+        return find(HEADER_SIZE, numUsers, userName);
+    }
+
+    private int findGroup(String groupName) {
+        return find(HEADER_SIZE + 4 * numUsers, numGroups, groupName);
+    }
+
+    /**
+     * @return The user's account, or null if there is none.
+     */
+    public User getUser(String userName) {
+        final int record = findUser(userName);
+        if (record < 0) {
+            return null;
+        }
+        final String longName = readField(record, FLD_REALNAME);
+
+        return (longName == null) ? null : new User(userName, longName, readField(record, FLD_SESSION));
+    }
+
+    /**
+     * @return The user's password hash, or null if there is none.
+     */
+    public String getPasswordHash(String userName) {
+        final int record = findUser(userName);
+
+        return (record < 0) ? null : readField(record, FLD_HASH);
+    }
+
+    public Set<String> getGroupsForUser(String userName) {
+        final int record = findUser(userName);
+
+        return (record < 0) ? Collections.emptySet() : readList(record, FLD_GROUPS);
+    }
+
+    /**
+     * @return The users in the group, or null if the group doesn't exist.
+     */
+    public Set<String> getUsersInGroup(String groupName) {
+        final int record = findGroup(groupName);
+
+        return (record < 0) ? null : readList(record, FLD_USERS);
+    }
+
+    /*
+     * Conversion
+     */
+
+    /**
+     * Read all accounts, for converting back to a passwd file.
+     */
+    public Map<String,User> readUsers() {
+        final Map<String,User> result = new HashMap<>();
+        for (int i = 0; i < numUsers; i++) {
+            final int record = data.getInt(HEADER_SIZE + 4 * i);
+            final String longName = readField(record, FLD_REALNAME);
+            if (longName != null) {
+                final String name = readField(record, FLD_NAME);
+                result.put(name, new User(name, longName, readField(record, FLD_SESSION)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read all password hashes, for converting back to a shadow file.
+     */
+    public Map<String,String> readPasswords() {
+        final Map<String,String> result = new HashMap<>();
+        for (int i = 0; i < numUsers; i++) {
+            final int record = data.getInt(HEADER_SIZE + 4 * i);
+            final String hash = readField(record, FLD_HASH);
+            if (hash != null) {
+                result.put(readField(record, FLD_NAME), hash);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read all groups, for converting back to a group file.
+     */
+    public Map<String,Set<String>> readGroups() {
+        final Map<String,Set<String>> result = new HashMap<>();
+        for (int i = 0; i < numGroups; i++) {
+            final int record = data.getInt(HEADER_SIZE + 4 * (numUsers + i));
+            result.put(readField(record, FLD_NAME), new HashSet<>(readList(record, FLD_USERS)));
+        }
+        return result;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        final int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; i++) {
+            final int diff = (a [i] & 0xFF) - (b [i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static byte[] encode(String value) throws IOException {
+        if (value == null) {
+            return null;
+        }
+        final byte[] result = value.getBytes(StandardCharsets.UTF_8);
+        if (result.length > MAX_FIELD) {
+            throw new IOException("Value too long: \"" + value.substring(0, 32) + "...\"");
+        }
+        return result;
+    }
+
+    /**
+     * @return The encoded record, starting with the name.
+     */
+    private static byte[] record(String... fields) throws IOException {
+        int size = 0;
+        final byte[][] encoded = new byte [fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            encoded [i] = encode(fields [i]);
+            size += 2 + ((encoded [i] == null) ? 0 : encoded [i].length);
+        }
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        for (byte[] field: encoded) {
+            if (field == null) {
+                result.putShort((short) NULL_FIELD);
+            }
+            else {
+                result.putShort((short) field.length);
+                result.put(field);
+            }
+        }
+        return result.array();
+    }
+
+    private static String join(Set<String> values) {
+        return (values == null) ? "" : String.join(",", new TreeSet<>(values));
+    }
+
+    /**
+     * Write a new database, replacing any existing one at once.
+     */
+    public static void write(File path, Map<String,User> users, Map<String,String> passwords, Map<String,Set<String>> groups)
+        throws IOException
+    {
+        if (log.isInfoEnabled()) {
+            log.info("write(): Writing \"" + path.getAbsolutePath() + "\"");
+        }
+
+        // Everyone with an account, a password or a group
+        final Map<String,Set<String>> groupsOfUser = new HashMap<>();
+        for (Map.Entry<String,Set<String>> group: groups.entrySet()) {
+            for (String user: group.getValue()) {
+                groupsOfUser.computeIfAbsent(user, u -> new HashSet<>()).add(group.getKey());
+            }
+        }
+        final Set<String> userNames = new HashSet<>(users.keySet());
+        userNames.addAll(passwords.keySet());
+        userNames.addAll(groupsOfUser.keySet());
+
+        // Keyed and sorted by the UTF-8 bytes of the name
+        final TreeMap<byte[],byte[]> userRecords = new TreeMap<>(AuthDatabase::compareBytes);
+        for (String name: userNames) {
+            final User user = users.get(name);
+            userRecords.put(encode(name), record(name,
+                                                 (user == null) ? null : user.longName,
+                                                 (user == null) ? null : user.defaultSession,
+                                                 passwords.get(name),
+                                                 join(groupsOfUser.get(name))));
+        }
+        final TreeMap<byte[],byte[]> groupRecords = new TreeMap<>(AuthDatabase::compareBytes);
+        for (Map.Entry<String,Set<String>> group: groups.entrySet()) {
+            groupRecords.put(encode(group.getKey()), record(group.getKey(), join(group.getValue())));
+        }
+
+        final File tmpOut = File.createTempFile("tmp_", ".db", path.getAbsoluteFile().getParentFile());
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmpOut);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos)))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(userRecords.size());
+                out.writeInt(groupRecords.size());
+
+                long offset = HEADER_SIZE + 4L * (userRecords.size() + groupRecords.size());
+                for (TreeMap<byte[],byte[]> table: Arrays.asList(userRecords, groupRecords)) {
+                    for (byte[] record: table.values()) {
+                        if (offset > Integer.MAX_VALUE) {
+                            throw new IOException("Database too large");
+                        }
+                        out.writeInt((int) offset);
+                        offset += record.length;
+                    }
+                }
+                for (TreeMap<byte[],byte[]> table: Arrays.asList(userRecords, groupRecords)) {
+                    for (byte[] record: table.values()) {
+                        out.write(record);
+                    }
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmpOut.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            if (tmpOut.exists() && !tmpOut.delete()) {
+                log.error("write(): Failed to remove \"" + tmpOut.getAbsolutePath() + "\"");
+            }
+        }
+        if (log.isInfoEnabled()) {
+            log.info("write(): Wrote " + userRecords.size() + " user(s) and " + groupRecords.size() + " group(s)");
+        }
+    }
+}
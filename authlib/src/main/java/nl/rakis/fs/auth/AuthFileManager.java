@@ -21,11 +21,39 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Application wide holder for the passwd, shadow and group files.
+ *
+ * The directory is watched, so changes made by other processes (such as AuthUtil) are picked up without a restart.
+ * A burst of changes to a file is collapsed into a single reload of only that file, which is published as a new
+ * snapshot while readers keep using the old one.
+ *
+ * If an AuthDatabase is configured, getUser(), getPasswordHash() and getGroupsForUser() answer from it instead of
+ * from the text files. It is created from the text files with AuthUtil, and reloaded when a new one is put in place.
+ * Changes to the text files are not used until the database is rebuilt, so we warn when they are newer than it.
+ */
 @Singleton
 public class AuthFileManager
 {
@@ -41,6 +69,10 @@ public class AuthFileManager
     public static final String DEF_SHADOW = "shadow";
     public static final String CFG_GROUP = "nl.rakis.fs.auth.group";
     public static final String DEF_GROUP = "group";
+    public static final String CFG_WATCH_DELAY = "nl.rakis.fs.auth.watch.delay";
+    public static final String DEF_WATCH_DELAY = "500";
+    public static final String CFG_DB = "nl.rakis.fs.auth.db";
+    public static final String DEF_DB = "";
 
     @Inject
     private Config cfg;
@@ -52,6 +84,14 @@ public class AuthFileManager
     private PasswordFile passwd;
     private ShadowFile shadow;
     private GroupFile group;
+    private File fDatabase;
+    private volatile AuthDatabase database;
+
+    private long watchDelayMillis;
+    private WatchService watcher;
+    private ScheduledExecutorService reloader;
+    private final Map<String,Runnable> reloads = new HashMap<>();
+    private final Map<String,ScheduledFuture<?>> pendingReloads = new ConcurrentHashMap<>();
 
     public AuthFileManager() {
         log.debug("AuthFileManager()");
@@ -93,9 +133,172 @@ public class AuthFileManager
         catch (IOException e) {
             log.error("init(): Exception while Initializing files", e);
         }
+
+        final String dbName = cfg.get(CFG_DB, DEF_DB).trim();
+        if (!dbName.isEmpty()) {
+            fDatabase = new File(dAuth, dbName);
+            if (log.isInfoEnabled()) {
+                log.info("init(): Using the authentication database in \"" + fDatabase.getAbsolutePath() + "\"");
+            }
+            reloadDatabase();
+            checkDatabaseAge();
+        }
+
+        watchDelayMillis = Long.parseLong(DEF_WATCH_DELAY);
+        try {
+            watchDelayMillis = Long.parseLong(cfg.get(CFG_WATCH_DELAY, DEF_WATCH_DELAY).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init(): Bad value for \"" + CFG_WATCH_DELAY + "\", using " + DEF_WATCH_DELAY);
+        }
+        if ((watchDelayMillis > 0) && (passwd != null)) {
+            startWatching();
+        }
         log.debug("init(): Done");
     }
 
+    @PreDestroy
+    private void destroy()
+    {
+        log.debug("destroy()");
+
+        if (watcher != null) {
+            try {
+                watcher.close();
+            }
+            catch (IOException e) {
+                log.error("destroy(): Failed to close watcher", e);
+            }
+        }
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+    }
+
+    private void startWatching() {
+        reloads.put(fPasswd.getName(), passwd::reload);
+        reloads.put(fShadow.getName(), shadow::reload);
+        reloads.put(fGroup.getName(), group::reload);
+        reloads.put(SecurityFile.journalFor(fPasswd).getName(), passwd::reload);
+        reloads.put(SecurityFile.journalFor(fShadow).getName(), shadow::reload);
+        reloads.put(SecurityFile.journalFor(fGroup).getName(), group::reload);
+        if (fDatabase != null) {
+            reloads.put(fDatabase.getName(), this::reloadDatabase);
+        }
+
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            // Changes are appended to the journals, and SecurityFile.store() renames a compacted file over the old one,
+            // which shows up as a create. Deletes are ignored, a file that is rewritten is never missing.
+            dAuth.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (IOException e) {
+            log.error("startWatching(): Cannot watch \"" + dAuth.getAbsolutePath() + "\", changes need a restart", e);
+            return;
+        }
+        reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "AuthFileManager-reload");
+            t.setDaemon(true);
+            return t;
+        });
+        final Thread t = new Thread(this::watch, "AuthFileManager-watch");
+        t.setDaemon(true);
+        t.start();
+
+        if (log.isInfoEnabled()) {
+            log.info("startWatching(): Watching \"" + dAuth.getAbsolutePath() + "\" for changes");
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                final WatchKey key = watcher.take();
+                for (WatchEvent<?> event: key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        log.warn("watch(): Missed events, reloading all files");
+                        for (String name: reloads.keySet()) {
+                            scheduleReload(name);
+                        }
+                    }
+                    else {
+                        final String name = ((Path) event.context()).getFileName().toString();
+                        if (reloads.containsKey(name)) {
+                            scheduleReload(name);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    log.error("watch(): \"" + dAuth.getAbsolutePath() + "\" can no longer be watched");
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("watch(): Stopped");
+        }
+    }
+
+    /**
+     * (Re)start the delay for reloading a file, so a burst of changes results in a single reload.
+     */
+    private void scheduleReload(String name) {
+        if (log.isDebugEnabled()) {
+            log.debug("scheduleReload(): \"" + name + "\" changed");
+        }
+        pendingReloads.compute(name, (n, pending) -> {
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            return reloader.schedule(() -> reload(n), watchDelayMillis, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private void reload(String name) {
+        if (log.isInfoEnabled()) {
+            log.info("reload(): Reloading \"" + name + "\"");
+        }
+        try {
+            reloads.get(name).run();
+        }
+        catch (RuntimeException e) {
+            log.error("reload(): Failed to reload \"" + name + "\"", e);
+        }
+        checkDatabaseAge();
+    }
+
+    /**
+     * (Re)map the database. If that fails, the previous one is kept, or the text files are used if there was none.
+     */
+    private void reloadDatabase() {
+        try {
+            database = AuthDatabase.open(fDatabase);
+        }
+        catch (IOException e) {
+            log.error("reloadDatabase(): Cannot use \"" + fDatabase.getAbsolutePath() + "\"" +
+                      ((database == null) ? ", using the text files" : ", keeping the previous version"), e);
+        }
+    }
+
+    /**
+     * Warn about text files that changed after the database in use was written, as those changes are ignored.
+     */
+    private void checkDatabaseAge() {
+        final AuthDatabase db = database;
+        if (db == null) {
+            return;
+        }
+        final long written = db.getPath().lastModified();
+        for (File file: Arrays.asList(fPasswd, fShadow, fGroup,
+                                      SecurityFile.journalFor(fPasswd), SecurityFile.journalFor(fShadow), SecurityFile.journalFor(fGroup)))
+        {
+            if ((file.length() > 0) && (file.lastModified() > written)) {
+                log.warn("checkDatabaseAge(): \"" + file.getAbsolutePath() + "\" is newer than \"" +
+                         db.getPath().getAbsolutePath() + "\", its changes are ignored until the database is rebuilt with AuthUtil");
+            }
+        }
+    }
+
     private boolean checkOrCreateDir(File dir)
         throws IOException
     {
@@ -162,4 +365,28 @@ public class AuthFileManager
     public GroupFile getGroup() {
         return this.group;
     }
+
+    /**
+     * @return The user's account, or null if there is none.
+     */
+    public User getUser(String userName) {
+        final AuthDatabase db = database;
+
+        return (db != null) ? db.getUser(userName) : passwd.getUser(userName);
+    }
+
+    /**
+     * @return The user's password hash, or null if there is none.
+     */
+    public String getPasswordHash(String userName) {
+        final AuthDatabase db = database;
+
+        return (db != null) ? db.getPasswordHash(userName) : shadow.getPasswordHash(userName);
+    }
+
+    public Set<String> getGroupsForUser(String userName) {
+        final AuthDatabase db = database;
+
+        return (db != null) ? db.getGroupsForUser(userName) : group.getGroupsForUser(userName);
+    }
 }
@@ -22,6 +22,13 @@ import org.apache.logging.log4j.Logger;
 import java.io.*;
 import java.util.*;
 
+/**
+ * The groups, and which users are in them.
+ *
+ * The file is loaded on first use into an immutable snapshot holding both the groups and the reverse index from users
+ * to groups, so readers never lock and always see the two agree. Changes are made on a copy under a writer lock,
+ * appended to the journal, and published once the journal is on disk.
+ */
 public class GroupFile extends SecurityFile {
 
     private static final Logger log = LogManager.getLogger(GroupFile.class);
@@ -36,15 +43,48 @@ public class GroupFile extends SecurityFile {
     public static final String FLDNAME_USERS = "Users";
     public static final int FLD_USERS = 3;
 
+    private static final class Snapshot
+    {
+        final Map<String,Set<String>> groups;
+        final Map<String,Set<String>> users;
+
+        /**
+         * Take ownership of the groups, freeze copies of their member sets, and build the reverse mapping from them.
+         */
+        Snapshot(Map<String,Set<String>> groups) {
+            final Map<String,Set<String>> newUsers = new HashMap<>();
+            for (Map.Entry<String,Set<String>> group: groups.entrySet()) {
+                for (String user: group.getValue()) {
+                    newUsers.computeIfAbsent(user, u -> new HashSet<>()).add(group.getKey());
+                }
+                group.setValue(Collections.unmodifiableSet(new HashSet<>(group.getValue())));
+            }
+            for (Map.Entry<String,Set<String>> user: newUsers.entrySet()) {
+                user.setValue(Collections.unmodifiableSet(user.getValue()));
+            }
+            this.groups = Collections.unmodifiableMap(groups);
+            this.users = Collections.unmodifiableMap(newUsers);
+        }
+
+        /**
+         * @return A writable copy of the groups, sharing the (unmodifiable) member sets.
+         */
+        Map<String,Set<String>> copyGroups() {
+            return new HashMap<>(groups);
+        }
+    }
+
     private File path;
-    private Map<String,Set<String>> groups = new HashMap<>();
-    private Map<String,Set<String>> users = new HashMap<>();
+    private Journal journal;
+    private final Object writeLock = new Object();
+    private final SnapshotHolder<Snapshot> snapshot = new SnapshotHolder<>(writeLock);
 
     public GroupFile(String path)
     {
         log.debug("GroupFile(\"" + path + "\")");
 
         this.path = new File(path);
+        this.journal = new Journal(journalFor(this.path));
     }
 
     public GroupFile(File path)
@@ -52,37 +92,47 @@ public class GroupFile extends SecurityFile {
         log.debug("GroupFile(\"" + path.getAbsolutePath() + "\")");
 
         this.path = path;
+        this.journal = new Journal(journalFor(path));
+    }
+
+    private void parse(String line, Map<String,Set<String>> into) throws IOException {
+        List<String> grpFields = split(line);
+        if (grpFields.size() != NUM_FIELDS) {
+            throw new IOException("Bad group format: \"" + line + "\"");
+        }
+
+        checkNonEmpty(FLDNAME_GROUPNAME, grpFields.get(FLD_USERNAME));
+        String group = grpFields.get(FLD_USERNAME);
+        checkEmpty(FLDNAME_PASSWORD, grpFields.get(FLD_PASSWORD));
+        checkEmpty(FLDNAME_GROUPID, grpFields.get(FLD_GROUPID));
+
+        final String usrField = grpFields.get(FLD_USERS);
+        final HashSet<String> userSet =
+         (usrField.trim().isEmpty())
+          ? new HashSet<>()
+          : new HashSet<>(split(usrField, ','));
+
+        if (log.isDebugEnabled()) {
+            log.debug("parse(): Adding group \"" + group + "\" with users " + userSet);
+        }
+        into.put(group, userSet);
+    }
+
+    private static String format(String groupName, Set<String> users) {
+        return groupName + ":x:x:" + String.join(",", users);
     }
 
-    private void load() {
+    private Snapshot load() {
         if (log.isDebugEnabled()) {
             log.debug("load()");
         }
 
+        final Map<String,Set<String>> groups = new HashMap<>();
         load(path, (String line) -> {
             boolean result = false;
 
             try {
-                List<String> grpFields = split(line);
-                if (grpFields.size() != NUM_FIELDS) {
-                    throw new IOException("Bad group format: \"" + line + "\"");
-                }
-
-                checkNonEmpty(FLDNAME_GROUPNAME, grpFields.get(FLD_USERNAME));
-                String group = grpFields.get(FLD_USERNAME);
-                checkEmpty(FLDNAME_PASSWORD, grpFields.get(FLD_PASSWORD));
-                checkEmpty(FLDNAME_GROUPID, grpFields.get(FLD_GROUPID));
-
-                final String usrField = grpFields.get(FLD_USERS);
-                final HashSet<String> userSet =
-                 (usrField.trim().isEmpty())
-                  ? new HashSet<>()
-                  : new HashSet<>(split(usrField, ','));
-
-                if (log.isDebugEnabled()) {
-                    log.debug("load(): Adding group \"" + group + "\" with users " + userSet);
-                }
-                groups.put(group, userSet);
+                parse(line, groups);
             }
             catch (IOException e) {
                 log.error("load(): Exception while loading \"" + path + "\"", e);
@@ -91,69 +141,122 @@ public class GroupFile extends SecurityFile {
             }
             return result;
         });
+        replay(journal, line -> parse(line, groups), groups::remove);
         if (log.isDebugEnabled()) {
             log.debug("load(): " + groups.size() + " group(s) read");
         }
 
-        // Create reverse mapping
-        for (String group: groups.keySet()) {
-            Set<String> usersList = groups.get(group);
+        final Snapshot result = new Snapshot(groups);
+        if (log.isDebugEnabled()) {
+            log.debug("load(): " + result.users.size() + " users(s) mapped to groups");
+        }
+        return result;
+    }
 
-            if (users != null) {
-                for (String user: usersList) {
-                    if (users.containsKey(user)) {
-                        users.get(user).add(group);
-                    }
-                    else {
-                        Set<String> groupsOfUser = new HashSet<>();
-                        groupsOfUser.add(group);
-                        users.put(user, groupsOfUser);
-                    }
-                }
-            }
+    private void store(PrintWriter pr, Map<String,Set<String>> newGroups) {
+        for (Map.Entry<String,Set<String>> group: newGroups.entrySet()) {
+            pr.println(format(group.getKey(), group.getValue()));
         }
-        if (log.isDebugEnabled()) {
-            log.debug("load(): " + users.size() + " users(s) mapped to groups");
+    }
+
+    /**
+     * Re-read the file and publish it as the new snapshot.
+     */
+    public void reload() {
+        synchronized (writeLock) {
+            snapshot.reset(withFileLock(path, this::load));
         }
     }
 
-    private boolean store() {
-        return store("groups", path, (PrintWriter pr) -> {
-            for (String groupName: groups.keySet()) {
-                Set<String> users = groups.get(groupName);
-                pr.print(groupName);
-                pr.print(":x:x:");
-                boolean first = true;
-                for (String userName: users) {
-                    if (first) {
-                        first = false;
-                    }
-                    else {
-                        pr.print(",");
+    private Snapshot getSnapshot() {
+        final Snapshot result = snapshot.get();
+        if (result != null) {
+            return result;
+        }
+        synchronized (writeLock) {
+            if (snapshot.get() == null) {
+                snapshot.reset(withFileLock(path, this::load));
+            }
+            return snapshot.get();
+        }
+    }
+
+    /**
+     * @return The groups including changes that are not on disk yet. Must be called with the writer lock held.
+     */
+    private Snapshot getLatest() {
+        getSnapshot();
+        return snapshot.latest();
+    }
+
+    /**
+     * Journal a change and make the changed copy of the groups the one later changes build on. Must be called with the
+     * writer lock held.
+     * @return The change to commit, or null if it could not be written.
+     */
+    private SnapshotHolder.Change<Snapshot> update(Map<String,Set<String>> newGroups, char op, String value) {
+        final long position = withFileLock(path, () -> append(journal, op, value));
+        return (position < 0) ? null : snapshot.change(new Snapshot(newGroups), position);
+    }
+
+    /**
+     * Wait for a change to reach the disk, publish it, and fold the journal into the file if it has grown large.
+     */
+    private boolean commit(SnapshotHolder.Change<Snapshot> change) {
+        if (!commit(journal, snapshot, change)) {
+            return false;
+        }
+        synchronized (writeLock) {
+            if (needsCompaction(journal)) {
+                // Re-read first, so changes appended by another process are kept
+                withFileLock(path, () -> {
+                    final Snapshot current = load();
+                    if (rewrite("groups", path, journal, pr -> store(pr, current.groups))) {
+                        snapshot.reset(current);
                     }
-                    pr.print(userName);
-                }
-                pr.println();
+                    return null;
+                });
             }
-        });
+        }
+        return true;
     }
 
+    /**
+     * @return The current snapshot of all groups with their users. It is never changed, later changes publish a new
+     * one.
+     */
     public Map<String,Set<String>> getGroups() {
-        if (groups.size() == 0) {
-            load();
-        }
-        return groups;
+        return getSnapshot().groups;
     }
 
     public Set<String> getUsersInGroup(String group) {
-        return getGroups().containsKey(group) ? groups.get(group) : new HashSet<>();
+        final Set<String> result = getGroups().get(group);
+
+        return (result == null) ? Collections.emptySet() : result;
     }
 
+    /**
+     * @return The current snapshot of all users with the groups they are in.
+     */
     public Map<String,Set<String>> getUsers() {
-        if (users.size() == 0) {
-            load();
+        return getSnapshot().users;
+    }
+
+    /**
+     * Replace all groups at once, rewriting the file and emptying the journal.
+     */
+    public boolean replaceAll(Map<String,Set<String>> newGroups) {
+        if (log.isInfoEnabled()) {
+            log.info("replaceAll(): Replacing all groups with " + newGroups.size() + " group(s)");
+        }
+        synchronized (writeLock) {
+            final Snapshot newSnapshot = new Snapshot(new HashMap<>(newGroups));
+            if (!withFileLock(path, () -> rewrite("groups", path, journal, pr -> store(pr, newSnapshot.groups)))) {
+                return false;
+            }
+            snapshot.reset(newSnapshot);
         }
-        return users;
+        return true;
     }
 
     public boolean addGroup(String groupName) {
@@ -161,15 +264,19 @@ public class GroupFile extends SecurityFile {
             log.info("addGroup(): Adding group \"" + groupName + "\"");
         }
 
-        boolean result = false;
+        SnapshotHolder.Change<Snapshot> change = null;
 
-        if (!getGroups().containsKey(groupName)) {
-            if (log.isInfoEnabled()) {
-                log.info("addGroup(): Adding new group \"" + groupName + "\"");
+        synchronized (writeLock) {
+            if (!getLatest().groups.containsKey(groupName)) {
+                if (log.isInfoEnabled()) {
+                    log.info("addGroup(): Adding new group \"" + groupName + "\"");
+                }
+                final Map<String,Set<String>> newGroups = getLatest().copyGroups();
+                newGroups.put(groupName, new HashSet<>());
+                change = update(newGroups, JOURNAL_PUT, format(groupName, Collections.emptySet()));
             }
-            groups.put(groupName, new HashSet<String>());
-            result = store();
         }
+        final boolean result = commit(change);
         if (log.isInfoEnabled()) {
             log.info("addGroup(): " + (result ? "Success" : "Failed"));
         }
@@ -181,20 +288,16 @@ public class GroupFile extends SecurityFile {
             log.info("removeGroup(): Removing group \"" + groupName + "\"");
         }
 
-        boolean result = false;
+        SnapshotHolder.Change<Snapshot> change = null;
 
-        if (getGroups().containsKey(groupName)) {
-            if (log.isInfoEnabled()) {
-                log.info("removeGroup(): Removing group \"" + groupName + "\"");
-            }
-            groups.remove(groupName);
-            for (Set<String> groups: users.values()) {
-                if (groups.contains(groupName)) {
-                    groups.remove(groupName);
-                }
+        synchronized (writeLock) {
+            if (getLatest().groups.containsKey(groupName)) {
+                final Map<String,Set<String>> newGroups = getLatest().copyGroups();
+                newGroups.remove(groupName);
+                change = update(newGroups, JOURNAL_REMOVE, groupName);
             }
-            result = store();
         }
+        final boolean result = commit(change);
         if (log.isInfoEnabled()) {
             log.info("removeGroup(): " + (result ? "Success" : "Failed"));
         }
@@ -202,7 +305,9 @@ public class GroupFile extends SecurityFile {
     }
 
     public Set<String> getGroupsForUser(String user) {
-        return getUsers().containsKey(user) ? users.get(user) : new HashSet<>();
+        final Set<String> result = getUsers().get(user);
+
+        return (result == null) ? Collections.emptySet() : result;
     }
 
     public boolean isUserInGroup(String user, String group) {
@@ -214,36 +319,30 @@ public class GroupFile extends SecurityFile {
             log.info("addUserToGroup(): Adding user \"" + userName + "\" to group \"" + groupName + "\"");
         }
 
-        boolean result = false;
-
-        // Fix the group list
-        if (!getGroups().containsKey(groupName)) {
-            if (log.isInfoEnabled()) {
-                log.info("addUserToGroup(): Adding new group \"" + groupName + "\"");
-            }
-            groups.put(groupName, new HashSet<String>(Collections.singleton(userName)));
-        }
-        else {
-            if (log.isDebugEnabled()) {
-                log.debug("addUserToGroup(): Adding user \"" + userName + "\" to existing group \"" + groupName + "\"");
-            }
-            groups.get(groupName).add(userName);
-        }
+        SnapshotHolder.Change<Snapshot> change;
 
-        // fix the user (aka reverse lookup) list
-        if (!users.containsKey(userName)) {
-            if (log.isDebugEnabled()) {
-                log.debug("addUserToGroup(): Adding new user \"" + userName + "\" to reverse lookup list");
+        synchronized (writeLock) {
+            final Map<String,Set<String>> newGroups = getLatest().copyGroups();
+            final Set<String> members = newGroups.get(groupName);
+            final Set<String> newMembers;
+            if (members == null) {
+                if (log.isInfoEnabled()) {
+                    log.info("addUserToGroup(): Adding new group \"" + groupName + "\"");
+                }
+                newMembers = new HashSet<>(Collections.singleton(userName));
             }
-            users.put(userName, new HashSet<String>(Collections.singleton(groupName)));
-        }
-        else {
-            if (log.isDebugEnabled()) {
-                log.debug("addUserToGroup(): Adding group \"" + groupName + "\" to existing user \"" + userName + "\" reverse lookup list");
+            else {
+                if (log.isDebugEnabled()) {
+                    log.debug("addUserToGroup(): Adding user \"" + userName + "\" to existing group \"" + groupName + "\"");
+                }
+                newMembers = new HashSet<>(members);
+                newMembers.add(userName);
             }
-            users.get(userName).add(groupName);
+            newGroups.put(groupName, newMembers);
+            // The reverse lookup list is rebuilt with the new snapshot
+            change = update(newGroups, JOURNAL_PUT, format(groupName, newMembers));
         }
-        result = store();
+        final boolean result = commit(change);
         if (log.isInfoEnabled()) {
             log.info("addUserToGroup(): " + (result ? "Success" : "Failed"));
         }
@@ -255,25 +354,29 @@ public class GroupFile extends SecurityFile {
             log.info("removeUserFromGroup(): Removing user \"" + userName + "\" from group \"" + groupName + "\"");
         }
 
-        boolean result = false;
+        SnapshotHolder.Change<Snapshot> change = null;
 
-        if (!getGroups().containsKey(groupName)) {
-            log.error("removeUserFromGroup(): Unknown group \"" + groupName + "\"");
-        }
-        else {
-            groups.get(groupName).remove(userName);
-        }
-        if (!users.containsKey(userName)) {
-            log.warn("removeUserFromGroup(): User \"" + userName + "\" wasn't in any group to begin with");
-        }
-        else {
-            users.get(userName).remove(groupName);
+        synchronized (writeLock) {
+            final Map<String,Set<String>> newGroups = getLatest().copyGroups();
+            final Set<String> members = newGroups.get(groupName);
+            if (!getLatest().users.containsKey(userName)) {
+                log.warn("removeUserFromGroup(): User \"" + userName + "\" wasn't in any group to begin with");
+            }
+            if (members == null) {
+                log.error("removeUserFromGroup(): Unknown group \"" + groupName + "\"");
+            }
+            else {
+                final Set<String> newMembers = new HashSet<>(members);
+                newMembers.remove(userName);
+                newGroups.put(groupName, newMembers);
+                change = update(newGroups, JOURNAL_PUT, format(groupName, newMembers));
+            }
         }
-        result = store();
+        final boolean result = commit(change);
         if (log.isInfoEnabled()) {
             log.info("removeUserFromGroup(): " + (result ? "Success" : "Failed"));
         }
         return result;
     }
-        
+
 }
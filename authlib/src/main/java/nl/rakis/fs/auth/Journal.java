@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.auth;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * An append-only log of changes to a SecurityFile, one entry per line.
+ *
+ * Appending only writes the entry; sync() forces it to disk. Writers that sync while another writer is already
+ * forcing the file wait for that to finish and are then often covered by it, so concurrent changes share fsyncs.
+ */
+class Journal
+{
+
+    private static final Logger log = LogManager.getLogger(Journal.class);
+
+    private final File file;
+    private final Object syncLock = new Object();
+
+    private FileChannel channel;
+    private int entries;
+    /** Bytes ever appended, and how many of those are known to be on disk. These never go back on a truncate. */
+    private long written;
+    private volatile long synced;
+
+    Journal(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The number of entries in the journal.
+     */
+    synchronized int size() {
+        return entries;
+    }
+
+    /**
+     * Pass all complete entries to the consumer, in order. A last line without a newline is the remains of an
+     * interrupted append, and is skipped.
+     */
+    synchronized void replay(Consumer<String> apply) {
+        entries = 0;
+        if (!file.exists()) {
+            return;
+        }
+
+        final byte[] data;
+        try {
+            data = Files.readAllBytes(file.toPath());
+        }
+        catch (IOException e) {
+            log.error("replay(): Failed to read \"" + file.getAbsolutePath() + "\"", e);
+            return;
+        }
+        int first = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data [i] == '\n') {
+                if (i > first) {
+                    apply.accept(new String(data, first, i - first, StandardCharsets.UTF_8));
+                    entries++;
+                }
+                first = i + 1;
+            }
+        }
+        if (first < data.length) {
+            log.warn("replay(): Ignoring incomplete last entry in \"" + file.getAbsolutePath() + "\"");
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("replay(): " + entries + " entries replayed from \"" + file.getAbsolutePath() + "\"");
+        }
+    }
+
+    /**
+     * Append an entry, without forcing it to disk.
+     * @return The position to pass to sync().
+     */
+    synchronized long append(String entry) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        final ByteBuffer buf = ByteBuffer.wrap((entry + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) {
+            written += channel.write(buf);
+        }
+        entries++;
+
+        return written;
+    }
+
+    /**
+     * Make sure everything up to the given position is on disk.
+     */
+    void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= position) {
+                return;
+            }
+            final long target;
+            final FileChannel ch;
+            synchronized (this) {
+                target = written;
+                ch = channel;
+            }
+            ch.force(false);
+            synced = target;
+        }
+    }
+
+    /**
+     * Throw away all entries, after they have been made part of the file they change.
+     */
+    synchronized void truncate() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        channel.truncate(0);
+        channel.force(true);
+        entries = 0;
+        synced = written;
+    }
+}
@@ -20,9 +20,17 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * The user accounts.
+ *
+ * The file is loaded on first use into an immutable snapshot, so readers never lock. Changes are made on a copy under
+ * a writer lock, appended to the journal, and published once the journal is on disk. The User records in a snapshot
+ * are shared, so don't change them.
+ */
 public class PasswordFile extends SecurityFile {
 
     private static final Logger log = LogManager.getLogger(PasswordFile.class);
@@ -44,13 +52,16 @@ public class PasswordFile extends SecurityFile {
     public static final int FLD_SHELL = 6;
 
     private File path;
-    private HashMap<String,User> users = new HashMap<>();
+    private Journal journal;
+    private final Object writeLock = new Object();
+    private final SnapshotHolder<Map<String,User>> users = new SnapshotHolder<>(writeLock);
 
     public PasswordFile(String path)
     {
         log.debug("PasswordFile(\"" + path + "\")");
 
         this.path = new File(path);
+        this.journal = new Journal(journalFor(this.path));
     }
 
     public PasswordFile(File path)
@@ -58,71 +69,153 @@ public class PasswordFile extends SecurityFile {
         log.debug("PasswordFile(\"" + path.getAbsolutePath() + ")");
 
         this.path = path;
+        this.journal = new Journal(journalFor(path));
+    }
+
+    private void parse(String line, Map<String,User> into) throws IOException {
+        String[] pwdFields = line.split(":");
+        if (pwdFields.length != NUM_FIELDS) {
+            throw new IOException("Bad passwd format: \"" + line + "\"");
+        }
+        User user = new User();
+
+        checkNonEmpty(FLDNAME_USERNAME, pwdFields [FLD_USERNAME]);
+        user.userName = pwdFields [FLD_USERNAME];
+        checkEmpty(FLDNAME_PASSWORD, pwdFields [FLD_PASSWORD]);
+        checkEmpty(FLDNAME_USERID, pwdFields [FLD_USERID]);
+        checkEmpty(FLDNAME_GROUPID, pwdFields [FLD_GROUPID]);
+        checkNonEmpty(FLDNAME_REALNAME, pwdFields [FLD_REALNAME]);
+        user.longName = pwdFields [FLD_REALNAME];
+        checkNonEmpty(FLDNAME_HOME, pwdFields [FLD_HOME]);
+        user.defaultSession = pwdFields [FLD_HOME];
+        checkEmpty(FLDNAME_SHELL, pwdFields [FLD_SHELL]);
+
+        if (log.isDebugEnabled()) {
+            log.debug("parse(): Adding user \"" + user.userName + "\"");
+        }
+        into.put(user.userName, user);
+    }
+
+    private static String format(User user) {
+        return user.userName + ":x:x:x:" + user.longName + ":" + user.defaultSession + ":x";
     }
 
-    private void load() {
+    private Map<String,User> load() {
         if (log.isDebugEnabled()) {
             log.debug("load()");
         }
 
+        final Map<String,User> result = new HashMap<>();
         load(path, (String line) -> {
-            boolean result = false;
+            boolean stop = false;
 
             try {
-                String[] pwdFields = line.split(":");
-                if (pwdFields.length != NUM_FIELDS) {
-                        throw new IOException("Bad passwd format: \"" + line + "\"");
-                }
-                User user = new User();
-
-                checkNonEmpty(FLDNAME_USERNAME, pwdFields [FLD_USERNAME]);
-                user.userName = pwdFields [FLD_USERNAME];
-                checkEmpty(FLDNAME_PASSWORD, pwdFields [FLD_PASSWORD]);
-                checkEmpty(FLDNAME_USERID, pwdFields [FLD_USERID]);
-                checkEmpty(FLDNAME_GROUPID, pwdFields [FLD_GROUPID]);
-                checkNonEmpty(FLDNAME_REALNAME, pwdFields [FLD_REALNAME]);
-                user.longName = pwdFields [FLD_REALNAME];
-                checkNonEmpty(FLDNAME_HOME, pwdFields [FLD_HOME]);
-                user.defaultSession = pwdFields [FLD_HOME];
-                checkEmpty(FLDNAME_SHELL, pwdFields [FLD_SHELL]);
-
-                if (log.isDebugEnabled()) {
-                    log.debug("load(): Adding user \"" + user.userName + "\"");
-                }
-                users.put(user.userName, user);
+                parse(line, result);
             }
             catch (IOException e) {
                 log.error("load(): Exception while loading \"" + path + "\"", e);
-                result = true;
-                users.clear();
+                stop = true;
+                result.clear();
             }
-            return result;
+            return stop;
         });
+        replay(journal, line -> parse(line, result), result::remove);
         if (log.isDebugEnabled()) {
-            log.debug("load(): " + users.size() + " user(s) read");
+            log.debug("load(): " + result.size() + " user(s) read");
         }
+        return Collections.unmodifiableMap(result);
     }
 
-    private boolean store() {
-        return store("users", path, (PrintWriter pr) -> {
-            for (User user: users.values()) {
-                pr.print(user.userName);
-                pr.print(":x:x:x:");
-                pr.print(user.longName);
-                pr.print(":");
-                pr.print(user.defaultSession);
-                pr.println(":x");
-            }
-        });
+    private void store(PrintWriter pr, Map<String,User> newUsers) {
+        for (User user: newUsers.values()) {
+            pr.println(format(user));
+        }
     }
 
+    /**
+     * Re-read the file and publish it as the new snapshot.
+     */
+    public void reload() {
+        synchronized (writeLock) {
+            users.reset(withFileLock(path, this::load));
+        }
+    }
+
+    /**
+     * @return The current snapshot of all users, by username. It is never changed, later changes publish a new one.
+     */
     public Map<String,User> getUsers() {
-        load();
-        return users;
+        final Map<String,User> result = users.get();
+        if (result != null) {
+            return result;
+        }
+        synchronized (writeLock) {
+            if (users.get() == null) {
+                users.reset(withFileLock(path, this::load));
+            }
+            return users.get();
+        }
     }
 
     public User getUser(String userId) {
-        return getUsers().containsKey(userId) ? users.get(userId) : null;
+        return getUsers().get(userId);
+    }
+
+    /**
+     * @return The users including changes that are not on disk yet. Must be called with the writer lock held.
+     */
+    private Map<String,User> getLatest() {
+        getUsers();
+        return users.latest();
+    }
+
+    /**
+     * Journal a change and make the changed copy of the users the one later changes build on. Must be called with the
+     * writer lock held.
+     * @return The change to commit, or null if it could not be written.
+     */
+    private SnapshotHolder.Change<Map<String,User>> update(Map<String,User> newUsers, char op, String value) {
+        final long position = withFileLock(path, () -> append(journal, op, value));
+        return (position < 0) ? null : users.change(Collections.unmodifiableMap(newUsers), position);
+    }
+
+    /**
+     * Wait for a change to reach the disk, publish it, and fold the journal into the file if it has grown large.
+     */
+    private boolean commit(SnapshotHolder.Change<Map<String,User>> change) {
+        if (!commit(journal, users, change)) {
+            return false;
+        }
+        synchronized (writeLock) {
+            if (needsCompaction(journal)) {
+                // Re-read first, so changes appended by another process are kept
+                withFileLock(path, () -> {
+                    final Map<String,User> current = load();
+                    if (rewrite("users", path, journal, pr -> store(pr, current))) {
+                        users.reset(current);
+                    }
+                    return null;
+                });
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replace all users at once, rewriting the file and emptying the journal.
+     */
+    public boolean replaceAll(Map<String,User> newUsers) {
+        if (log.isInfoEnabled()) {
+            log.info("replaceAll(): Replacing all users with " + newUsers.size() + " user(s)");
+        }
+        synchronized (writeLock) {
+            final Map<String,User> copy = Collections.unmodifiableMap(new HashMap<>(newUsers));
+            if (!withFileLock(path, () -> rewrite("users", path, journal, pr -> store(pr, copy)))) {
+                return false;
+            }
+            users.reset(copy);
+        }
+        return true;
     }
 
     public boolean addUser(String userName, String longName, String defaultSession) {
@@ -130,16 +223,20 @@ public class PasswordFile extends SecurityFile {
             log.info("addUser(): Adding user \"" + userName + "\", real name \"" + longName + "\", default session \"" + defaultSession + "\"");
         }
 
-        boolean result = false;
+        SnapshotHolder.Change<Map<String,User>> change = null;
 
-        if (getUser(userName) != null) {
-            log.error("addUser(): Tried to add an existing user \"" + userName + "\"");
-        }
-        else {
-            User user = new User(userName, longName, defaultSession);
-            users.put(userName, user);
-            result = store();
+        synchronized (writeLock) {
+            if (getLatest().containsKey(userName)) {
+                log.error("addUser(): Tried to add an existing user \"" + userName + "\"");
+            }
+            else {
+                final User user = new User(userName, longName, defaultSession);
+                final Map<String,User> newUsers = new HashMap<>(getLatest());
+                newUsers.put(userName, user);
+                change = update(newUsers, JOURNAL_PUT, format(user));
+            }
         }
+        final boolean result = commit(change);
         if (log.isInfoEnabled()) {
             log.info("addUser(): " + (result ? "Success" : "Failed"));
         }
@@ -151,15 +248,19 @@ public class PasswordFile extends SecurityFile {
             log.info("removeUser(): Removing user \"" + userName + "\"");
         }
 
-        boolean result = false;
+        SnapshotHolder.Change<Map<String,User>> change = null;
 
-        if (getUser(userName) == null) {
-            log.error("removeUser(): Tried to remove a non-existing user \"" + userName + "\"");
-        }
-        else {
-            users.remove(userName);
-            result = store();
+        synchronized (writeLock) {
+            if (!getLatest().containsKey(userName)) {
+                log.error("removeUser(): Tried to remove a non-existing user \"" + userName + "\"");
+            }
+            else {
+                final Map<String,User> newUsers = new HashMap<>(getLatest());
+                newUsers.remove(userName);
+                change = update(newUsers, JOURNAL_REMOVE, userName);
+            }
         }
+        final boolean result = commit(change);
         if (log.isInfoEnabled()) {
             log.info("removeUser(): " + (result ? "Success" : "Failed"));
         }
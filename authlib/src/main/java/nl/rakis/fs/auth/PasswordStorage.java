@@ -63,6 +63,9 @@ public class PasswordStorage {
     public static final int SALT_INDEX = 3;
     public static final int PBKDF2_INDEX = 4;
 
+    // Looking up the SecretKeyFactory is not free, and instances are not thread safe, so keep one per thread.
+    private static final ThreadLocal<SecretKeyFactory> keyFactories = new ThreadLocal<>();
+
     public static String createHash(String password)
             throws CannotPerformOperationException
     {
@@ -190,8 +193,7 @@ public class PasswordStorage {
     {
         try {
             PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, bytes * 8);
-            SecretKeyFactory skf = SecretKeyFactory.getInstance(PBKDF2_ALGORITHM);
-            return skf.generateSecret(spec).getEncoded();
+            return keyFactory().generateSecret(spec).getEncoded();
         } catch (NoSuchAlgorithmException ex) {
             throw new CannotPerformOperationException(
                     "Hash algorithm not supported.",
@@ -205,6 +207,17 @@ public class PasswordStorage {
         }
     }
 
+    private static SecretKeyFactory keyFactory()
+            throws NoSuchAlgorithmException
+    {
+        SecretKeyFactory result = keyFactories.get();
+        if (result == null) {
+            result = SecretKeyFactory.getInstance(PBKDF2_ALGORITHM);
+            keyFactories.set(result);
+        }
+        return result;
+    }
+
     private static byte[] fromBase64(String hex)
             throws IllegalArgumentException
     {
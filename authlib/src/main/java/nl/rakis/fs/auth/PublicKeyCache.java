@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.auth;
+
+import nl.rakis.fs.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemReader;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Application wide holder for the authserver's public key. The key is fetched once, kept in memory and refreshed
+ * in the background. If the authserver cannot be reached, a local PEM file is used instead.
+ *
+ * A refresh can also be forced from a request thread, so the fetch has connect and read timeouts, and a slow
+ * authserver holds up that request for a bounded time only.
+ */
+@Singleton
+public class PublicKeyCache
+{
+
+    private static final Logger log = LogManager.getLogger(PublicKeyCache.class);
+
+    public static final String URL_PUBLICKEY = "nl.rakis.fs.url.publickey";
+
+    public static final String CFG_PUBLICKEY_FILE = "nl.rakis.fs.auth.publickey.file";
+    public static final String CFG_PUBLICKEY_REFRESH = "nl.rakis.fs.auth.publickey.refresh";
+    public static final String DEF_PUBLICKEY_REFRESH = "3600";
+    public static final String CFG_PUBLICKEY_MINREFRESH = "nl.rakis.fs.auth.publickey.minrefresh";
+    public static final String DEF_PUBLICKEY_MINREFRESH = "30";
+    public static final String CFG_PUBLICKEY_TIMEOUT = "nl.rakis.fs.auth.publickey.timeout";
+    public static final String DEF_PUBLICKEY_TIMEOUT = "5000";
+
+    @Inject
+    private Config config;
+
+    private String keyUrl;
+    private File keyFile;
+    private int timeoutMillis;
+    private long minRefreshMillis;
+
+    private volatile RSAPublicKey pubKey;
+    private final AtomicLong lastRefresh = new AtomicLong(0L);
+
+    private ScheduledExecutorService refresher;
+
+    public PublicKeyCache() {
+        log.debug("PublicKeyCache()");
+
+        log.debug("PublicKeyCache(): Done");
+    }
+
+    @PostConstruct
+    private void init()
+    {
+        log.debug("init()");
+
+        keyUrl = config.get(URL_PUBLICKEY);
+        final String keyPath = config.get(CFG_PUBLICKEY_FILE);
+        keyFile = ((keyPath != null) && !keyPath.trim().isEmpty()) ? new File(keyPath) : null;
+        if ((keyUrl == null) && (keyFile == null)) {
+            log.fatal("init(): Don't know where to get the Public Key");
+        }
+
+        final long refreshSecs = getLong(CFG_PUBLICKEY_REFRESH, DEF_PUBLICKEY_REFRESH);
+        minRefreshMillis = getLong(CFG_PUBLICKEY_MINREFRESH, DEF_PUBLICKEY_MINREFRESH) * 1000L;
+        timeoutMillis = (int) getLong(CFG_PUBLICKEY_TIMEOUT, DEF_PUBLICKEY_TIMEOUT);
+
+        refresh();
+
+        if ((keyUrl != null) && (refreshSecs > 0)) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "PublicKeyCache-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+            refresher.scheduleWithFixedDelay(this::refresh, refreshSecs, refreshSecs, TimeUnit.SECONDS);
+        }
+        log.debug("init(): Done");
+    }
+
+    @PreDestroy
+    private void destroy()
+    {
+        log.debug("destroy()");
+
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    private long getLong(String key, String dfl) {
+        try {
+            return Long.parseLong(config.get(key, dfl).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("getLong(): Bad value for \"" + key + "\", using " + dfl);
+            return Long.parseLong(dfl);
+        }
+    }
+
+    /**
+     * Return the current public key, loading it if we don't have one yet.
+     * @return The public key, or null if none could be obtained.
+     */
+    public RSAPublicKey getKey() {
+        RSAPublicKey result = pubKey;
+
+        if (result == null) {
+            requestRefresh();
+            result = pubKey;
+        }
+        return result;
+    }
+
+    /**
+     * Ask for a refresh, e.g. because a signature failed to verify. Requests are ignored if the last refresh is more
+     * recent than the configured minimum interval, so bad tokens cannot be used to hammer the authserver.
+     * @return true if the key was actually replaced.
+     */
+    public boolean requestRefresh() {
+        final long now = System.currentTimeMillis();
+        final long last = lastRefresh.get();
+
+        if (((now - last) < minRefreshMillis) || !lastRefresh.compareAndSet(last, now)) {
+            log.debug("requestRefresh(): Refreshed recently, ignoring request");
+            return false;
+        }
+        final RSAPublicKey oldKey = pubKey;
+        refresh();
+        return (pubKey != null) && !pubKey.equals(oldKey);
+    }
+
+    private void refresh()
+    {
+        log.debug("refresh()");
+
+        lastRefresh.set(System.currentTimeMillis());
+
+        RSAPublicKey newKey = null;
+        if (keyUrl != null) {
+            newKey = fetchKey();
+        }
+        if ((newKey == null) && (pubKey == null) && (keyFile != null)) {
+            newKey = loadKey();
+        }
+        if (newKey != null) {
+            pubKey = newKey;
+        }
+        else if (pubKey != null) {
+            log.warn("refresh(): Could not refresh Public Key, keeping the current one");
+        }
+        else {
+            log.fatal("refresh(): No Public Key available");
+        }
+    }
+
+    private RSAPublicKey fetchKey() {
+        try {
+            final HttpURLConnection conn = (HttpURLConnection) new URL(keyUrl).openConnection();
+            conn.setConnectTimeout(timeoutMillis);
+            conn.setReadTimeout(timeoutMillis);
+
+            final int status = conn.getResponseCode();
+            if ((status < 200) || (status >= 300)) {
+                log.error("fetchKey(): Failed to obtain Public Key from \"" + keyUrl + "\", status " + status);
+                conn.disconnect();
+                return null;
+            }
+            final StringBuilder key = new StringBuilder();
+            try (InputStream in = conn.getInputStream();
+                 Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8))
+            {
+                final char[] buf = new char [4096];
+                int len;
+                while ((len = reader.read(buf)) >= 0) {
+                    key.append(buf, 0, len);
+                }
+            }
+            return parseKey(key.toString());
+        }
+        catch (IOException e) {
+            log.error("fetchKey(): Failed to obtain Public Key from \"" + keyUrl + "\"", e);
+            return null;
+        }
+    }
+
+    private RSAPublicKey loadKey() {
+        if (log.isInfoEnabled()) {
+            log.info("loadKey(): Loading Public Key from \"" + keyFile.getAbsolutePath() + "\"");
+        }
+        final PublicKey key = new PEMPublicKeyStore(keyFile).loadKey();
+        if ((key != null) && !(key instanceof RSAPublicKey)) {
+            log.error("loadKey(): Stored key was not an RSA Public Key");
+        }
+        return (key instanceof RSAPublicKey) ? (RSAPublicKey) key : null;
+    }
+
+    private static RSAPublicKey parseKey(String key) {
+        RSAPublicKey result = null;
+        try {
+            log.debug("parseKey(): Loading key data and building spec");
+            try (StringReader sr = new StringReader(key + "\n\n");
+                 PemReader pr = new PemReader(sr))
+            {
+                PemObject po = pr.readPemObject();
+                if (po == null) {
+                    log.error("parseKey(): No PEM object found");
+                    return null;
+                }
+                X509EncodedKeySpec spec = new X509EncodedKeySpec(po.getContent());
+                KeyFactory kf = KeyFactory.getInstance("RSA");
+                log.debug("parseKey(): Generating RSA key");
+                PublicKey pubKeyTmp = kf.generatePublic(spec);
+                if (pubKeyTmp instanceof RSAPublicKey) {
+                    result = (RSAPublicKey) pubKeyTmp;
+                } else {
+                    log.error("parseKey(): Stored key was not an RSA Public Key");
+                }
+            }
+        }
+        catch (IOException e) {
+            log.error("parseKey(): Failed to read Public Key", e);
+        }
+        catch (NoSuchAlgorithmException e) {
+            log.error("parseKey(): RSA algorithm not available", e);
+        }
+        catch (InvalidKeySpecException e) {
+            log.error("parseKey(): Public key corrupted", e);
+        }
+        return result;
+    }
+}
@@ -20,17 +20,92 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 
+/**
+ * Base class for the files with accounts, password hashes and groups.
+ *
+ * Changes are appended to a journal next to the file, which is replayed on load. Once the journal has grown to
+ * COMPACT_SIZE entries, the file is re-read and rewritten in place, and the journal is emptied. A journal entry
+ * is either JOURNAL_PUT followed by a record in the file's own format, or JOURNAL_REMOVE followed by a key.
+ *
+ * Appending, loading and rewriting are done holding a lock file next to the file, because other processes may change
+ * the same file.
+ */
 public abstract class SecurityFile
 {
 
     private static final Logger log = LogManager.getLogger(SecurityFile.class);
 
+    public static final String JOURNAL_SUFFIX = ".journal";
+    public static final String LOCK_SUFFIX = ".lock";
+    public static final int COMPACT_SIZE = 1000;
+    protected static final char JOURNAL_PUT = '+';
+    protected static final char JOURNAL_REMOVE = '-';
+
+    @FunctionalInterface
+    protected interface RecordParser
+    {
+        void parse(String line) throws IOException;
+    }
+
+    /**
+     * @return The journal belonging to the given file.
+     */
+    public static File journalFor(File path) {
+        return new File(path.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @return The lock file belonging to the given file.
+     */
+    public static File lockFor(File path) {
+        return new File(path.getPath() + LOCK_SUFFIX);
+    }
+
+    /**
+     * Run some code while holding the lock file of the given file, so other processes using the same file, such as
+     * AuthUtil next to a running server, cannot append to the journal while it is being read or folded into the file.
+     * A JVM can only hold a file lock once, so call this with the writer lock held, and don't nest it. If the lock
+     * cannot be taken at all, the code runs without it.
+     */
+    protected <T> T withFileLock(File path, Supplier<T> action)
+    {
+        final File lockFile = lockFor(path);
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.lock();
+        }
+        catch (IOException e) {
+            log.error("withFileLock(): Cannot lock \"" + lockFile.getAbsolutePath() + "\", continuing without", e);
+        }
+        try {
+            return action.get();
+        }
+        finally {
+            if (channel != null) {
+                try {
+                    // Releases the lock as well
+                    channel.close();
+                }
+                catch (IOException e) {
+                    log.error("withFileLock(): Failed to release \"" + lockFile.getAbsolutePath() + "\"", e);
+                }
+            }
+        }
+    }
+
     protected void checkEmpty(String fldName, String fld) throws IOException {
         if ((fld != null) && (fld.length() > 0) && !fld.equals("x") && !fld.equals("*")) {
             throw new IOException(fldName + " should be empty: \"" + fld + "\"");
@@ -69,65 +144,65 @@ public abstract class SecurityFile
         return String.format("%1$tY%1$tm%1$td-%1$tH%1$tM%1$tS.%1$tL", GregorianCalendar.getInstance());
     }
 
+    /**
+     * Replace the file with new contents. These are written to a temporary file next to it, which is forced to disk
+     * and then renamed over the original, so the file is always either completely old or completely new.
+     */
     protected boolean store(String entities, File path, Consumer<PrintWriter> doWrite)
     {
         if (log.isInfoEnabled()) {
             log.info("store(): (Re)writing " + entities + " in \"" + path.getAbsolutePath() + "\"");
         }
 
-        boolean result = false;
-
-        File dir = path.getParentFile();
         File tmpOut = null;
         try {
-            tmpOut = File.createTempFile("tmp_", getTimestamp(), dir);
+            tmpOut = File.createTempFile("tmp_", getTimestamp(), path.getAbsoluteFile().getParentFile());
             if (log.isDebugEnabled()) {
                 log.debug("store(): Creating \"" + tmpOut.getAbsolutePath() + "\" and writing " + entities);
             }
-            try (FileWriter wr = new FileWriter(tmpOut);
-                 PrintWriter pr = new PrintWriter(wr))
+            try (FileOutputStream out = new FileOutputStream(tmpOut);
+                 PrintWriter pr = new PrintWriter(new OutputStreamWriter(out)))
             {
                 doWrite.accept(pr);
+                // The journal may be emptied after this, so the new file must be on disk first
+                pr.flush();
+                if (pr.checkError()) {
+                    throw new IOException("Failed to write \"" + tmpOut.getAbsolutePath() + "\"");
+                }
+                out.getFD().sync();
             }
-        } catch (IOException e) {
-            log.error("store(): Failed to create temp file", e);
-        }
-        if ((tmpOut != null) && tmpOut.exists()) {
-            File backup = new File(path.getAbsolutePath() + "_" + getTimestamp());
             if (log.isDebugEnabled()) {
-                log.debug("store(): Creating backup \"" + backup.getAbsolutePath() + "\"");
+                log.debug("store(): Moving temporary file to \"" + path.getAbsolutePath() + "\"");
             }
-            try {
-                if (!path.renameTo(backup)) {
-                    log.error("store(): Cannot rename " + path.getAbsolutePath() + " to " + backup.getAbsolutePath());
-                }
-                else {
-                    if (log.isDebugEnabled()) {
-                        log.debug("store(): Moving temporary file to \"" + path.getAbsolutePath() + "\"");
-                    }
-                    if (!tmpOut.renameTo(path)) {
-                        log.error("store(): Cannot rename " + tmpOut.getAbsolutePath() + " to " + path.getAbsolutePath());
-                        // Ok, we're getting desperate here
-                        if (!backup.renameTo(path)) {
-                            log.fatal("store(): Renamed original file, failed to rename new version, now failed to restore original!");
-                        }
-                    }
-                    else { // Ok, we're done
-                        if (log.isInfoEnabled()) {
-                            log.info("store(): Successfully updated " + entities);
-                        }
-                        result = true;
-                    }
-                }
-            }
-            catch (SecurityException e) {
-                log.fatal("store(): Not enough rights on filesystem", e);
+            Files.move(tmpOut.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException | SecurityException e) {
+            log.error("store(): Failed to write " + entities + " to \"" + path.getAbsolutePath() + "\"", e);
+            if ((tmpOut != null) && tmpOut.exists() && !tmpOut.delete()) {
+                log.warn("store(): Cannot remove \"" + tmpOut.getAbsolutePath() + "\"");
             }
+            return false;
         }
-        else {
-            log.error("Failed to write " + entities);
+        syncDirectory(path.getAbsoluteFile().getParentFile());
+
+        if (log.isInfoEnabled()) {
+            log.info("store(): Successfully updated " + entities);
+        }
+        return true;
+    }
+
+    /**
+     * Force a rename in a directory to disk. Not every platform can open a directory, so failing is only logged.
+     */
+    private void syncDirectory(File dir) {
+        try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        }
+        catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("syncDirectory(): Cannot sync \"" + dir.getAbsolutePath() + "\"", e);
+            }
         }
-        return result;
     }
 
     protected void load(File path, Predicate<String> doParse)
@@ -160,4 +235,112 @@ public abstract class SecurityFile
         }
     }
 
+    /**
+     * Replay a journal, passing the record of every put to doPut and the key of every remove to doRemove. Bad
+     * entries are logged and skipped.
+     */
+    protected void replay(Journal journal, RecordParser doPut, Consumer<String> doRemove)
+    {
+        journal.replay((String entry) -> {
+            try {
+                switch (entry.charAt(0)) {
+                    case JOURNAL_PUT:
+                        doPut.parse(entry.substring(1));
+                        break;
+                    case JOURNAL_REMOVE:
+                        doRemove.accept(entry.substring(1));
+                        break;
+                    default:
+                        throw new IOException("Bad journal entry: \"" + entry + "\"");
+                }
+            }
+            catch (IOException e) {
+                log.error("replay(): Skipping entry in \"" + journal.getFile() + "\"", e);
+            }
+        });
+    }
+
+    /**
+     * Append an entry to a journal, without waiting for it to reach the disk.
+     * @return The position to pass to sync(), or -1 if the append failed.
+     */
+    protected long append(Journal journal, char op, String value)
+    {
+        try {
+            return journal.append(op + value);
+        }
+        catch (IOException e) {
+            log.error("append(): Failed to write to \"" + journal.getFile() + "\"", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Wait until a journal is on disk up to the position returned by append(). Call this without holding the
+     * writer lock, so concurrent changes can share the fsync.
+     * @return false if the append or the sync failed.
+     */
+    protected boolean sync(Journal journal, long position)
+    {
+        if (position < 0) {
+            return false;
+        }
+        try {
+            journal.sync(position);
+            return true;
+        }
+        catch (IOException e) {
+            log.error("sync(): Failed to sync \"" + journal.getFile() + "\"", e);
+            return false;
+        }
+    }
+
+    /**
+     * Wait until a change is on disk, and only then publish it to readers. Call this without holding the writer lock,
+     * so concurrent changes can share the fsync.
+     * @param change The change, or null if it could not be appended.
+     * @return false if the append or the sync failed.
+     */
+    protected <T> boolean commit(Journal journal, SnapshotHolder<T> holder, SnapshotHolder.Change<T> change)
+    {
+        if ((change == null) || !sync(journal, change.getPosition())) {
+            return false;
+        }
+        holder.publish(change);
+        return true;
+    }
+
+    /**
+     * @return true if the journal has grown to COMPACT_SIZE entries, and should be folded into the file.
+     */
+    protected boolean needsCompaction(Journal journal)
+    {
+        if (journal.size() < COMPACT_SIZE) {
+            return false;
+        }
+        if (log.isInfoEnabled()) {
+            log.info("needsCompaction(): " + journal.size() + " entries in \"" + journal.getFile() + "\"");
+        }
+        return true;
+    }
+
+    /**
+     * Rewrite the file and empty its journal. Call this with the writer lock and the file lock held.
+     * @return false if the file could not be written.
+     */
+    protected boolean rewrite(String entities, File path, Journal journal, Consumer<PrintWriter> doWrite)
+    {
+        if (!store(entities, path, doWrite)) {
+            return false;
+        }
+        try {
+            journal.truncate();
+        }
+        catch (IOException e) {
+            // Harmless, replaying entries that are already in the file gives the same result
+            log.error("rewrite(): Failed to empty \"" + journal.getFile() + "\"", e);
+        }
+        return true;
+    }
+
 }
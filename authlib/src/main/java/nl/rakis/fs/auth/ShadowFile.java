@@ -20,9 +20,16 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * The password hashes.
+ *
+ * The file is loaded on first use into an immutable snapshot, so the authentication path never locks. Changes are
+ * made on a copy under a writer lock, appended to the journal, and published once the journal is on disk.
+ */
 public class ShadowFile extends SecurityFile {
 
     private static final Logger log = LogManager.getLogger(ShadowFile.class);
@@ -34,13 +41,16 @@ public class ShadowFile extends SecurityFile {
     public static final int FLD_PASSWORD = 1;
 
     private File path;
-    private HashMap<String,String> passwords = new HashMap<>();
+    private Journal journal;
+    private final Object writeLock = new Object();
+    private final SnapshotHolder<Map<String,String>> passwords = new SnapshotHolder<>(writeLock);
 
     public ShadowFile(String path)
     {
         log.debug("ShadowFile(\"" + path + "\")");
 
         this.path = new File(path);
+        this.journal = new Journal(journalFor(this.path));
     }
 
     public ShadowFile(File path)
@@ -48,65 +58,146 @@ public class ShadowFile extends SecurityFile {
         log.debug("ShadowFile(\"" + path.getAbsolutePath() + "\")");
 
         this.path = path;
+        this.journal = new Journal(journalFor(path));
+    }
+
+    private void parse(String line, Map<String,String> into) throws IOException {
+        int pos = line.indexOf(':');
+        if ((pos <= 0) || (pos == line.length()-1)) {
+            throw new IOException("Bad passwd format: \"" + line + "\"");
+        }
+
+        final String user = line.substring(0, pos);
+        checkNonEmpty(FLDNAME_USERNAME, user);
+        final String pwd = line.substring(pos+1);
+        checkNonEmpty(FLDNAME_PASSWORD, pwd);
+
+        if (log.isDebugEnabled()) {
+            log.debug("parse(): Adding password for user \"" + user + "\"");
+        }
+        into.put(user, pwd);
     }
 
-    private void load() {
+    private Map<String,String> load() {
         if (log.isDebugEnabled()) {
             log.debug("load()");
         }
 
+        final Map<String,String> result = new HashMap<>();
         load(path, (String line) -> {
-            boolean result = false;
-
-            if (log.isTraceEnabled()) {
-                log.trace("load(): Read \"" + line + "\"");
-            }
+            boolean stop = false;
 
             try {
-                int pos = line.indexOf(':');
-                if ((pos <= 0) || (pos == line.length()-1)) {
-                    throw new IOException("Bad passwd format: \"" + line + "\"");
-                }
-
-                final String user = line.substring(0, pos);
-                checkNonEmpty(FLDNAME_USERNAME, user);
-                final String pwd = line.substring(pos+1);
-                checkNonEmpty(FLDNAME_PASSWORD, pwd);
-
-                if (log.isDebugEnabled()) {
-                    log.debug("load(): Adding password for user \"" + user + "\"");
-                }
-                passwords.put(user, pwd);
+                parse(line, result);
             }
             catch (IOException e) {
                 log.error("load(): Exception while loading \"" + path + "\"", e);
-                result = true;
-                passwords.clear();
+                stop = true;
+                result.clear();
             }
-             return result;
+            return stop;
         });
+        replay(journal, line -> parse(line, result), result::remove);
         if (log.isDebugEnabled()) {
-            log.debug("load(): " + passwords.size() + " password(s) read");
+            log.debug("load(): " + result.size() + " password(s) read");
         }
+        return Collections.unmodifiableMap(result);
     }
 
-    private boolean store() {
-        return store("passwords", path, (PrintWriter pr) -> {
-            for (String user: passwords.keySet()) {
-                pr.print(user);
-                pr.print(":");
-                pr.print(passwords.get(user));
-            }
-        });
+    private void store(PrintWriter pr, Map<String,String> newPasswords) {
+        for (Map.Entry<String,String> entry: newPasswords.entrySet()) {
+            pr.print(entry.getKey());
+            pr.print(":");
+            pr.println(entry.getValue());
+        }
     }
 
+    /**
+     * Re-read the file and publish it as the new snapshot.
+     */
+    public void reload() {
+        synchronized (writeLock) {
+            passwords.reset(withFileLock(path, this::load));
+        }
+    }
+
+    /**
+     * @return The current snapshot of all password hashes, by username. It is never changed, later changes publish a
+     * new one.
+     */
     public Map<String,String> getPasswords() {
-        load();
-        return passwords;
+        final Map<String,String> result = passwords.get();
+        if (result != null) {
+            return result;
+        }
+        synchronized (writeLock) {
+            if (passwords.get() == null) {
+                passwords.reset(withFileLock(path, this::load));
+            }
+            return passwords.get();
+        }
     }
 
     public String getPasswordHash(String userId) {
-        return getPasswords().containsKey(userId) ? passwords.get(userId) : null;
+        return getPasswords().get(userId);
+    }
+
+    /**
+     * @return The password hashes including changes that are not on disk yet. Must be called with the writer lock
+     * held.
+     */
+    private Map<String,String> getLatest() {
+        getPasswords();
+        return passwords.latest();
+    }
+
+    /**
+     * Journal a change and make the changed copy of the password hashes the one later changes build on. Must be
+     * called with the writer lock held.
+     * @return The change to commit, or null if it could not be written.
+     */
+    private SnapshotHolder.Change<Map<String,String>> update(Map<String,String> newPasswords, char op, String value) {
+        final long position = withFileLock(path, () -> append(journal, op, value));
+        return (position < 0) ? null : passwords.change(Collections.unmodifiableMap(newPasswords), position);
+    }
+
+    /**
+     * Wait for a change to reach the disk, publish it, and fold the journal into the file if it has grown large.
+     */
+    private boolean commit(SnapshotHolder.Change<Map<String,String>> change) {
+        if (!commit(journal, passwords, change)) {
+            return false;
+        }
+        synchronized (writeLock) {
+            if (needsCompaction(journal)) {
+                // Re-read first, so changes appended by another process are kept
+                withFileLock(path, () -> {
+                    final Map<String,String> current = load();
+                    if (rewrite("passwords", path, journal, pr -> store(pr, current))) {
+                        passwords.reset(current);
+                    }
+                    return null;
+                });
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replace all password hashes at once, rewriting the file and emptying the journal.
+     */
+    public boolean replaceAll(Map<String,String> newPasswords) {
+        if (log.isInfoEnabled()) {
+            log.info("replaceAll(): Replacing all passwords with " + newPasswords.size() + " password(s)");
+        }
+        synchronized (writeLock) {
+            final Map<String,String> copy = Collections.unmodifiableMap(new HashMap<>(newPasswords));
+            if (!withFileLock(path, () -> rewrite("passwords", path, journal, pr -> store(pr, copy)))) {
+                return false;
+            }
+            passwords.reset(copy);
+        }
+        return true;
     }
 
     public boolean setPassword(String userName, String password) {
@@ -114,18 +205,25 @@ public class ShadowFile extends SecurityFile {
             log.info("setPassword(): Setting password for user \"" + userName + "\"");
         }
 
-        boolean result = false;
+        SnapshotHolder.Change<Map<String,String>> change = null;
 
-        if (getPasswordHash(userName) == null) {
-            log.info("setPassword(): Adding new user to password list");
-        }
         try {
-            passwords.put(userName, PasswordStorage.createHash(password));
-            result = store();
+            // Hash outside the lock, it is by far the slowest part
+            final String hash = PasswordStorage.createHash(password);
+
+            synchronized (writeLock) {
+                if (!getLatest().containsKey(userName)) {
+                    log.info("setPassword(): Adding new user to password list");
+                }
+                final Map<String,String> newPasswords = new HashMap<>(getLatest());
+                newPasswords.put(userName, hash);
+                change = update(newPasswords, JOURNAL_PUT, userName + ":" + hash);
+            }
         }
         catch (PasswordStorage.CannotPerformOperationException e) {
             log.error("setPassword(): Failed to create hash", e);
         }
+        final boolean result = commit(change);
 
         if (log.isInfoEnabled()) {
             log.info("setPassword(): " + (result ? "Success" : "Failed"));
@@ -139,15 +237,19 @@ public class ShadowFile extends SecurityFile {
             log.info("removePassword(): Removing password for user \"" + userName + "\"");
         }
 
-        boolean result = false;
+        SnapshotHolder.Change<Map<String,String>> change = null;
 
-        if (passwords.containsKey(userName)) {
-            passwords.remove(userName);
-            result = store();
-        }
-        else {
-            log.error("removePassword(): User \"" + userName + "\" does not exist.");
+        synchronized (writeLock) {
+            if (getLatest().containsKey(userName)) {
+                final Map<String,String> newPasswords = new HashMap<>(getLatest());
+                newPasswords.remove(userName);
+                change = update(newPasswords, JOURNAL_REMOVE, userName);
+            }
+            else {
+                log.error("removePassword(): User \"" + userName + "\" does not exist.");
+            }
         }
+        final boolean result = commit(change);
         if (log.isInfoEnabled()) {
             log.info("removePassword(): " + (result ? "Success" : "Failed"));
         }
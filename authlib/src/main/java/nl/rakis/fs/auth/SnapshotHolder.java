@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.auth;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The contents of a SecurityFile as readers see them, and the latest contents that writers build on.
+ *
+ * A change becomes the latest contents as soon as it is appended to the journal, but is only published to readers
+ * once the journal is on disk up to it, so a reader never sees a change that can still be lost. Threads commit their
+ * changes out of order, so a change is only published if nothing newer already has been.
+ */
+class SnapshotHolder<T>
+{
+
+    /**
+     * A change that was appended to the journal, but may not be on disk yet.
+     */
+    static final class Change<T>
+    {
+        private final T state;
+        private final long position;
+        private final long generation;
+
+        private Change(T state, long position, long generation) {
+            this.state = state;
+            this.position = position;
+            this.generation = generation;
+        }
+
+        long getPosition() {
+            return position;
+        }
+    }
+
+    private final Object writeLock;
+    private final AtomicReference<T> published = new AtomicReference<>();
+
+    private T latest;
+    private long generation;
+    private long publishedGeneration;
+
+    /**
+     * @param writeLock The lock the SecurityFile holds while changing its contents.
+     */
+    SnapshotHolder(Object writeLock) {
+        this.writeLock = writeLock;
+    }
+
+    /**
+     * @return The published contents, or null if they haven't been loaded yet.
+     */
+    T get() {
+        return published.get();
+    }
+
+    /**
+     * @return The contents including changes that are not on disk yet. Must be called with the writer lock held.
+     */
+    T latest() {
+        return (latest != null) ? latest : published.get();
+    }
+
+    /**
+     * Make a journaled change the contents later changes build on. Must be called with the writer lock held.
+     * @param state The new contents.
+     * @param position The position to sync the journal to.
+     * @return The change, to pass to publish() once the journal is on disk.
+     */
+    Change<T> change(T state, long position) {
+        latest = state;
+        return new Change<>(state, position, ++generation);
+    }
+
+    /**
+     * Publish a change whose journal entry is on disk, unless a newer one has been published already.
+     */
+    void publish(Change<T> change) {
+        synchronized (writeLock) {
+            if (change.generation > publishedGeneration) {
+                published.set(change.state);
+                publishedGeneration = change.generation;
+            }
+        }
+    }
+
+    /**
+     * Replace the contents with what was (re)read from disk, and publish them right away. Must be called with the
+     * writer lock held.
+     */
+    void reset(T state) {
+        latest = state;
+        publishedGeneration = ++generation;
+        published.set(state);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.auth;
+
+import nl.rakis.fs.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of already verified tokens, so we don't need to check the RSA signature every time a client sends
+ * the same "Authorization" header. Entries are keyed by a SHA-256 digest of the header, and are evicted when they
+ * are older than the TTL, or when they are the least recently used in a full stripe.
+ *
+ * Every entry remembers the public key it was verified with, and is only returned for that same key. A token that
+ * was verified with a key that has since been replaced is therefore checked again, without a window in which a
+ * concurrent put() could store it after the cache was cleared.
+ */
+public class TokenCache
+{
+
+    private static final Logger log = LogManager.getLogger(TokenCache.class);
+
+    public static final String CFG_TOKENCACHE_SIZE = "nl.rakis.fs.auth.tokencache.size";
+    public static final String DEF_TOKENCACHE_SIZE = "4096";
+    public static final String CFG_TOKENCACHE_TTL = "nl.rakis.fs.auth.tokencache.ttl";
+    public static final String DEF_TOKENCACHE_TTL = "300";
+
+    private static final int NUM_STRIPES = 16;
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private static final class Entry
+    {
+        final Token token;
+        final Key key;
+        final long expires;
+
+        Entry(Token token, Key key, long expires) {
+            this.token = token;
+            this.key = key;
+            this.expires = expires;
+        }
+    }
+
+    private static final class Stripe
+        extends LinkedHashMap<ByteBuffer,Entry>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        Stripe(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final long ttlMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public TokenCache(int maxSize, long ttlMillis) {
+        if (log.isDebugEnabled()) {
+            log.debug("TokenCache(" + maxSize + ", " + ttlMillis + ")");
+        }
+        this.ttlMillis = ttlMillis;
+        this.stripes = new Stripe[NUM_STRIPES];
+
+        final int stripeSize = Math.max(1, (maxSize + NUM_STRIPES - 1) / NUM_STRIPES);
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes [i] = new Stripe(stripeSize);
+        }
+    }
+
+    /**
+     * Build a TokenCache using the sizes from the configuration.
+     * @param cfg The configuration to use.
+     * @return The new TokenCache.
+     */
+    public static TokenCache fromConfig(Config cfg) {
+        int maxSize = Integer.parseInt(DEF_TOKENCACHE_SIZE);
+        long ttl = Long.parseLong(DEF_TOKENCACHE_TTL);
+        try {
+            maxSize = Integer.parseInt(cfg.get(CFG_TOKENCACHE_SIZE, DEF_TOKENCACHE_SIZE).trim());
+            ttl = Long.parseLong(cfg.get(CFG_TOKENCACHE_TTL, DEF_TOKENCACHE_TTL).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("fromConfig(): Bad token cache setting, using defaults", e);
+        }
+        return new TokenCache(maxSize, ttl * 1000L);
+    }
+
+    private static ByteBuffer digest(String authHeader) {
+        return ByteBuffer.wrap(digests.get().digest(authHeader.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Stripe stripeFor(ByteBuffer key) {
+        return stripes [(key.hashCode() & 0x7fffffff) % NUM_STRIPES];
+    }
+
+    /**
+     * Return a copy of the cached Token for this header, or null if we haven't verified it recently.
+     * @param authHeader The value of the "Authorization" header.
+     * @return The cached Token, or null.
+     */
+    public Token get(String authHeader) {
+        return get(authHeader, null);
+    }
+
+    /**
+     * Return a copy of the cached Token for this header, or null if we haven't verified it recently with this key.
+     * @param authHeader The value of the "Authorization" header.
+     * @param key The key the token must have been verified with.
+     * @return The cached Token, or null.
+     */
+    public Token get(String authHeader, Key key) {
+        if (authHeader == null) {
+            return null;
+        }
+        final ByteBuffer digest = digest(authHeader);
+        final Stripe stripe = stripeFor(digest);
+
+        Entry entry;
+        synchronized (stripe) {
+            entry = stripe.get(digest);
+            if ((entry != null) && (entry.expires < System.currentTimeMillis())) {
+                stripe.remove(digest);
+                entry = null;
+            }
+            else if ((entry != null) && !Objects.equals(entry.key, key)) {
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+
+        // Tokens are mutable, so never hand out the cached instance
+        final Token token = entry.token;
+        return new Token(token.getUsername(), token.getSessionId(), token.getSession(), token.getCallsign());
+    }
+
+    /**
+     * Remember that this header was successfully verified and decoded into the given Token.
+     * @param authHeader The value of the "Authorization" header.
+     * @param token The decoded Token.
+     */
+    public void put(String authHeader, Token token) {
+        put(authHeader, token, null);
+    }
+
+    /**
+     * Remember that this header was successfully verified with the given key and decoded into the given Token.
+     * @param authHeader The value of the "Authorization" header.
+     * @param token The decoded Token.
+     * @param key The key the token was verified with.
+     */
+    public void put(String authHeader, Token token, Key key) {
+        if ((authHeader == null) || (token == null) || !token.isValid()) {
+            return;
+        }
+        final ByteBuffer digest = digest(authHeader);
+        final Token copy = new Token(token.getUsername(), token.getSessionId(), token.getSession(), token.getCallsign());
+        final Stripe stripe = stripeFor(digest);
+
+        synchronized (stripe) {
+            stripe.put(digest, new Entry(copy, key, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    /**
+     * Forget all verified tokens.
+     */
+    public void clear() {
+        log.debug("clear()");
+
+        for (Stripe stripe: stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int result = 0;
+        for (Stripe stripe: stripes) {
+            synchronized (stripe) {
+                result += stripe.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of headers found in the cache since the statistics were last logged.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of headers not found in the cache since the statistics were last logged.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Log the number of hits and misses since the last time, and the number of cached tokens.
+     */
+    public void logStatistics() {
+        final long nrHits = hits.sumThenReset();
+        final long nrMisses = misses.sumThenReset();
+
+        if (log.isInfoEnabled()) {
+            log.info("logStatistics(): " + nrHits + " hit(s), " + nrMisses + " miss(es), " + size() + " cached");
+        }
+    }
+}
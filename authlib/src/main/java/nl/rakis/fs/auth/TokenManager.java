@@ -49,6 +49,7 @@ public class TokenManager
     private RSAPrivateKey priKey;
     private PEMPublicKeyStore pubStore;
     private RSAPublicKey pubKey;
+    private TokenCache tokenCache;
 
     public TokenManager() {
         log.debug("TokenManager()");
@@ -60,6 +61,8 @@ public class TokenManager
     public void init() {
         log.debug("init()");
 
+        this.tokenCache = TokenCache.fromConfig(cfg);
+
         this.keyDir = new File(cfg.get(CFG_AUTH_CERTDIR, DEF_AUTH_CERTDIR));
         if (log.isInfoEnabled()) {
             log.info("init(): Certificates are kept in \"" + keyDir.getAbsolutePath() + "\"");
@@ -183,6 +186,15 @@ public class TokenManager
     public Token decodeToken(String authHeader)
         throws NotAuthorizedException
     {
-        return Token.decode(authHeader, pubKey);
+        Token result = tokenCache.get(authHeader);
+        if (result == null) {
+            result = Token.decode(authHeader, pubKey);
+            tokenCache.put(authHeader, result);
+        }
+        return result;
+    }
+
+    public TokenCache getTokenCache() {
+        return tokenCache;
     }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.auth;
+
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.core.SecurityContext;
+import java.security.Principal;
+
+/**
+ * The caller of a request, as established from its bearer token. The "Authorization" header is kept too, for
+ * code that needs the caller's credentials rather than its identity.
+ */
+public class TokenPrincipal
+    implements Principal
+{
+
+    private final Token token;
+    private final String authHeader;
+
+    public TokenPrincipal(Token token, String authHeader) {
+        this.token = token;
+        this.authHeader = authHeader;
+    }
+
+    /**
+     * Return the principal of a request that passed the authentication filter.
+     * @param security The request's SecurityContext.
+     * @return The principal.
+     * @exception NotAuthorizedException Thrown if the request was not authenticated with a token.
+     */
+    public static TokenPrincipal of(SecurityContext security)
+        throws NotAuthorizedException
+    {
+        final Principal principal = (security == null) ? null : security.getUserPrincipal();
+        if (!(principal instanceof TokenPrincipal)) {
+            throw new NotAuthorizedException("No token");
+        }
+        return (TokenPrincipal) principal;
+    }
+
+    @Override
+    public String getName() {
+        return token.getUsername();
+    }
+
+    public Token getToken() {
+        return token;
+    }
+
+    public String getAuthHeader() {
+        return authHeader;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenPrincipal(" + getName() + ")";
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.auth;
+
+import javax.ws.rs.core.SecurityContext;
+import java.security.Principal;
+
+/**
+ * A SecurityContext for a request authenticated with a bearer token. Tokens carry no roles.
+ */
+public class TokenSecurityContext
+    implements SecurityContext
+{
+
+    private final TokenPrincipal principal;
+    private final boolean secure;
+
+    /**
+     * @param principal The caller.
+     * @param original The SecurityContext the container set up, to tell whether the request came in over HTTPS.
+     */
+    public TokenSecurityContext(TokenPrincipal principal, SecurityContext original) {
+        this.principal = principal;
+        this.secure = (original != null) && original.isSecure();
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return principal;
+    }
+
+    @Override
+    public boolean isUserInRole(String role) {
+        return false;
+    }
+
+    @Override
+    public boolean isSecure() {
+        return secure;
+    }
+
+    @Override
+    public String getAuthenticationScheme() {
+        return Token.BEARER;
+    }
+}
@@ -3,102 +3,109 @@ package nl.rakis.fs.auth;
 import nl.rakis.fs.config.Config;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.bouncycastle.util.io.pem.PemReader;
 
 import javax.annotation.PostConstruct;
-import javax.enterprise.context.RequestScoped;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.ws.rs.NotAuthorizedException;
-import javax.ws.rs.ProcessingException;
-import javax.ws.rs.WebApplicationException;
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
-import java.io.IOException;
-import java.io.StringReader;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
 import java.security.interfaces.RSAPublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A TokenVerifier can be used to decode JWT tokens.
+ * A TokenVerifier can be used to decode JWT tokens. The public key is taken from the application wide
+ * {@link PublicKeyCache}, so no round trip to the authserver is needed per request. Tokens we have already verified
+ * are kept in a {@link TokenCache}, together with the key they were verified with, so a new key makes us check them
+ * again. The cache's statistics are logged every "stats" seconds.
  */
-@RequestScoped
+@Singleton
 public class TokenVerifier
 {
 
     private static final Logger log = LogManager.getLogger(TokenVerifier.class);
 
-    public static final String URL_PUBLICKEY = "nl.rakis.fs.url.publickey";
+    public static final String URL_PUBLICKEY = PublicKeyCache.URL_PUBLICKEY;
 
-    private RSAPublicKey pubKey;
+    public static final String CFG_TOKENCACHE_STATS = "nl.rakis.fs.auth.tokencache.stats";
+    public static final String DEF_TOKENCACHE_STATS = "300";
 
     @Inject
     private Config config;
 
-    private void setKey(String key) {
-        pubKey = null;
-        try {
-            log.debug("setKey(): Loading key data and building spec");
-            try (StringReader sr = new StringReader(key + "\n\n")) {
-                PemReader pr = new PemReader(sr);
-                X509EncodedKeySpec spec = new X509EncodedKeySpec(pr.readPemObject().getContent());
-                KeyFactory kf = KeyFactory.getInstance("RSA");
-                log.debug("setKey(): Generating RSA key");
-                PublicKey pubKeyTmp = kf.generatePublic(spec);
-                if (pubKeyTmp instanceof RSAPublicKey) {
-                    pubKey = (RSAPublicKey) pubKeyTmp;
-                } else {
-                    log.error("setKey(): Stored key was not an RSA Public Key");
-                }
-            }
-        }
-        catch (IOException e) {
-            log.error("setKey(): Failed to read Public Key", e);
-        }
-        catch (NoSuchAlgorithmException e) {
-            log.error("setKey(): RSA algorithm not available", e);
-        }
-        catch (InvalidKeySpecException e) {
-            log.error("setKey(): Public key corrupted", e);
-        }
-    }
+    @Inject
+    private PublicKeyCache keyCache;
+
+    private TokenCache tokenCache;
+    private ScheduledExecutorService statistics;
 
     @PostConstruct
     private void init()
     {
         log.debug("init()");
 
-        final String keyUrl = config.get(URL_PUBLICKEY);
-        if (keyUrl != null) {
-            try {
-                Client keyClient = ClientBuilder.newClient();
-                setKey(keyClient.target(keyUrl).request().get(String.class));
-            }
-            catch (ProcessingException e) {
-                log.fatal("init(): Failed to process Public Key from \"" + keyUrl + "\"", e);
-            }
-            catch (WebApplicationException e) {
-                log.fatal("init(): Failed to obtain Public Key from \"" + keyUrl + "\"", e);
-            }
+        tokenCache = TokenCache.fromConfig(config);
+
+        long statsSecs = Long.parseLong(DEF_TOKENCACHE_STATS);
+        try {
+            statsSecs = Long.parseLong(config.get(CFG_TOKENCACHE_STATS, DEF_TOKENCACHE_STATS).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init(): Bad value for \"" + CFG_TOKENCACHE_STATS + "\", using " + DEF_TOKENCACHE_STATS);
         }
-        else {
-            log.fatal("init(): Don't know where to get the Public Key");
+        if (statsSecs > 0) {
+            statistics = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "TokenVerifier-stats");
+                t.setDaemon(true);
+                return t;
+            });
+            statistics.scheduleWithFixedDelay(tokenCache::logStatistics, statsSecs, statsSecs, TimeUnit.SECONDS);
         }
         log.debug("init(): Done");
     }
 
+    @PreDestroy
+    private void destroy()
+    {
+        log.debug("destroy()");
+
+        if (statistics != null) {
+            statistics.shutdownNow();
+        }
+    }
+
     public Token decodeToken(String authHeader)
             throws NotAuthorizedException
     {
+        final RSAPublicKey pubKey = keyCache.getKey();
         if (pubKey == null) {
             log.fatal("decodeToken(): No public key");
             throw new NotAuthorizedException("Failed to establish your rights.");
         }
-        return Token.decode(authHeader, pubKey);
+
+        Token result = tokenCache.get(authHeader, pubKey);
+        if (result == null) {
+            RSAPublicKey usedKey = pubKey;
+            try {
+                result = Token.decode(authHeader, usedKey);
+            }
+            catch (NotAuthorizedException e) {
+                // The authserver may have rolled its keys; retry once if that gave us a new one.
+                if (!keyCache.requestRefresh()) {
+                    throw e;
+                }
+                log.info("decodeToken(): Public key was refreshed, retrying");
+                usedKey = keyCache.getKey();
+                result = Token.decode(authHeader, usedKey);
+            }
+            tokenCache.put(authHeader, result, usedKey);
+        }
+        return result;
+    }
+
+    public TokenCache getTokenCache() {
+        return tokenCache;
     }
 
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.auth;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class TestAuthDatabase
+{
+
+    private static Logger log = LogManager.getLogger(TestAuthDatabase.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLookup()
+    {
+        log.info("testLookup(): ### Start test");
+
+        final Map<String,User> users = new HashMap<>();
+        final Map<String,String> passwords = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            users.put("user" + i, new User("user" + i, "User " + i, "Session"));
+            passwords.put("user" + i, "hash" + i);
+        }
+        passwords.put("noAccount", "hashX");
+        final Map<String,Set<String>> groups = new HashMap<>();
+        groups.put("testGroup", new HashSet<>(Arrays.asList("user1", "user42")));
+        groups.put("emptyGroup", new HashSet<>());
+
+        try {
+            File tmp = folder.newFile("auth.db");
+            AuthDatabase.write(tmp, users, passwords, groups);
+            AuthDatabase db = AuthDatabase.open(tmp);
+
+            Assert.assertEquals("Users with an account or a password", 101, db.getUserCount());
+            Assert.assertEquals(2, db.getGroupCount());
+            Assert.assertEquals("User 42", db.getUser("user42").longName);
+            Assert.assertEquals("hash0", db.getPasswordHash("user0"));
+            Assert.assertEquals("hash99", db.getPasswordHash("user99"));
+            Assert.assertNull("Unknown user should have no password", db.getPasswordHash("user100"));
+            Assert.assertNull("A password alone is not an account", db.getUser("noAccount"));
+            Assert.assertEquals("hashX", db.getPasswordHash("noAccount"));
+            Assert.assertEquals(new HashSet<>(Arrays.asList("testGroup")), db.getGroupsForUser("user42"));
+            Assert.assertTrue(db.getGroupsForUser("user2").isEmpty());
+            Assert.assertTrue(db.getUsersInGroup("emptyGroup").isEmpty());
+            Assert.assertNull(db.getUsersInGroup("nonsenseGroup"));
+
+            Assert.assertEquals(users.keySet(), db.readUsers().keySet());
+            Assert.assertEquals(passwords, db.readPasswords());
+            Assert.assertEquals(groups, db.readGroups());
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        }
+
+        log.info("testLookup(): ### Test done");
+    }
+
+    @Test
+    public void testNotADatabase()
+    {
+        log.info("testNotADatabase(): ### Start test");
+
+        try {
+            File tmp = folder.newFile("passwd");
+            FileUtil.createFile(tmp, "testUser:x:x:x:Test User:Default Session:x\n");
+            AuthDatabase.open(tmp);
+            Assert.fail("A text file should not open as a database");
+        } catch (IOException e) {
+            log.debug("testNotADatabase(): Refused: " + e.getMessage());
+        }
+
+        log.info("testNotADatabase(): ### Test done");
+    }
+
+    @Test
+    public void testDamagedIndex()
+    {
+        log.info("testDamagedIndex(): ### Start test");
+
+        final Map<String,User> users = new HashMap<>();
+        users.put("testUser", new User("testUser", "Test User", "Session"));
+
+        try {
+            File tmp = folder.newFile("auth.db");
+            AuthDatabase.write(tmp, users, new HashMap<>(), new HashMap<>());
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                // Point the first index entry past the end of the file
+                raf.seek(16);
+                raf.writeInt((int) raf.length());
+            }
+            AuthDatabase.open(tmp);
+            Assert.fail("An index entry outside the file should be refused");
+        } catch (IOException e) {
+            log.debug("testDamagedIndex(): Refused: " + e.getMessage());
+        }
+
+        log.info("testDamagedIndex(): ### Test done");
+    }
+}
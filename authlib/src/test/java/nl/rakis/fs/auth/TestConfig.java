@@ -11,5 +11,6 @@ public class TestConfig
     public TestConfig() {
         super();
         put(TokenManager.CFG_AUTH_CERTDIR, "build");
+        put(PublicKeyCache.CFG_PUBLICKEY_FILE, "build/public.pem");
     }
 }
@@ -20,7 +20,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
@@ -30,6 +32,9 @@ public class TestPasswordFile
 
     private static Logger log = LogManager.getLogger(TestPasswordFile.class);
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private PasswordFile pw;
 
     @Before
@@ -86,4 +91,35 @@ public class TestPasswordFile
             Assert.fail(e.getMessage());
         }
     }
+
+    @Test
+    public void testCompactKeepsOtherWriters()
+    {
+        try {
+            File tmp = folder.newFile("passwd");
+            FileUtil.createFile(tmp, "");
+            PasswordFile server = new PasswordFile(tmp);
+            Assert.assertEquals("Empty file should have no users", 0, server.getUsers().size());
+
+            // Another process adds a user the server hasn't seen
+            Assert.assertTrue(new PasswordFile(tmp).addUser("otherUser", "Other User", "Default Session"));
+
+            for (int i = 0; i < SecurityFile.COMPACT_SIZE; i++) {
+                Assert.assertTrue(server.addUser("user" + i, "User " + i, "Default Session"));
+            }
+            Assert.assertTrue("Compacting should have picked up the other user", server.getUsers().containsKey("otherUser"));
+            Assert.assertEquals("The journal should have been emptied", 0, SecurityFile.journalFor(tmp).length());
+
+            PasswordFile reread = new PasswordFile(tmp);
+            Assert.assertEquals("All users should be in the file", SecurityFile.COMPACT_SIZE + 1, reread.getUsers().size());
+
+            String[] left = folder.getRoot().list();
+            Assert.assertNotNull(left);
+            for (String name: left) {
+                Assert.assertFalse("No temporary or backup files should be left: " + name, name.startsWith("tmp_") || name.startsWith("passwd_"));
+            }
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
 }
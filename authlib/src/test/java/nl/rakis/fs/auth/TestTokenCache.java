@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.auth;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+
+public class TestTokenCache
+{
+
+    @Test
+    public void testHitAndMiss()
+    {
+        TokenCache cache = new TokenCache(16, 60000L);
+
+        Assert.assertNull("Empty cache should not return a token", cache.get("BEARER abc"));
+        Assert.assertEquals(1, cache.getMisses());
+
+        cache.put("BEARER abc", new Token("username", "1234", "session", "PH-AAA"));
+        Token token = cache.get("BEARER abc");
+        Assert.assertNotNull("Cached token should be returned", token);
+        Assert.assertEquals("username", token.getUsername());
+        Assert.assertEquals("PH-AAA", token.getCallsign());
+        Assert.assertEquals(1, cache.getHits());
+
+        token.setCallsign("PH-BBB");
+        Assert.assertEquals("Changing a returned token should not change the cache", "PH-AAA", cache.get("BEARER abc").getCallsign());
+    }
+
+    @Test
+    public void testOtherKey()
+        throws NoSuchAlgorithmException
+    {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        final PublicKey oldKey = generator.generateKeyPair().getPublic();
+        final PublicKey newKey = generator.generateKeyPair().getPublic();
+        TokenCache cache = new TokenCache(16, 60000L);
+
+        cache.put("BEARER abc", new Token("username", "1234", "session", "PH-AAA"), oldKey);
+        Assert.assertNotNull(cache.get("BEARER abc", oldKey));
+        Assert.assertNull("A token verified with another key should be checked again", cache.get("BEARER abc", newKey));
+    }
+
+    @Test
+    public void testEviction()
+    {
+        TokenCache cache = new TokenCache(16, 60000L);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put("BEARER " + i, new Token("user" + i, "1234", "session", "PH-AAA"));
+        }
+        Assert.assertTrue("Cache should stay bounded", cache.size() <= 16);
+
+        TokenCache expiring = new TokenCache(16, -1L);
+        expiring.put("BEARER abc", new Token("username", "1234", "session", "PH-AAA"));
+        Assert.assertNull("Expired tokens should not be returned", expiring.get("BEARER abc"));
+        Assert.assertEquals(0, expiring.size());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.auth;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jglue.cdiunit.ActivatedAlternatives;
+import org.jglue.cdiunit.CdiRunner;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.inject.Inject;
+import javax.ws.rs.NotAuthorizedException;
+
+@RunWith(CdiRunner.class)
+@ActivatedAlternatives(TestConfig.class)
+public class TestTokenVerifier
+{
+
+    private static final Logger log = LogManager.getLogger(TestTokenVerifier.class);
+
+    @Inject
+    private TokenManager mgr;
+    @Inject
+    private PublicKeyCache keyCache;
+    @Inject
+    private TokenVerifier verifier;
+
+    @Test
+    public void testKeyFromFile() {
+        log.info("testKeyFromFile(): ### Start test");
+
+        Assert.assertNotNull("TokenManager should auto-generate public key", mgr.getPublicKey());
+        Assert.assertEquals("PublicKeyCache should fall back to the key file", mgr.getPublicKey(), keyCache.getKey());
+
+        log.info("testKeyFromFile(): ### Finished test");
+    }
+
+    @Test
+    public void testDecodeToken() {
+        log.info("testDecodeToken(): ### Start test");
+
+        final String authHeader = mgr.encodeToken(mgr.newToken("username", "1234-1234", "session", "PH-AAA"));
+        Token token = verifier.decodeToken(authHeader);
+        Assert.assertTrue(token.isValid());
+        Assert.assertEquals("username", token.getUsername());
+        Assert.assertEquals("PH-AAA", token.getCallsign());
+
+        final long hits = verifier.getTokenCache().getHits();
+        Assert.assertEquals("username", verifier.decodeToken(authHeader).getUsername());
+        Assert.assertEquals("Second decode should come from the cache", hits + 1, verifier.getTokenCache().getHits());
+
+        try {
+            verifier.decodeToken(authHeader.substring(0, authHeader.length() - 4) + "AAAA");
+            Assert.fail("A tampered token should not verify");
+        }
+        catch (NotAuthorizedException e) {
+            log.debug("testDecodeToken(): Tampered token was refused");
+        }
+
+        log.info("testDecodeToken(): ### Finished test");
+    }
+
+    @Test
+    public void testPrincipal() {
+        log.info("testPrincipal(): ### Start test");
+
+        final String authHeader = mgr.encodeToken(mgr.newToken("username", "1234-1234", "session", "PH-AAA"));
+        final TokenPrincipal principal = new TokenPrincipal(verifier.decodeToken(authHeader), authHeader);
+        final TokenSecurityContext security = new TokenSecurityContext(principal, null);
+
+        Assert.assertSame(principal, TokenPrincipal.of(security));
+        Assert.assertEquals("username", TokenPrincipal.of(security).getName());
+        Assert.assertEquals(authHeader, TokenPrincipal.of(security).getAuthHeader());
+        Assert.assertEquals(Token.BEARER, security.getAuthenticationScheme());
+        Assert.assertFalse(security.isSecure());
+
+        try {
+            TokenPrincipal.of(null);
+            Assert.fail("A request without a token should not have a principal");
+        }
+        catch (NotAuthorizedException e) {
+            log.debug("testPrincipal(): Missing principal was refused");
+        }
+
+        log.info("testPrincipal(): ### Finished test");
+    }
+}
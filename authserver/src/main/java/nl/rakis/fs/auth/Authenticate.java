@@ -26,14 +26,21 @@ import javax.annotation.PostConstruct;
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
 import javax.json.JsonObject;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The REST API for Authentication
@@ -53,6 +60,9 @@ public class Authenticate {
     public static final String NO_SESSION = "noSession";
     public static final String NO_CALLSIGN = "PH-AAA";
 
+    /** Not in Response.Status before JAX-RS 2.1 */
+    private static final int STATUS_TOO_MANY_REQUESTS = 429;
+
 
     public static class TokenResult {
         public String access_token;
@@ -71,14 +81,28 @@ public class Authenticate {
     @Inject
     private TokenManager tokenMgr;
 
-    private static void delayResponse()
+    @Inject
+    private LoginThrottle throttle;
+
+    @Inject
+    private PasswordHasher hasher;
+
+    /**
+     * Answer a failed login after a delay, without holding on to the request thread.
+     */
+    private void refuse(AsyncResponse response, String message)
     {
-        try {
-            Thread.sleep(1000 + Math.round(Math.random()*1000));
-        }
-        catch (InterruptedException e) {
-            log.info("Interrupted while delaying a response to a bad request");
-        }
+        throttle.delay(() -> response.resume(new NotAuthorizedException(message)));
+    }
+
+    /**
+     * Refuse a throttled login right away.
+     */
+    private static void throttled(AsyncResponse response, long retryAfter)
+    {
+        response.resume(new ClientErrorException(Response.status(STATUS_TOO_MANY_REQUESTS)
+                                                         .header(HttpHeaders.RETRY_AFTER, retryAfter)
+                                                         .build()));
     }
 
     @PostConstruct
@@ -89,49 +113,83 @@ public class Authenticate {
 
     /*
      * OAuth 2.0 Token Request with Client Credentials
+     *
+     * Failed requests are answered after a delay, and too many attempts per user or IP address with "429 Too Many
+     * Requests", before the password is checked.
      */
     @POST
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
     @Produces(MediaType.APPLICATION_JSON)
-    public TokenResult checkMe(@FormParam("grant_type") String grantType,
-                               @FormParam("scope") String scope,
-                               @HeaderParam("Authorization") String auth)
+    public void checkMe(@FormParam("grant_type")      String grantType,
+                        @FormParam("scope")           String scope,
+                        @HeaderParam("Authorization") String auth,
+                        @Context                      HttpServletRequest request,
+                        @Suspended                    AsyncResponse response)
     {
+        final long addressWait = throttle.tryAddress(request.getRemoteAddr());
+        if (addressWait != 0) {
+            throttled(response, addressWait);
+            return;
+        }
         if ((grantType == null) || !grantType.equalsIgnoreCase("client_credentials")
-         || (scope == null) || !scope.equalsIgnoreCase(authScope))
+         || (scope == null) || !scope.equalsIgnoreCase(authScope)
+         || (auth == null))
         {
             log.error("checkMe(): Bad request. grant_type=" + grantType + ", scope=" + scope);
-            delayResponse();
-            throw new NotAuthorizedException("Bad token request");
+            refuse(response, "Bad token request");
+            return;
         }
         BasicAuth ba = BasicAuthUtil.decodeAuthorizationHeader(auth);
         log.info("checkMe(): Token request for user \"" + ba.username + "\"");
 
-        String hash = files.getShadow().getPasswordHash(ba.username);
+        final long userWait = throttle.tryUser(ba.username);
+        if (userWait != 0) {
+            throttled(response, userWait);
+            return;
+        }
+
+        String hash = files.getPasswordHash(ba.username);
         if ((hash == null) || hash.isEmpty()) {
             log.error("checkMe(): No hash found for user \"" + ba.username + "\"");
-            delayResponse();
-            throw new NotAuthorizedException("User unknown or bad password");
+            refuse(response, "User unknown or bad password");
+            return;
         }
 
-        TokenResult result = new TokenResult();
-        try {
-            if (PasswordStorage.verifyPassword(ba.password, hash)) {
-                UUID sessionId = UUID.randomUUID();
-                Token token = tokenMgr.newToken(ba.username, sessionId.toString(), NO_SESSION, NO_CALLSIGN);
-                result.token_type = Token.BEARER;
-                result.scope = scope;
-                result.access_token = tokenMgr.encodeToken(token);
+        // The hashing runs on the PasswordHasher's pool, which also finishes the request
+        hasher.verify(ba.password, hash).whenComplete((correct, error) -> {
+            if (error instanceof RejectedExecutionException) {
+                response.resume(new ServiceUnavailableException(1L));
             }
-        }
-        catch (PasswordStorage.CannotPerformOperationException e) {
-            log.error("checkMe(): Exception verifying password", e);
-            throw new ServerErrorException(500);
-        }
-        catch (PasswordStorage.InvalidHashException e) {
-            
-        }
-        return result;
+            else if (error instanceof PasswordStorage.InvalidHashException) {
+                log.error("checkMe(): Bad hash for user \"" + ba.username + "\"", error);
+                refuse(response, "User unknown or bad password");
+            }
+            else if (error != null) {
+                log.error("checkMe(): Exception verifying password", error);
+                response.resume(new ServerErrorException(500));
+            }
+            else if (!correct) {
+                log.error("checkMe(): Bad password for user \"" + ba.username + "\"");
+                refuse(response, "User unknown or bad password");
+            }
+            else {
+                try {
+                    TokenResult result = new TokenResult();
+                    UUID sessionId = UUID.randomUUID();
+                    Token token = tokenMgr.newToken(ba.username, sessionId.toString(), NO_SESSION, NO_CALLSIGN);
+                    result.token_type = Token.BEARER;
+                    result.scope = scope;
+                    result.access_token = tokenMgr.encodeToken(token);
+
+                    response.resume(result);
+                }
+                catch (RuntimeException e) {
+                    // Nobody else would see this, and the request would hang until it times out
+                    log.error("checkMe(): Exception creating token", e);
+                    response.resume(e);
+                }
+            }
+        });
     }
 
     private boolean isCallsignOfUser(String username, String callsign) {
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.auth;
+
+import nl.rakis.fs.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protects the login against password guessing without tying up request threads.
+ *
+ * Every login attempt takes a token from a bucket for its username and one for its IP address. Buckets refill at a
+ * fixed rate up to their burst size, and attempts that find an empty bucket are refused right away, before any
+ * password hashing is done. Failed logins are answered after a random delay, which is scheduled rather than slept.
+ */
+@ApplicationScoped
+public class LoginThrottle
+{
+
+    private static final Logger log = LogManager.getLogger(LoginThrottle.class);
+
+    public static final String CFG_THROTTLE_USER_BURST = "nl.rakis.fs.auth.throttle.user.burst";
+    public static final String DEF_THROTTLE_USER_BURST = "5";
+    public static final String CFG_THROTTLE_USER_RATE = "nl.rakis.fs.auth.throttle.user.rate";
+    public static final String DEF_THROTTLE_USER_RATE = "0.1";
+    public static final String CFG_THROTTLE_IP_BURST = "nl.rakis.fs.auth.throttle.ip.burst";
+    public static final String DEF_THROTTLE_IP_BURST = "20";
+    public static final String CFG_THROTTLE_IP_RATE = "nl.rakis.fs.auth.throttle.ip.rate";
+    public static final String DEF_THROTTLE_IP_RATE = "1";
+
+    private static final long MIN_DELAY_MILLIS = 1000;
+    private static final long MAX_EXTRA_DELAY_MILLIS = 1000;
+    private static final long SWEEP_SECS = 60;
+
+    /**
+     * A token bucket, which holds at most "burst" tokens and gains "rate" tokens per second.
+     */
+    static final class Bucket
+    {
+        private final double burst;
+        private final double ratePerMilli;
+
+        private double tokens;
+        private long lastRefill;
+
+        Bucket(double burst, double ratePerSec, long now) {
+            this.burst = burst;
+            this.ratePerMilli = ratePerSec / 1000.0;
+            this.tokens = burst;
+            this.lastRefill = now;
+        }
+
+        private void refill(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerMilli);
+                lastRefill = now;
+            }
+        }
+
+        /**
+         * @return true if a token was taken, false if the bucket is empty.
+         */
+        synchronized boolean tryTake(long now) {
+            refill(now);
+            if (tokens < 1.0) {
+                return false;
+            }
+            tokens -= 1.0;
+            return true;
+        }
+
+        /**
+         * @return The number of seconds until the next token is available.
+         */
+        synchronized long secondsUntilToken(long now) {
+            refill(now);
+            if ((tokens >= 1.0) || (ratePerMilli <= 0.0)) {
+                return 1;
+            }
+            return Math.max(1L, (long) Math.ceil((1.0 - tokens) / ratePerMilli / 1000.0));
+        }
+
+        /**
+         * @return true if the bucket is full again, so forgetting it changes nothing.
+         */
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+    }
+
+    @Inject
+    private Config config;
+
+    private final ConcurrentMap<String,Bucket> users = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,Bucket> addresses = new ConcurrentHashMap<>();
+
+    private double userBurst;
+    private double userRate;
+    private double ipBurst;
+    private double ipRate;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    private void init()
+    {
+        log.debug("init()");
+
+        userBurst = Double.parseDouble(DEF_THROTTLE_USER_BURST);
+        userRate = Double.parseDouble(DEF_THROTTLE_USER_RATE);
+        ipBurst = Double.parseDouble(DEF_THROTTLE_IP_BURST);
+        ipRate = Double.parseDouble(DEF_THROTTLE_IP_RATE);
+        try {
+            userBurst = Double.parseDouble(config.get(CFG_THROTTLE_USER_BURST, DEF_THROTTLE_USER_BURST).trim());
+            userRate = Double.parseDouble(config.get(CFG_THROTTLE_USER_RATE, DEF_THROTTLE_USER_RATE).trim());
+            ipBurst = Double.parseDouble(config.get(CFG_THROTTLE_IP_BURST, DEF_THROTTLE_IP_BURST).trim());
+            ipRate = Double.parseDouble(config.get(CFG_THROTTLE_IP_RATE, DEF_THROTTLE_IP_RATE).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init(): Bad throttle setting, using defaults", e);
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "LoginThrottle");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::sweep, SWEEP_SECS, SWEEP_SECS, TimeUnit.SECONDS);
+        log.debug("init(): Done");
+    }
+
+    @PreDestroy
+    private void destroy()
+    {
+        log.debug("destroy()");
+
+        scheduler.shutdownNow();
+    }
+
+    private static long tryTake(ConcurrentMap<String,Bucket> buckets, String key, double burst, double rate) {
+        final long now = System.currentTimeMillis();
+        final Bucket bucket = buckets.computeIfAbsent(key, k -> new Bucket(burst, rate, now));
+
+        return bucket.tryTake(now) ? 0 : bucket.secondsUntilToken(now);
+    }
+
+    /**
+     * Take a login attempt from the IP address's bucket.
+     * @param address The client's IP address.
+     * @return 0 if the attempt may go ahead, or the number of seconds to wait if the address made too many.
+     */
+    public long tryAddress(String address) {
+        final long result = (address == null) ? 0 : tryTake(addresses, address, ipBurst, ipRate);
+        if (result != 0) {
+            log.warn("tryAddress(): Throttling login attempts from " + address);
+        }
+        return result;
+    }
+
+    /**
+     * Take a login attempt from the username's bucket.
+     * @param username The username the client tries to log in as.
+     * @return 0 if the attempt may go ahead, or the number of seconds to wait if there were too many for this user.
+     */
+    public long tryUser(String username) {
+        final long result = tryTake(users, username.toLowerCase(), userBurst, userRate);
+        if (result != 0) {
+            log.warn("tryUser(): Throttling login attempts for \"" + username + "\"");
+        }
+        return result;
+    }
+
+    /**
+     * Run code after the delay for a failed login, without blocking the calling thread.
+     * @param action Code that sends the response.
+     */
+    public void delay(Runnable action) {
+        final long millis = MIN_DELAY_MILLIS + ThreadLocalRandom.current().nextLong(MAX_EXTRA_DELAY_MILLIS + 1);
+        scheduler.schedule(action, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forget buckets that are full again, so the maps don't grow with every name and address ever seen.
+     */
+    void sweep() {
+        final long now = System.currentTimeMillis();
+
+        users.entrySet().removeIf(entry -> entry.getValue().isFull(now));
+        addresses.entrySet().removeIf(entry -> entry.getValue().isFull(now));
+    }
+}
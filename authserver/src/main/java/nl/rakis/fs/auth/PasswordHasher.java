@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.auth;
+
+import nl.rakis.fs.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verifies passwords on a dedicated pool of threads, sized to the number of CPUs by default, so PBKDF2 hashing does
+ * not run on request threads. The queue is bounded; when it is full, verification fails right away with a
+ * RejectedExecutionException.
+ *
+ * The time verifications spend waiting in the queue and hashing is counted separately, to tell a pool that is too
+ * small from hashing that is too slow. Both are logged every few minutes.
+ */
+@ApplicationScoped
+public class PasswordHasher
+{
+
+    private static final Logger log = LogManager.getLogger(PasswordHasher.class);
+
+    public static final String CFG_HASH_THREADS = "nl.rakis.fs.auth.hash.threads";
+    public static final String DEF_HASH_THREADS = "0";
+    public static final String CFG_HASH_QUEUE = "nl.rakis.fs.auth.hash.queue";
+    public static final String DEF_HASH_QUEUE = "64";
+    public static final String CFG_HASH_STATS = "nl.rakis.fs.auth.hash.stats";
+    public static final String DEF_HASH_STATS = "300";
+
+    @Inject
+    private Config config;
+
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService statistics;
+
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+
+    @PostConstruct
+    private void init()
+    {
+        log.debug("init()");
+
+        int threads = Integer.parseInt(DEF_HASH_THREADS);
+        int queueSize = Integer.parseInt(DEF_HASH_QUEUE);
+        long statsSecs = Long.parseLong(DEF_HASH_STATS);
+        try {
+            threads = Integer.parseInt(config.get(CFG_HASH_THREADS, DEF_HASH_THREADS).trim());
+            queueSize = Integer.parseInt(config.get(CFG_HASH_QUEUE, DEF_HASH_QUEUE).trim());
+            statsSecs = Long.parseLong(config.get(CFG_HASH_STATS, DEF_HASH_STATS).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("init(): Bad hash setting, using defaults", e);
+        }
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        final AtomicInteger threadNr = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                r -> {
+                    Thread t = new Thread(r, "PasswordHasher-" + threadNr.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        if (statsSecs > 0) {
+            statistics = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "PasswordHasher-stats");
+                t.setDaemon(true);
+                return t;
+            });
+            statistics.scheduleWithFixedDelay(this::logStatistics, statsSecs, statsSecs, TimeUnit.SECONDS);
+        }
+        log.debug("init(): Done");
+    }
+
+    @PreDestroy
+    private void destroy()
+    {
+        log.debug("destroy()");
+
+        if (statistics != null) {
+            statistics.shutdownNow();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Check a password against its stored hash.
+     * @param password The password the user gave.
+     * @param correctHash The stored hash, as made by {@link PasswordStorage#createHash(String)}.
+     * @return Completes with true if the password is correct, or exceptionally with the exceptions of
+     *         {@link PasswordStorage#verifyPassword(String, String)}, or a RejectedExecutionException if we're too busy.
+     */
+    public CompletableFuture<Boolean> verify(String password, String correctHash) {
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        final long queued = System.nanoTime();
+
+        try {
+            executor.execute(() -> {
+                final long started = System.nanoTime();
+                try {
+                    result.complete(PasswordStorage.verifyPassword(password, correctHash));
+                }
+                catch (PasswordStorage.CannotPerformOperationException | PasswordStorage.InvalidHashException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+                finally {
+                    final long done = System.nanoTime();
+                    verifications.increment();
+                    waitNanos.add(started - queued);
+                    hashNanos.add(done - started);
+                    if (log.isDebugEnabled()) {
+                        log.debug("verify(): Waited " + TimeUnit.NANOSECONDS.toMillis(started - queued) +
+                                  "ms, hashed in " + TimeUnit.NANOSECONDS.toMillis(done - started) + "ms");
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            rejected.increment();
+            log.warn("verify(): Queue is full, refusing verification");
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Log the number of verifications since the last time, and how long they waited in the queue and spent hashing on
+     * average.
+     */
+    private void logStatistics() {
+        final long count = verifications.sumThenReset();
+        final long nrRejected = rejected.sumThenReset();
+        final long wait = waitNanos.sumThenReset();
+        final long hash = hashNanos.sumThenReset();
+
+        if (log.isInfoEnabled()) {
+            log.info("logStatistics(): " + count + " verification(s), " + nrRejected + " rejected, " +
+                     executor.getQueue().size() + " queued, average wait " +
+                     ((count == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(wait / count)) + "ms, average hash " +
+                     ((count == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(hash / count)) + "ms");
+        }
+    }
+}
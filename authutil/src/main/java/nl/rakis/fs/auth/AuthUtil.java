@@ -18,6 +18,7 @@ package nl.rakis.fs.auth;
 
 import java.io.Console;
 import java.io.File;
+import java.io.IOException;
 
 public class AuthUtil
 {
@@ -37,6 +38,8 @@ public class AuthUtil
         System.err.println("  authutil [-d|--dir <path>] rmgroupuser <groupname> <username>");
         System.err.println("  authutil [-d|--dir <path>] showuser <username>");
         System.err.println("  authutil [-d|--dir <path>] showgroup <groupname>");
+        System.err.println("  authutil [-d|--dir <path>] todb <database>");
+        System.err.println("  authutil [-d|--dir <path>] fromdb <database>");
         System.err.println();
         System.err.println("  -d|--dir     Set the directory for the data files (default \".\"");
         System.err.println("Usage:");
@@ -220,6 +223,43 @@ public class AuthUtil
         System.err.println();
     }
 
+    private static void toDb(String dbName) {
+        PasswordFile fp = new PasswordFile(new File(dirPath, "passwd"));
+        ShadowFile fs = new ShadowFile(new File(dirPath, "shadow"));
+        GroupFile f = new GroupFile(new File(dirPath, "group"));
+        try {
+            AuthDatabase.write(new File(dirPath, dbName), fp.getUsers(), fs.getPasswords(), f.getGroups());
+            System.err.println("Database \"" + dbName + "\" written");
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write database \"" + dbName + "\": " + e.getMessage());
+        }
+    }
+
+    private static void fromDb(String dbName) {
+        final AuthDatabase db;
+        try {
+            db = AuthDatabase.open(new File(dirPath, dbName));
+            // Rewriting a file needs an existing one to back up
+            for (String name: new String[] { "passwd", "shadow", "group" }) {
+                new File(dirPath, name).createNewFile();
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Failed to read database \"" + dbName + "\": " + e.getMessage());
+            return;
+        }
+        PasswordFile fp = new PasswordFile(new File(dirPath, "passwd"));
+        ShadowFile fs = new ShadowFile(new File(dirPath, "shadow"));
+        GroupFile f = new GroupFile(new File(dirPath, "group"));
+        if (fp.replaceAll(db.readUsers()) && fs.replaceAll(db.readPasswords()) && f.replaceAll(db.readGroups())) {
+            System.err.println("Files written from database \"" + dbName + "\"");
+        }
+        else {
+            System.err.println("Failed to write files from database \"" + dbName + "\"");
+        }
+    }
+
     public static void main(String[] args) {
         try {
             int i=0;
@@ -293,6 +333,16 @@ public class AuthUtil
                         showGroup(args[i + 1]);
                         break;
 
+                    case "todb":
+                        checkParmCount(i, args.length, 1);
+                        toDb(args[i + 1]);
+                        break;
+
+                    case "fromdb":
+                        checkParmCount(i, args.length, 1);
+                        fromDb(args[i + 1]);
+                        break;
+
                     default:
                         throw new Exception("Unknown command \"" + args[i] + "\"");
                 }
@@ -20,9 +20,15 @@ import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Aircraft.
@@ -45,6 +51,11 @@ public class AircraftInfo
     private LightInfo    lights;
     private ControlsInfo controls;
 
+    private long version;
+
+    /** Fields a delta sets to null, see deltaFrom(). Only the server sends these. */
+    private List<String> cleared;
+
     public AircraftInfo() {
     }
 
@@ -52,6 +63,30 @@ public class AircraftInfo
         this.atcId = callsign;
     }
 
+    /**
+     * Make a shallow copy. The sub-records are shared, which is safe because updates replace them rather than
+     * change them.
+     * @return A new AircraftInfo with the same values.
+     */
+    public AircraftInfo copy() {
+        AircraftInfo result = new AircraftInfo(getAtcId());
+
+        result.setHref(getHref());
+        result.setVersion(getVersion());
+        result.setUsername(getUsername());
+        result.setTitle(getTitle());
+        result.setAtcModel(getAtcModel());
+        result.setAtcType(getAtcType());
+        result.setAtcAirline(getAtcAirline());
+        result.setAtcFlightNumber(getAtcFlightNumber());
+        result.setLocation(getLocation());
+        result.setEngines(getEngines());
+        result.setLights(getLights());
+        result.setControls(getControls());
+
+        return result;
+    }
+
     public static String getType() {
         return AIRCRAFT_TYPE;
     }
@@ -99,9 +134,41 @@ public class AircraftInfo
         addIf(bld, JsonFields.FIELD_CONTROLS, getControls());
         addIf(bld, JsonFields.FIELD_LIGHTS, getLights());
 
+        if (getVersion() > 0) {
+            bld.add(JsonFields.FIELD_VERSION, getVersion());
+        }
+        if ((getCleared() != null) && !getCleared().isEmpty()) {
+            bld.add(JsonFields.FIELD_CLEARED, toArray(getCleared()));
+        }
+
         return bld.build();
     }
 
+    @Override
+    protected void writeFields(JsonGenerator gen) {
+        gen.write(JsonFields.FIELD_TYPE, getType());
+        writeIf(gen, JsonFields.FIELD_ATC_ID, getAtcId());
+
+        writeIf(gen, JsonFields.FIELD_USERNAME, getUsername());
+        writeIf(gen, JsonFields.FIELD_TITLE, getTitle());
+        writeIf(gen, JsonFields.FIELD_ATC_TYPE, getAtcType());
+        writeIf(gen, JsonFields.FIELD_ATC_MODEL, getAtcModel());
+        writeIf(gen, JsonFields.FIELD_ATC_AIRLINE, getAtcAirline());
+        writeIf(gen, JsonFields.FIELD_ATC_FLNUM, getAtcFlightNumber());
+
+        writeIf(gen, JsonFields.FIELD_LOCATION, getLocation());
+        writeIf(gen, JsonFields.FIELD_ENGINES, getEngines());
+        writeIf(gen, JsonFields.FIELD_CONTROLS, getControls());
+        writeIf(gen, JsonFields.FIELD_LIGHTS, getLights());
+
+        if (getVersion() > 0) {
+            gen.write(JsonFields.FIELD_VERSION, getVersion());
+        }
+        if ((getCleared() != null) && !getCleared().isEmpty()) {
+            writeArray(gen, JsonFields.FIELD_CLEARED, getCleared());
+        }
+    }
+
     @Override
     public String toString() {
         return toJsonObject().toString();
@@ -142,6 +209,246 @@ public class AircraftInfo
         if (!obj.isNull(JsonFields.FIELD_CONTROLS)) {
             setControls(ControlsInfo.fromJsonObject(obj.getJsonObject(JsonFields.FIELD_CONTROLS)));
         }
+        if (obj.containsKey(JsonFields.FIELD_CLEARED) && !obj.isNull(JsonFields.FIELD_CLEARED)) {
+            final List<String> fields = new ArrayList<>();
+            for (JsonString field: obj.getJsonArray(JsonFields.FIELD_CLEARED).getValuesAs(JsonString.class)) {
+                fields.add(field.getString());
+            }
+            setCleared(fields);
+        }
+    }
+
+    @Override
+    public void readFrom(JsonParser parser) {
+        readObject(parser, (String field, JsonParser.Event event) -> readField(parser, field, event));
+    }
+
+    /**
+     * Read one field of an aircraft, so callers can mix aircraft fields with their own.
+     * @param parser The parser, positioned at the field's value.
+     * @param field The field name.
+     * @param event The first event of the value.
+     * @return false if the field is not an aircraft field, and the value was not consumed.
+     */
+    public boolean readField(JsonParser parser, String field, JsonParser.Event event) {
+        switch (field) {
+            case JsonFields.FIELD_USERNAME:
+                setUsername(readString(parser, event, getUsername()));
+                return true;
+            case JsonFields.FIELD_TITLE:
+                setTitle(readString(parser, event, getTitle()));
+                return true;
+            case JsonFields.FIELD_ATC_ID:
+                setAtcId(readString(parser, event, getAtcId()));
+                return true;
+            case JsonFields.FIELD_ATC_MODEL:
+                setAtcModel(readString(parser, event, getAtcModel()));
+                return true;
+            case JsonFields.FIELD_ATC_TYPE:
+                setAtcType(readString(parser, event, getAtcType()));
+                return true;
+            case JsonFields.FIELD_ATC_AIRLINE:
+                setAtcAirline(readString(parser, event, getAtcAirline()));
+                return true;
+            case JsonFields.FIELD_ATC_FLNUM:
+                setAtcFlightNumber(readString(parser, event, getAtcFlightNumber()));
+                return true;
+            case JsonFields.FIELD_LOCATION:
+                if (event == JsonParser.Event.START_OBJECT) {
+                    LocationInfo location = new LocationInfo();
+                    location.readFrom(parser);
+                    setLocation(location);
+                    return true;
+                }
+                return false;
+            case JsonFields.FIELD_ENGINES:
+                if (event == JsonParser.Event.START_OBJECT) {
+                    EngineInfo engines = new EngineInfo();
+                    engines.readFrom(parser);
+                    setEngines(engines);
+                    return true;
+                }
+                return false;
+            case JsonFields.FIELD_LIGHTS:
+                if (event == JsonParser.Event.START_OBJECT) {
+                    LightInfo lights = new LightInfo();
+                    lights.readFrom(parser);
+                    setLights(lights);
+                    return true;
+                }
+                return false;
+            case JsonFields.FIELD_CONTROLS:
+                if (event == JsonParser.Event.START_OBJECT) {
+                    ControlsInfo controls = new ControlsInfo();
+                    controls.readFrom(parser);
+                    setControls(controls);
+                    return true;
+                }
+                return false;
+            case JsonFields.FIELD_VERSION:
+                setVersion(readLong(parser, event, getVersion()));
+                return true;
+            case JsonFields.FIELD_CLEARED:
+                setCleared(readStringList(parser, event));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the fields of this record that differ from a baseline, so that applying the result to the baseline with
+     * applyDelta() gives this record's state. The callsign is always included. Fields that are set in the baseline but
+     * not in this record are listed as cleared, because a null field in a delta means "unchanged".
+     * @param baseline The state the receiver already has, or null if it is unknown.
+     * @return The delta, or without a baseline a copy of this record with all unset fields listed as cleared, so it
+     * replaces whatever the receiver has.
+     */
+    public AircraftInfo deltaFrom(AircraftInfo baseline) {
+        final List<String> fields = new ArrayList<>();
+        if (baseline == null) {
+            final AircraftInfo result = copy();
+            unset(JsonFields.FIELD_USERNAME, getUsername(), fields);
+            unset(JsonFields.FIELD_TITLE, getTitle(), fields);
+            unset(JsonFields.FIELD_ATC_MODEL, getAtcModel(), fields);
+            unset(JsonFields.FIELD_ATC_TYPE, getAtcType(), fields);
+            unset(JsonFields.FIELD_ATC_AIRLINE, getAtcAirline(), fields);
+            unset(JsonFields.FIELD_ATC_FLNUM, getAtcFlightNumber(), fields);
+            unset(JsonFields.FIELD_LOCATION, getLocation(), fields);
+            unset(JsonFields.FIELD_ENGINES, getEngines(), fields);
+            unset(JsonFields.FIELD_LIGHTS, getLights(), fields);
+            unset(JsonFields.FIELD_CONTROLS, getControls(), fields);
+            result.setCleared(fields.isEmpty() ? null : fields);
+            return result;
+        }
+        AircraftInfo result = new AircraftInfo(getAtcId());
+
+        result.setUsername(changed(JsonFields.FIELD_USERNAME, getUsername(), baseline.getUsername(), fields));
+        result.setTitle(changed(JsonFields.FIELD_TITLE, getTitle(), baseline.getTitle(), fields));
+        result.setAtcModel(changed(JsonFields.FIELD_ATC_MODEL, getAtcModel(), baseline.getAtcModel(), fields));
+        result.setAtcType(changed(JsonFields.FIELD_ATC_TYPE, getAtcType(), baseline.getAtcType(), fields));
+        result.setAtcAirline(changed(JsonFields.FIELD_ATC_AIRLINE, getAtcAirline(), baseline.getAtcAirline(), fields));
+        result.setAtcFlightNumber(changed(JsonFields.FIELD_ATC_FLNUM, getAtcFlightNumber(), baseline.getAtcFlightNumber(), fields));
+        result.setLocation(changed(JsonFields.FIELD_LOCATION, getLocation(), baseline.getLocation(), fields));
+        result.setEngines(changed(JsonFields.FIELD_ENGINES, getEngines(), baseline.getEngines(), fields));
+        result.setLights(changed(JsonFields.FIELD_LIGHTS, getLights(), baseline.getLights(), fields));
+        result.setControls(changed(JsonFields.FIELD_CONTROLS, getControls(), baseline.getControls(), fields));
+        result.setCleared(fields.isEmpty() ? null : fields);
+
+        return result;
+    }
+
+    private static void unset(String field, Object value, List<String> cleared) {
+        if (value == null) {
+            cleared.add(field);
+        }
+    }
+
+    /**
+     * @return The value if it differs from the baseline, null otherwise. If it is a change to null, the field is
+     * added to the cleared fields.
+     */
+    private static <T> T changed(String field, T value, T baseline, List<String> cleared) {
+        if (Objects.equals(value, baseline)) {
+            return null;
+        }
+        if (value == null) {
+            cleared.add(field);
+        }
+        return value;
+    }
+
+    /**
+     * Update fields that are set in the given record, leave the others alone.
+     * @param update A (partial) record, for example read with {@link #readFrom(JsonParser)}
+     */
+    public void updateFrom(AircraftInfo update) {
+        if (update.getUsername() != null) {
+            setUsername(update.getUsername());
+        }
+        if (update.getTitle() != null) {
+            setTitle(update.getTitle());
+        }
+        if (update.getAtcId() != null) {
+            setAtcId(update.getAtcId());
+        }
+        if (update.getAtcModel() != null) {
+            setAtcModel(update.getAtcModel());
+        }
+        if (update.getAtcType() != null) {
+            setAtcType(update.getAtcType());
+        }
+        if (update.getAtcAirline() != null) {
+            setAtcAirline(update.getAtcAirline());
+        }
+        if (update.getAtcFlightNumber() != null) {
+            setAtcFlightNumber(update.getAtcFlightNumber());
+        }
+        if (update.getLocation() != null) {
+            setLocation(update.getLocation());
+        }
+        if (update.getEngines() != null) {
+            setEngines(update.getEngines());
+        }
+        if (update.getLights() != null) {
+            setLights(update.getLights());
+        }
+        if (update.getControls() != null) {
+            setControls(update.getControls());
+        }
+    }
+
+    /**
+     * Apply a delta made by {@link #deltaFrom(AircraftInfo)}: update the fields that are set in it, and set the fields
+     * it lists as cleared to null. This is for the receiving end of pushed traffic only; updates sent to the server
+     * must never be able to clear fields, so the server uses {@link #updateFrom(AircraftInfo)}.
+     * @param delta The delta.
+     */
+    public void applyDelta(AircraftInfo delta) {
+        updateFrom(delta);
+        if (delta.getCleared() != null) {
+            for (String field: delta.getCleared()) {
+                clear(field);
+            }
+        }
+    }
+
+    private void clear(String field) {
+        switch (field) {
+            case JsonFields.FIELD_USERNAME:
+                setUsername(null);
+                break;
+            case JsonFields.FIELD_TITLE:
+                setTitle(null);
+                break;
+            case JsonFields.FIELD_ATC_MODEL:
+                setAtcModel(null);
+                break;
+            case JsonFields.FIELD_ATC_TYPE:
+                setAtcType(null);
+                break;
+            case JsonFields.FIELD_ATC_AIRLINE:
+                setAtcAirline(null);
+                break;
+            case JsonFields.FIELD_ATC_FLNUM:
+                setAtcFlightNumber(null);
+                break;
+            case JsonFields.FIELD_LOCATION:
+                setLocation(null);
+                break;
+            case JsonFields.FIELD_ENGINES:
+                setEngines(null);
+                break;
+            case JsonFields.FIELD_LIGHTS:
+                setLights(null);
+                break;
+            case JsonFields.FIELD_CONTROLS:
+                setControls(null);
+                break;
+            default:
+                // The callsign and version can't be cleared, and unknown fields are ignored
+                break;
+        }
     }
 
     public static AircraftInfo fromJsonObject(JsonObject obj) {
@@ -224,6 +531,28 @@ public class AircraftInfo
         this.atcFlightNumber = atcFlightNumber;
     }
 
+    /**
+     * @return The version of this record, which the server increments on every change, or 0 if unversioned.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * @return The fields that applyDelta() sets to null, or null if there are none.
+     */
+    public List<String> getCleared() {
+        return cleared;
+    }
+
+    public void setCleared(List<String> cleared) {
+        this.cleared = cleared;
+    }
+
     public LocationInfo getLocation() {
         return location;
     }
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.info;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compact binary encoding of AircraftInfo and its sub-records. Every message starts with a version byte and a kind
+ * byte, followed by one record or a count and that many records.
+ *
+ * An aircraft record starts with a 16-bit mask telling which fields follow. Strings are written as modified UTF-8,
+ * and the record version as a 64-bit integer. Positions are fixed-point: latitude and longitude in 1e-7 degrees,
+ * altitude in 0.1 feet, pitch, bank and heading in 0.01 degrees and airspeed in 0.1 knots. A location starts with
+ * an 8-bit mask telling which of these follow, because a fixed-point value has no room for "unknown", and ends with
+ * the on-ground flag. Lights are a bitmask, engine state and throttles are a count followed by a byte per engine,
+ * and control surfaces are 32-bit floats.
+ *
+ * Version 1 had no record version. It can still be read, because its records never have that bit set.
+ */
+public final class BinaryCodec
+{
+
+    public static final int VERSION = 2;
+    private static final int VERSION_1 = 1;
+
+    public static final int KIND_AIRCRAFT = 1;
+    public static final int KIND_AIRCRAFT_LIST = 2;
+
+    private static final int HAS_USERNAME = 1;
+    private static final int HAS_TITLE = 1 << 1;
+    private static final int HAS_ATC_ID = 1 << 2;
+    private static final int HAS_ATC_TYPE = 1 << 3;
+    private static final int HAS_ATC_MODEL = 1 << 4;
+    private static final int HAS_ATC_AIRLINE = 1 << 5;
+    private static final int HAS_ATC_FLNUM = 1 << 6;
+    private static final int HAS_LOCATION = 1 << 7;
+    private static final int HAS_ENGINES = 1 << 8;
+    private static final int HAS_CONTROLS = 1 << 9;
+    private static final int HAS_LIGHTS = 1 << 10;
+    private static final int HAS_VERSION = 1 << 11;
+
+    private static final int HAS_LATITUDE = 1;
+    private static final int HAS_LONGITUDE = 1 << 1;
+    private static final int HAS_ALTITUDE = 1 << 2;
+    private static final int HAS_PITCH = 1 << 3;
+    private static final int HAS_BANK = 1 << 4;
+    private static final int HAS_HEADING = 1 << 5;
+    private static final int HAS_AIRSPEED = 1 << 6;
+
+    private static final int NO_ARRAY = 0xFF;
+    private static final int MAX_ARRAY = NO_ARRAY - 1;
+
+    private static final double LATLON_SCALE = 1e7;
+    private static final double ALTITUDE_SCALE = 10.0;
+    private static final double ANGLE_SCALE = 100.0;
+    private static final double SPEED_SCALE = 10.0;
+
+    private BinaryCodec() {
+    }
+
+    private static void writeHeader(DataOutput out, int kind) throws IOException {
+        out.writeByte(VERSION);
+        out.writeByte(kind);
+    }
+
+    private static void readHeader(DataInput in, int kind) throws IOException {
+        final int version = in.readUnsignedByte();
+        if ((version < VERSION_1) || (version > VERSION)) {
+            throw new IOException("Unsupported binary version " + version);
+        }
+        final int actual = in.readUnsignedByte();
+        if (actual != kind) {
+            throw new IOException("Expected message kind " + kind + ", got " + actual);
+        }
+    }
+
+    public static void write(DataOutput out, AircraftInfo aircraft) throws IOException {
+        writeHeader(out, KIND_AIRCRAFT);
+        writeAircraft(out, aircraft);
+    }
+
+    public static void writeList(DataOutput out, Collection<AircraftInfo> aircraft) throws IOException {
+        writeHeader(out, KIND_AIRCRAFT_LIST);
+        out.writeInt(aircraft.size());
+        for (AircraftInfo rec: aircraft) {
+            writeAircraft(out, rec);
+        }
+    }
+
+    public static AircraftInfo read(DataInput in) throws IOException {
+        readHeader(in, KIND_AIRCRAFT);
+        return readAircraft(in);
+    }
+
+    public static List<AircraftInfo> readList(DataInput in) throws IOException {
+        readHeader(in, KIND_AIRCRAFT_LIST);
+        final int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad record count " + count);
+        }
+        final List<AircraftInfo> result = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            result.add(readAircraft(in));
+        }
+        return result;
+    }
+
+    private static int maskIf(Object value, int bit) {
+        return (value == null) ? 0 : bit;
+    }
+
+    private static void writeIf(DataOutput out, String value) throws IOException {
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    public static void writeAircraft(DataOutput out, AircraftInfo aircraft) throws IOException {
+        final int mask = maskIf(aircraft.getUsername(), HAS_USERNAME) | maskIf(aircraft.getTitle(), HAS_TITLE) |
+                         maskIf(aircraft.getAtcId(), HAS_ATC_ID) | maskIf(aircraft.getAtcType(), HAS_ATC_TYPE) |
+                         maskIf(aircraft.getAtcModel(), HAS_ATC_MODEL) | maskIf(aircraft.getAtcAirline(), HAS_ATC_AIRLINE) |
+                         maskIf(aircraft.getAtcFlightNumber(), HAS_ATC_FLNUM) |
+                         maskIf(aircraft.getLocation(), HAS_LOCATION) | maskIf(aircraft.getEngines(), HAS_ENGINES) |
+                         maskIf(aircraft.getControls(), HAS_CONTROLS) | maskIf(aircraft.getLights(), HAS_LIGHTS) |
+                         ((aircraft.getVersion() > 0) ? HAS_VERSION : 0);
+        out.writeShort(mask);
+
+        if (aircraft.getVersion() > 0) {
+            out.writeLong(aircraft.getVersion());
+        }
+        writeIf(out, aircraft.getUsername());
+        writeIf(out, aircraft.getTitle());
+        writeIf(out, aircraft.getAtcId());
+        writeIf(out, aircraft.getAtcType());
+        writeIf(out, aircraft.getAtcModel());
+        writeIf(out, aircraft.getAtcAirline());
+        writeIf(out, aircraft.getAtcFlightNumber());
+
+        if (aircraft.getLocation() != null) {
+            writeLocation(out, aircraft.getLocation());
+        }
+        if (aircraft.getEngines() != null) {
+            writeEngines(out, aircraft.getEngines());
+        }
+        if (aircraft.getControls() != null) {
+            writeControls(out, aircraft.getControls());
+        }
+        if (aircraft.getLights() != null) {
+            writeLights(out, aircraft.getLights());
+        }
+    }
+
+    public static AircraftInfo readAircraft(DataInput in) throws IOException {
+        final AircraftInfo result = new AircraftInfo();
+        final int mask = in.readUnsignedShort();
+
+        if ((mask & HAS_VERSION) != 0) {
+            result.setVersion(in.readLong());
+        }
+        result.setUsername(((mask & HAS_USERNAME) == 0) ? null : in.readUTF());
+        result.setTitle(((mask & HAS_TITLE) == 0) ? null : in.readUTF());
+        result.setAtcId(((mask & HAS_ATC_ID) == 0) ? null : in.readUTF());
+        result.setAtcType(((mask & HAS_ATC_TYPE) == 0) ? null : in.readUTF());
+        result.setAtcModel(((mask & HAS_ATC_MODEL) == 0) ? null : in.readUTF());
+        result.setAtcAirline(((mask & HAS_ATC_AIRLINE) == 0) ? null : in.readUTF());
+        result.setAtcFlightNumber(((mask & HAS_ATC_FLNUM) == 0) ? null : in.readUTF());
+
+        result.setLocation(((mask & HAS_LOCATION) == 0) ? null : readLocation(in));
+        result.setEngines(((mask & HAS_ENGINES) == 0) ? null : readEngines(in));
+        result.setControls(((mask & HAS_CONTROLS) == 0) ? null : readControls(in));
+        result.setLights(((mask & HAS_LIGHTS) == 0) ? null : readLights(in));
+
+        return result;
+    }
+
+    private static int maskIf(double value, int bit) {
+        return LocationInfo.isSet(value) ? bit : 0;
+    }
+
+    public static void writeLocation(DataOutput out, LocationInfo location) throws IOException {
+        final int mask = maskIf(location.getLatitude(), HAS_LATITUDE) | maskIf(location.getLongitude(), HAS_LONGITUDE) |
+                         maskIf(location.getAltitude(), HAS_ALTITUDE) | maskIf(location.getPitch(), HAS_PITCH) |
+                         maskIf(location.getBank(), HAS_BANK) | maskIf(location.getHeading(), HAS_HEADING) |
+                         maskIf(location.getAirspeed(), HAS_AIRSPEED);
+        out.writeByte(mask);
+
+        if ((mask & HAS_LATITUDE) != 0) {
+            out.writeInt((int) Math.round(location.getLatitude() * LATLON_SCALE));
+        }
+        if ((mask & HAS_LONGITUDE) != 0) {
+            out.writeInt((int) Math.round(location.getLongitude() * LATLON_SCALE));
+        }
+        if ((mask & HAS_ALTITUDE) != 0) {
+            out.writeInt((int) Math.round(location.getAltitude() * ALTITUDE_SCALE));
+        }
+        if ((mask & HAS_PITCH) != 0) {
+            out.writeShort((int) Math.round(location.getPitch() * ANGLE_SCALE));
+        }
+        if ((mask & HAS_BANK) != 0) {
+            out.writeShort((int) Math.round(location.getBank() * ANGLE_SCALE));
+        }
+        if ((mask & HAS_HEADING) != 0) {
+            out.writeShort((int) Math.round(normalizeHeading(location.getHeading()) * ANGLE_SCALE));
+        }
+        if ((mask & HAS_AIRSPEED) != 0) {
+            out.writeShort((int) Math.round(Math.max(0.0, Math.min(6553.5, location.getAirspeed())) * SPEED_SCALE));
+        }
+        out.writeBoolean(location.isOnGround());
+    }
+
+    private static double normalizeHeading(double heading) {
+        final double result = heading % 360.0;
+        return (result < 0.0) ? (result + 360.0) : result;
+    }
+
+    public static LocationInfo readLocation(DataInput in) throws IOException {
+        final LocationInfo result = new LocationInfo();
+        final int mask = in.readUnsignedByte();
+
+        if ((mask & HAS_LATITUDE) != 0) {
+            result.setLatitude(in.readInt() / LATLON_SCALE);
+        }
+        if ((mask & HAS_LONGITUDE) != 0) {
+            result.setLongitude(in.readInt() / LATLON_SCALE);
+        }
+        if ((mask & HAS_ALTITUDE) != 0) {
+            result.setAltitude(in.readInt() / ALTITUDE_SCALE);
+        }
+        if ((mask & HAS_PITCH) != 0) {
+            result.setPitch(in.readShort() / ANGLE_SCALE);
+        }
+        if ((mask & HAS_BANK) != 0) {
+            result.setBank(in.readShort() / ANGLE_SCALE);
+        }
+        if ((mask & HAS_HEADING) != 0) {
+            result.setHeading(in.readUnsignedShort() / ANGLE_SCALE);
+        }
+        if ((mask & HAS_AIRSPEED) != 0) {
+            result.setAirspeed(in.readUnsignedShort() / SPEED_SCALE);
+        }
+        result.setOnGround(in.readBoolean());
+
+        return result;
+    }
+
+    private static void writeBytes(DataOutput out, int[] values) throws IOException {
+        if (values == null) {
+            out.writeByte(NO_ARRAY);
+            return;
+        }
+        if (values.length > MAX_ARRAY) {
+            throw new IOException("Too many values (" + values.length + ")");
+        }
+        out.writeByte(values.length);
+        for (int value: values) {
+            out.writeByte(Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, value)));
+        }
+    }
+
+    private static int[] readBytes(DataInput in) throws IOException {
+        final int count = in.readUnsignedByte();
+        if (count == NO_ARRAY) {
+            return null;
+        }
+        final int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result [i] = in.readByte();
+        }
+        return result;
+    }
+
+    public static void writeEngines(DataOutput out, EngineInfo engines) throws IOException {
+        writeBytes(out, engines.getEng());
+        writeBytes(out, engines.getThrt());
+    }
+
+    public static EngineInfo readEngines(DataInput in) throws IOException {
+        final EngineInfo result = new EngineInfo();
+
+        result.setEng(readBytes(in));
+        result.setThrt(readBytes(in));
+
+        return result;
+    }
+
+    public static void writeControls(DataOutput out, ControlsInfo controls) throws IOException {
+        out.writeFloat((float) controls.getRdr());
+        out.writeFloat((float) controls.getEle());
+        out.writeFloat((float) controls.getAil());
+        out.writeFloat((float) controls.getRdrtr());
+        out.writeFloat((float) controls.getEletr());
+        out.writeFloat((float) controls.getAiltr());
+        out.writeFloat((float) controls.getSpl());
+        out.writeFloat((float) controls.getFlp());
+        out.writeByte(controls.getGrs());
+        out.writeFloat((float) controls.getBrk());
+        out.writeFloat((float) controls.getDr1());
+    }
+
+    public static ControlsInfo readControls(DataInput in) throws IOException {
+        final ControlsInfo result = new ControlsInfo();
+
+        result.setRdr(in.readFloat());
+        result.setEle(in.readFloat());
+        result.setAil(in.readFloat());
+        result.setRdrtr(in.readFloat());
+        result.setEletr(in.readFloat());
+        result.setAiltr(in.readFloat());
+        result.setSpl(in.readFloat());
+        result.setFlp(in.readFloat());
+        result.setGrs(in.readUnsignedByte());
+        result.setBrk(in.readFloat());
+        result.setDr1(in.readFloat());
+
+        return result;
+    }
+
+    public static void writeLights(DataOutput out, LightInfo lights) throws IOException {
+        final boolean[] bits = { lights.isStrb(), lights.isLand(), lights.isTaxi(), lights.isBcn(), lights.isNav(),
+                                 lights.isLogo(), lights.isWing(), lights.isRecg(), lights.isCabn() };
+        int mask = 0;
+        for (int i = 0; i < bits.length; i++) {
+            mask |= bits [i] ? (1 << i) : 0;
+        }
+        out.writeShort(mask);
+    }
+
+    public static LightInfo readLights(DataInput in) throws IOException {
+        final LightInfo result = new LightInfo();
+        final int mask = in.readUnsignedShort();
+
+        result.setStrb((mask & 0x001) != 0);
+        result.setLand((mask & 0x002) != 0);
+        result.setTaxi((mask & 0x004) != 0);
+        result.setBcn((mask & 0x008) != 0);
+        result.setNav((mask & 0x010) != 0);
+        result.setLogo((mask & 0x020) != 0);
+        result.setWing((mask & 0x040) != 0);
+        result.setRecg((mask & 0x080) != 0);
+        result.setCabn((mask & 0x100) != 0);
+
+        return result;
+    }
+}
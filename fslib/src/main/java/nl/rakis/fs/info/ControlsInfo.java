@@ -19,9 +19,12 @@ package nl.rakis.fs.info;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
 import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.logging.Logger;
 
 /**
@@ -98,6 +101,22 @@ public class ControlsInfo
                 .build();
     }
 
+    @Override
+    protected void writeFields(JsonGenerator gen) {
+        gen.write(JsonFields.FIELD_TYPE, getType())
+           .write(JsonFields.FIELD_RUDDER_POS, getRdr())
+           .write(JsonFields.FIELD_RUDDER_TRIM_POS, getRdrtr())
+           .write(JsonFields.FIELD_ELEVATOR_POS, getEle())
+           .write(JsonFields.FIELD_ELEVATOR_TRIM_POS, getEletr())
+           .write(JsonFields.FIELD_AILERON_POS, getAil())
+           .write(JsonFields.FIELD_AILERON_TRIM_POS, getAiltr())
+           .write(JsonFields.FIELD_SPOILERS_POS, getSpl())
+           .write(JsonFields.FIELD_FLAPS_POS, getFlp())
+           .write(JsonFields.FIELD_GEARS_DOWN, getGrs())
+           .write(JsonFields.FIELD_PARKING_BRAKE_POS, getBrk())
+           .write(JsonFields.FIELD_DOOR_POS, getDr1());
+    }
+
     @Override
     public void updateFromJsonObject(JsonObject obj) {
         if (!obj.isNull(JsonFields.FIELD_RUDDER_POS)) {
@@ -135,6 +154,49 @@ public class ControlsInfo
         }
     }
 
+    @Override
+    public void readFrom(JsonParser parser) {
+        readObject(parser, (String field, JsonParser.Event event) -> {
+            switch (field) {
+                case JsonFields.FIELD_RUDDER_POS:
+                    setRdr(readDouble(parser, event, getRdr()));
+                    return true;
+                case JsonFields.FIELD_RUDDER_TRIM_POS:
+                    setRdrtr(readDouble(parser, event, getRdrtr()));
+                    return true;
+                case JsonFields.FIELD_ELEVATOR_POS:
+                    setEle(readDouble(parser, event, getEle()));
+                    return true;
+                case JsonFields.FIELD_ELEVATOR_TRIM_POS:
+                    setEletr(readDouble(parser, event, getEletr()));
+                    return true;
+                case JsonFields.FIELD_AILERON_POS:
+                    setAil(readDouble(parser, event, getAil()));
+                    return true;
+                case JsonFields.FIELD_AILERON_TRIM_POS:
+                    setAiltr(readDouble(parser, event, getAiltr()));
+                    return true;
+                case JsonFields.FIELD_SPOILERS_POS:
+                    setSpl(readDouble(parser, event, getSpl()));
+                    return true;
+                case JsonFields.FIELD_FLAPS_POS:
+                    setFlp(readDouble(parser, event, getFlp()));
+                    return true;
+                case JsonFields.FIELD_GEARS_DOWN:
+                    setGrs(readInt(parser, event, getGrs()));
+                    return true;
+                case JsonFields.FIELD_PARKING_BRAKE_POS:
+                    setBrk(readDouble(parser, event, getBrk()));
+                    return true;
+                case JsonFields.FIELD_DOOR_POS:
+                    setDr1(readDouble(parser, event, getDr1()));
+                    return true;
+                default:
+                    return false;
+            }
+        });
+    }
+
     public static ControlsInfo fromJsonObject(JsonObject obj) {
         ControlsInfo result = null;
 
@@ -256,4 +318,23 @@ public class ControlsInfo
     public void setDr1(double dr1) {
         this.dr1 = dr1;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ControlsInfo)) return false;
+
+        ControlsInfo that = (ControlsInfo) o;
+
+        return (Double.compare(rdr, that.rdr) == 0) && (Double.compare(ele, that.ele) == 0) &&
+               (Double.compare(ail, that.ail) == 0) && (Double.compare(rdrtr, that.rdrtr) == 0) &&
+               (Double.compare(eletr, that.eletr) == 0) && (Double.compare(ailtr, that.ailtr) == 0) &&
+               (Double.compare(spl, that.spl) == 0) && (Double.compare(flp, that.flp) == 0) &&
+               (grs == that.grs) && (Double.compare(brk, that.brk) == 0) && (Double.compare(dr1, that.dr1) == 0);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(rdr, ele, ail, rdrtr, eletr, ailtr, spl, flp, grs, brk, dr1);
+    }
 }
@@ -20,7 +20,10 @@ import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
 import java.io.StringReader;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -73,6 +76,12 @@ public class EngineInfo
                 .build();
     }
 
+    @Override
+    protected void writeFields(JsonGenerator gen) {
+        writeArray(gen, JsonFields.FIELD_ENGINE_ON, getEng());
+        writeArray(gen, JsonFields.FIELD_THROTTLE, getThrt());
+    }
+
     private static int[] copyArray(JsonArray arr, int size) {
         int[] result = null;
         if (arr.size() == size) {
@@ -94,6 +103,22 @@ public class EngineInfo
         }
     }
 
+    @Override
+    public void readFrom(JsonParser parser) {
+        readObject(parser, (String field, JsonParser.Event event) -> {
+            switch (field) {
+                case JsonFields.FIELD_ENGINE_ON:
+                    setEng(readIntArray(parser, event, 4));
+                    return true;
+                case JsonFields.FIELD_THROTTLE:
+                    setThrt(readIntArray(parser, event, 4));
+                    return true;
+                default:
+                    return false;
+            }
+        });
+    }
+
     public static EngineInfo fromJsonObject(JsonObject obj) {
         EngineInfo result = null;
 
@@ -134,4 +159,19 @@ public class EngineInfo
     public void setThrt(int[] thrt) {
         this.thrt = thrt;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof EngineInfo)) return false;
+
+        EngineInfo that = (EngineInfo) o;
+
+        return Arrays.equals(eng, that.eng) && Arrays.equals(thrt, that.thrt);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(eng) + Arrays.hashCode(thrt);
+    }
 }
@@ -17,9 +17,13 @@
 package nl.rakis.fs.info;
 
 import javax.json.*;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiPredicate;
 import java.util.logging.Logger;
 
 /**
@@ -81,6 +85,289 @@ public abstract class FSData {
         return result;
     }
 
+    /**
+     * Return a property as a double, accepting both JSON numbers and strings.
+     * @param obj The JsonObject to look in
+     * @param property The name of the property
+     * @param deflt The value to return if the property is missing, null, or not a number
+     * @return The property's value, or the default
+     */
+    public static double getDoubleIf(JsonObject obj, String property, double deflt)
+    {
+        double result = deflt;
+
+        if ((obj != null) && (property != null) && obj.containsKey(property) && !obj.isNull(property)) {
+            final JsonValue value = obj.get(property);
+            try {
+                if (value.getValueType() == JsonValue.ValueType.NUMBER) {
+                    result = ((JsonNumber) value).doubleValue();
+                }
+                else if (value.getValueType() == JsonValue.ValueType.STRING) {
+                    result = Double.parseDouble(((JsonString) value).getString());
+                }
+                else {
+                    log.warning("Ignoring property \"" + property + "\", cannot turn it into a number");
+                }
+            } catch (NumberFormatException e) {
+                log.warning("Ignoring property \"" + property + "\", cannot turn it into a number");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write field to JsonGenerator if not null, write as null otherwise
+     * @param gen
+     * @param field
+     * @param value
+     */
+    public static void writeIf(JsonGenerator gen, String field, String value)
+    {
+        if (value == null) {
+            gen.writeNull(field);
+        }
+        else {
+            gen.write(field, value);
+        }
+    }
+
+    /**
+     * Write field to JsonGenerator if not null, write as null otherwise
+     * @param gen
+     * @param field
+     * @param value
+     */
+    public static void writeIf(JsonGenerator gen, String field, FSData value)
+    {
+        if (value == null) {
+            gen.writeNull(field);
+        }
+        else {
+            value.writeTo(gen, field);
+        }
+    }
+
+    public static void writeArray(JsonGenerator gen, String field, int[] arr)
+    {
+        gen.writeStartArray(field);
+        if (arr != null) {
+            for (int i : arr) {
+                gen.write(i);
+            }
+        }
+        gen.writeEnd();
+    }
+
+    public static void writeArray(JsonGenerator gen, String field, List<String> list)
+    {
+        gen.writeStartArray(field);
+        if (list != null) {
+            for (String s : list) {
+                gen.write(s);
+            }
+        }
+        gen.writeEnd();
+    }
+
+    /**
+     * Read the fields of an object, passing each to the fieldReader. The parser must be positioned just after the
+     * START_OBJECT event, and will be positioned just after the matching END_OBJECT when done. Values the
+     * fieldReader doesn't consume (by returning false) are skipped.
+     * @param parser The parser to read from
+     * @param fieldReader Called with the field name and the value's first event
+     */
+    public static void readObject(JsonParser parser, BiPredicate<String,JsonParser.Event> fieldReader)
+    {
+        while (parser.hasNext()) {
+            JsonParser.Event event = parser.next();
+            if (event == JsonParser.Event.END_OBJECT) {
+                break;
+            }
+            final String field = parser.getString();
+            event = parser.next();
+            if (!fieldReader.test(field, event)) {
+                skipValue(parser, event);
+            }
+        }
+    }
+
+    /**
+     * Skip the value that starts with the given event, including any nested objects or arrays.
+     * @param parser The parser to read from
+     * @param event The first event of the value
+     */
+    public static void skipValue(JsonParser parser, JsonParser.Event event)
+    {
+        if ((event == JsonParser.Event.START_OBJECT) || (event == JsonParser.Event.START_ARRAY)) {
+            int depth = 1;
+            while ((depth > 0) && parser.hasNext()) {
+                event = parser.next();
+                if ((event == JsonParser.Event.START_OBJECT) || (event == JsonParser.Event.START_ARRAY)) {
+                    depth++;
+                }
+                else if ((event == JsonParser.Event.END_OBJECT) || (event == JsonParser.Event.END_ARRAY)) {
+                    depth--;
+                }
+            }
+        }
+    }
+
+    public static String readString(JsonParser parser, JsonParser.Event event, String deflt)
+    {
+        if ((event == JsonParser.Event.VALUE_STRING) || (event == JsonParser.Event.VALUE_NUMBER)) {
+            return parser.getString();
+        }
+        skipValue(parser, event);
+        return deflt;
+    }
+
+    /**
+     * Read a number, which may also be sent as a string.
+     * @return The number, or the default if the value was null.
+     * @throws IllegalArgumentException if the value is not a number.
+     */
+    public static double readDouble(JsonParser parser, JsonParser.Event event, double deflt)
+        throws IllegalArgumentException
+    {
+        double result = deflt;
+
+        if (event == JsonParser.Event.VALUE_NUMBER) {
+            result = parser.getBigDecimal().doubleValue();
+        }
+        else if (event == JsonParser.Event.VALUE_STRING) {
+            try {
+                result = Double.parseDouble(parser.getString());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Cannot turn \"" + parser.getString() + "\" into a number", e);
+            }
+        }
+        else if (event != JsonParser.Event.VALUE_NULL) {
+            skipValue(parser, event);
+            throw new IllegalArgumentException("Expected a number, got " + event);
+        }
+        return result;
+    }
+
+    /**
+     * Read a whole number, which may also be sent as a string.
+     * @return The number, or the default if the value was null.
+     * @throws IllegalArgumentException if the value is not a whole number.
+     */
+    public static long readLong(JsonParser parser, JsonParser.Event event, long deflt)
+        throws IllegalArgumentException
+    {
+        long result = deflt;
+
+        if (event == JsonParser.Event.VALUE_NUMBER) {
+            if (!parser.isIntegralNumber()) {
+                throw new IllegalArgumentException("Expected a whole number, got " + parser.getString());
+            }
+            try {
+                result = parser.getBigDecimal().longValueExact();
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Number " + parser.getString() + " is too large", e);
+            }
+        }
+        else if (event == JsonParser.Event.VALUE_STRING) {
+            try {
+                result = Long.parseLong(parser.getString());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Cannot turn \"" + parser.getString() + "\" into a whole number", e);
+            }
+        }
+        else if (event != JsonParser.Event.VALUE_NULL) {
+            skipValue(parser, event);
+            throw new IllegalArgumentException("Expected a number, got " + event);
+        }
+        return result;
+    }
+
+    /**
+     * Read a whole number that fits in an int, which may also be sent as a string.
+     * @return The number, or the default if the value was null.
+     * @throws IllegalArgumentException if the value is not a whole number, or too large.
+     */
+    public static int readInt(JsonParser parser, JsonParser.Event event, int deflt)
+        throws IllegalArgumentException
+    {
+        final long result = readLong(parser, event, deflt);
+        if ((result < Integer.MIN_VALUE) || (result > Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("Number " + result + " is too large");
+        }
+        return (int) result;
+    }
+
+    public static boolean readBool(JsonParser parser, JsonParser.Event event, boolean deflt)
+    {
+        boolean result = deflt;
+
+        if (event == JsonParser.Event.VALUE_TRUE) {
+            result = true;
+        }
+        else if (event == JsonParser.Event.VALUE_FALSE) {
+            result = false;
+        }
+        else if (event == JsonParser.Event.VALUE_STRING) {
+            result = Boolean.parseBoolean(parser.getString());
+        }
+        else {
+            skipValue(parser, event);
+        }
+        return result;
+    }
+
+    /**
+     * Read an array of strings.
+     * @return The strings, or null if the value was not an array
+     */
+    public static List<String> readStringList(JsonParser parser, JsonParser.Event event)
+    {
+        if (event != JsonParser.Event.START_ARRAY) {
+            skipValue(parser, event);
+            return null;
+        }
+        List<String> result = new ArrayList<>();
+        while (parser.hasNext()) {
+            event = parser.next();
+            if (event == JsonParser.Event.END_ARRAY) {
+                break;
+            }
+            final String value = readString(parser, event, null);
+            if (value != null) {
+                result.add(value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read an array of numbers.
+     * @return The array, or null if the value was not an array of the given size
+     */
+    public static int[] readIntArray(JsonParser parser, JsonParser.Event event, int size)
+    {
+        if (event != JsonParser.Event.START_ARRAY) {
+            skipValue(parser, event);
+            return null;
+        }
+        List<Integer> values = new ArrayList<>(size);
+        while (parser.hasNext()) {
+            event = parser.next();
+            if (event == JsonParser.Event.END_ARRAY) {
+                break;
+            }
+            values.add(readInt(parser, event, 0));
+        }
+        int[] result = null;
+        if (values.size() == size) {
+            result = new int[size];
+            for (int i = 0; i < size; i++) {
+                result[i] = values.get(i);
+            }
+        }
+        return result;
+    }
+
     public static JsonArray toArray(int[] arr) {
         JsonArrayBuilder bld = Json.createArrayBuilder();
 
@@ -127,6 +414,40 @@ public abstract class FSData {
      */
     public abstract void updateFromJsonObject(JsonObject obj);
 
+    /**
+     * Write the fields of this object, without the surrounding braces.
+     * @param gen The JsonGenerator to write to
+     */
+    protected abstract void writeFields(JsonGenerator gen);
+
+    /**
+     * Update fields if passed, ignore unknown fields, leave missing fields alone. The parser must be positioned
+     * just after the object's START_OBJECT event, and will be positioned just after its END_OBJECT when done.
+     * @param parser The JsonParser to read from
+     */
+    public abstract void readFrom(JsonParser parser);
+
+    /**
+     * Write this object, without building a JsonObject first.
+     * @param gen The JsonGenerator to write to
+     */
+    public void writeTo(JsonGenerator gen) {
+        gen.writeStartObject();
+        writeFields(gen);
+        gen.writeEnd();
+    }
+
+    /**
+     * Write this object as a field of the enclosing object.
+     * @param gen The JsonGenerator to write to
+     * @param field The name of the field
+     */
+    public void writeTo(JsonGenerator gen, String field) {
+        gen.writeStartObject(field);
+        writeFields(gen);
+        gen.writeEnd();
+    }
+
     /**
      * Convert to serialized JSON.
      * @return A String containing the serialized object.
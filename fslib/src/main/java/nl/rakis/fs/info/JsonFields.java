@@ -80,4 +80,10 @@ public class JsonFields {
     public static final String FIELD_DOOR_POS = "dr1";
     public static final String FIELD_AIRCRAFT = "aircraft";
     public static final String FIELD_HREF = "href";
+    public static final String FIELD_MESSAGE = "message";
+    public static final String FIELD_SEQ = "seq";
+    public static final String FIELD_CHANGES = "changes";
+    public static final String FIELD_VERSION = "version";
+    public static final String FIELD_CLEARED = "cleared";
+    public static final String FIELD_RESYNC = "resync";
 }
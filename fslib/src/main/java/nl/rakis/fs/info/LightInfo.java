@@ -19,6 +19,8 @@ package nl.rakis.fs.info;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
 import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Map;
@@ -102,6 +104,20 @@ public class LightInfo
                 .build();
     }
 
+    @Override
+    protected void writeFields(JsonGenerator gen) {
+        gen.write(JsonFields.FIELD_TYPE, getType())
+           .write(JsonFields.FIELD_STRB, isStrb())
+           .write(JsonFields.FIELD_LAND, isLand())
+           .write(JsonFields.FIELD_TAXI, isTaxi())
+           .write(JsonFields.FIELD_BCN, isBcn())
+           .write(JsonFields.FIELD_NAV, isNav())
+           .write(JsonFields.FIELD_LOGO, isLogo())
+           .write(JsonFields.FIELD_WING, isWing())
+           .write(JsonFields.FIELD_RECG, isRecg())
+           .write(JsonFields.FIELD_CABN, isCabn());
+    }
+
     @Override
     public void updateFromJsonObject(JsonObject obj) {
         if (!obj.isNull(JsonFields.FIELD_STRB)) {
@@ -133,6 +149,43 @@ public class LightInfo
         }
     }
 
+    @Override
+    public void readFrom(JsonParser parser) {
+        readObject(parser, (String field, JsonParser.Event event) -> {
+            switch (field) {
+                case JsonFields.FIELD_STRB:
+                    setStrb(readBool(parser, event, isStrb()));
+                    return true;
+                case JsonFields.FIELD_LAND:
+                    setLand(readBool(parser, event, isLand()));
+                    return true;
+                case JsonFields.FIELD_TAXI:
+                    setTaxi(readBool(parser, event, isTaxi()));
+                    return true;
+                case JsonFields.FIELD_BCN:
+                    setBcn(readBool(parser, event, isBcn()));
+                    return true;
+                case JsonFields.FIELD_NAV:
+                    setNav(readBool(parser, event, isNav()));
+                    return true;
+                case JsonFields.FIELD_LOGO:
+                    setLogo(readBool(parser, event, isLogo()));
+                    return true;
+                case JsonFields.FIELD_WING:
+                    setWing(readBool(parser, event, isWing()));
+                    return true;
+                case JsonFields.FIELD_RECG:
+                    setRecg(readBool(parser, event, isRecg()));
+                    return true;
+                case JsonFields.FIELD_CABN:
+                    setCabn(readBool(parser, event, isCabn()));
+                    return true;
+                default:
+                    return false;
+            }
+        });
+    }
+
     public static LightInfo fromJsonObject(JsonObject obj) {
         LightInfo result = null;
 
@@ -236,4 +289,25 @@ public class LightInfo
     public void setCabn(boolean cabn) {
         this.cabn = cabn;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LightInfo)) return false;
+
+        LightInfo that = (LightInfo) o;
+
+        return (strb == that.strb) && (land == that.land) && (taxi == that.taxi) && (bcn == that.bcn) &&
+               (nav == that.nav) && (logo == that.logo) && (wing == that.wing) && (recg == that.recg) &&
+               (cabn == that.cabn);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 0;
+        for (boolean b: new boolean[]{ strb, land, taxi, bcn, nav, logo, wing, recg, cabn }) {
+            result = 2 * result + (b ? 1 : 0);
+        }
+        return result;
+    }
 }
@@ -20,11 +20,19 @@ import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
 import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.logging.Logger;
 
+/**
+ * Position and attitude of an aircraft. Values are kept as doubles, so geometry never needs to parse anything. On the
+ * wire they stay strings as they always were, but numbers are accepted too when reading. A value that was never set is
+ * NaN, and is left out when writing.
+ */
 public class LocationInfo
     extends FSKeylessData
 {
@@ -34,14 +42,14 @@ public class LocationInfo
     public static final String LOCATION_TYPE = "Location";
 
     private String callsign;
-    private String latitude;
-    private String longitude;
-    private String altitude;
-    private String pitch;
-    private String bank;
-    private String heading;
+    private double latitude = Double.NaN;
+    private double longitude = Double.NaN;
+    private double altitude = Double.NaN;
+    private double pitch = Double.NaN;
+    private double bank = Double.NaN;
+    private double heading = Double.NaN;
     private boolean onGround;
-    private String airspeed;
+    private double airspeed = Double.NaN;
 
     public LocationInfo() {
         super(getType());
@@ -51,6 +59,40 @@ public class LocationInfo
         return LOCATION_TYPE;
     }
 
+    /**
+     * @return true if the value was set, false if it is still unknown.
+     */
+    public static boolean isSet(double value) {
+        return !Double.isNaN(value);
+    }
+
+    /**
+     * @return true if both latitude and longitude are known.
+     */
+    public boolean hasPosition() {
+        return isSet(getLatitude()) && isSet(getLongitude());
+    }
+
+    // Numbers go out as strings, which is what older clients expect, and unset ones are left out
+
+    private static void putNumber(Map<String,String> map, String field, double value) {
+        if (isSet(value)) {
+            map.put(field, Double.toString(value));
+        }
+    }
+
+    private static void addNumber(JsonObjectBuilder bld, String field, double value) {
+        if (isSet(value)) {
+            bld.add(field, Double.toString(value));
+        }
+    }
+
+    private static void writeNumber(JsonGenerator gen, String field, double value) {
+        if (isSet(value)) {
+            gen.write(field, Double.toString(value));
+        }
+    }
+
     @Override
     public String getKey() {
         return getType() + ":" + getLatitude() + ":" + getLongitude();
@@ -62,14 +104,14 @@ public class LocationInfo
 
         result.put(JsonFields.FIELD_TYPE, getType());
         result.put(JsonFields.FIELD_CALLSIGN, getCallsign());
-        result.put(JsonFields.FIELD_LATITUDE, getLatitude());
-        result.put(JsonFields.FIELD_LONGITUDE, getLongitude());
-        result.put(JsonFields.FIELD_ALTITUDE, getAltitude());
-        result.put(JsonFields.FIELD_PITCH, getPitch());
-        result.put(JsonFields.FIELD_BANK, getBank());
-        result.put(JsonFields.FIELD_HEADING, getHeading());
+        putNumber(result, JsonFields.FIELD_LATITUDE, getLatitude());
+        putNumber(result, JsonFields.FIELD_LONGITUDE, getLongitude());
+        putNumber(result, JsonFields.FIELD_ALTITUDE, getAltitude());
+        putNumber(result, JsonFields.FIELD_PITCH, getPitch());
+        putNumber(result, JsonFields.FIELD_BANK, getBank());
+        putNumber(result, JsonFields.FIELD_HEADING, getHeading());
         result.put(JsonFields.FIELD_ON_GROUND, Boolean.toString(isOnGround()));
-        result.put(JsonFields.FIELD_AIRSPEED, getAirspeed());
+        putNumber(result, JsonFields.FIELD_AIRSPEED, getAirspeed());
 
         return result;
     }
@@ -77,21 +119,37 @@ public class LocationInfo
     @Override
     public JsonObject toJsonObject() {
         JsonObjectBuilder bld = Json.createObjectBuilder()
-                .add(JsonFields.FIELD_TYPE, getType())
-                .add(JsonFields.FIELD_LATITUDE, getLatitude())
-                .add(JsonFields.FIELD_LONGITUDE, getLongitude())
-                .add(JsonFields.FIELD_ALTITUDE, getAltitude())
-                .add(JsonFields.FIELD_PITCH, getPitch())
-                .add(JsonFields.FIELD_BANK, getBank())
-                .add(JsonFields.FIELD_HEADING, getHeading())
-                .add(JsonFields.FIELD_ON_GROUND, isOnGround())
-                .add(JsonFields.FIELD_AIRSPEED, getAirspeed());
+                .add(JsonFields.FIELD_TYPE, getType());
+        addNumber(bld, JsonFields.FIELD_LATITUDE, getLatitude());
+        addNumber(bld, JsonFields.FIELD_LONGITUDE, getLongitude());
+        addNumber(bld, JsonFields.FIELD_ALTITUDE, getAltitude());
+        addNumber(bld, JsonFields.FIELD_PITCH, getPitch());
+        addNumber(bld, JsonFields.FIELD_BANK, getBank());
+        addNumber(bld, JsonFields.FIELD_HEADING, getHeading());
+        bld.add(JsonFields.FIELD_ON_GROUND, isOnGround());
+        addNumber(bld, JsonFields.FIELD_AIRSPEED, getAirspeed());
         if (getCallsign() != null) {
             bld.add(JsonFields.FIELD_CALLSIGN, getCallsign());
         }
         return bld.build();
     }
 
+    @Override
+    protected void writeFields(JsonGenerator gen) {
+        gen.write(JsonFields.FIELD_TYPE, getType());
+        writeNumber(gen, JsonFields.FIELD_LATITUDE, getLatitude());
+        writeNumber(gen, JsonFields.FIELD_LONGITUDE, getLongitude());
+        writeNumber(gen, JsonFields.FIELD_ALTITUDE, getAltitude());
+        writeNumber(gen, JsonFields.FIELD_PITCH, getPitch());
+        writeNumber(gen, JsonFields.FIELD_BANK, getBank());
+        writeNumber(gen, JsonFields.FIELD_HEADING, getHeading());
+        gen.write(JsonFields.FIELD_ON_GROUND, isOnGround());
+        writeNumber(gen, JsonFields.FIELD_AIRSPEED, getAirspeed());
+        if (getCallsign() != null) {
+            gen.write(JsonFields.FIELD_CALLSIGN, getCallsign());
+        }
+    }
+
     @Override
     public String toString() {
         return toJsonObject().toString();
@@ -99,33 +157,54 @@ public class LocationInfo
 
     @Override
     public void updateFromJsonObject(JsonObject obj) {
-        if (!obj.isNull(JsonFields.FIELD_CALLSIGN)) {
+        if (obj.containsKey(JsonFields.FIELD_CALLSIGN) && !obj.isNull(JsonFields.FIELD_CALLSIGN)) {
             setCallsign(obj.getString(JsonFields.FIELD_CALLSIGN));
         }
-        if (obj.containsKey(JsonFields.FIELD_LATITUDE) && !obj.isNull(JsonFields.FIELD_LATITUDE)) {
-            setLatitude(obj.getString(JsonFields.FIELD_LATITUDE));
-        }
-        if (obj.containsKey(JsonFields.FIELD_LONGITUDE) && !obj.isNull(JsonFields.FIELD_LONGITUDE)) {
-            setLongitude(obj.getString(JsonFields.FIELD_LONGITUDE));
-        }
-        if (obj.containsKey(JsonFields.FIELD_ALTITUDE) && !obj.isNull(JsonFields.FIELD_ALTITUDE)) {
-            setAltitude(obj.getString(JsonFields.FIELD_ALTITUDE));
-        }
-        if (obj.containsKey(JsonFields.FIELD_PITCH) && !obj.isNull(JsonFields.FIELD_PITCH)) {
-            setPitch(obj.getString(JsonFields.FIELD_PITCH));
-        }
-        if (obj.containsKey(JsonFields.FIELD_BANK) && !obj.isNull(JsonFields.FIELD_BANK)) {
-            setBank(obj.getString(JsonFields.FIELD_BANK));
-        }
-        if (obj.containsKey(JsonFields.FIELD_HEADING) && !obj.isNull(JsonFields.FIELD_HEADING)) {
-            setHeading(obj.getString(JsonFields.FIELD_HEADING));
-        }
-        if (obj.containsKey(JsonFields.FIELD_ON_GROUND) && !obj.isNull(JsonFields.FIELD_ON_GROUND)) {
-            setOnGround(obj.getBoolean(JsonFields.FIELD_ON_GROUND));
-        }
-        if (obj.containsKey(JsonFields.FIELD_AIRSPEED) && !obj.isNull(JsonFields.FIELD_AIRSPEED)) {
-            setAirspeed(obj.getString(JsonFields.FIELD_AIRSPEED));
-        }
+        setLatitude(getDoubleIf(obj, JsonFields.FIELD_LATITUDE, getLatitude()));
+        setLongitude(getDoubleIf(obj, JsonFields.FIELD_LONGITUDE, getLongitude()));
+        setAltitude(getDoubleIf(obj, JsonFields.FIELD_ALTITUDE, getAltitude()));
+        setPitch(getDoubleIf(obj, JsonFields.FIELD_PITCH, getPitch()));
+        setBank(getDoubleIf(obj, JsonFields.FIELD_BANK, getBank()));
+        setHeading(getDoubleIf(obj, JsonFields.FIELD_HEADING, getHeading()));
+        setOnGround(getBoolIf(obj, JsonFields.FIELD_ON_GROUND, isOnGround()));
+        setAirspeed(getDoubleIf(obj, JsonFields.FIELD_AIRSPEED, getAirspeed()));
+    }
+
+    @Override
+    public void readFrom(JsonParser parser) {
+        readObject(parser, (String field, JsonParser.Event event) -> {
+            switch (field) {
+                case JsonFields.FIELD_CALLSIGN:
+                    setCallsign(readString(parser, event, getCallsign()));
+                    return true;
+                case JsonFields.FIELD_LATITUDE:
+                    setLatitude(readDouble(parser, event, getLatitude()));
+                    return true;
+                case JsonFields.FIELD_LONGITUDE:
+                    setLongitude(readDouble(parser, event, getLongitude()));
+                    return true;
+                case JsonFields.FIELD_ALTITUDE:
+                    setAltitude(readDouble(parser, event, getAltitude()));
+                    return true;
+                case JsonFields.FIELD_PITCH:
+                    setPitch(readDouble(parser, event, getPitch()));
+                    return true;
+                case JsonFields.FIELD_BANK:
+                    setBank(readDouble(parser, event, getBank()));
+                    return true;
+                case JsonFields.FIELD_HEADING:
+                    setHeading(readDouble(parser, event, getHeading()));
+                    return true;
+                case JsonFields.FIELD_ON_GROUND:
+                    setOnGround(readBool(parser, event, isOnGround()));
+                    return true;
+                case JsonFields.FIELD_AIRSPEED:
+                    setAirspeed(readDouble(parser, event, getAirspeed()));
+                    return true;
+                default:
+                    return false;
+            }
+        });
     }
 
     public static LocationInfo fromJsonObject(JsonObject obj) {
@@ -133,33 +212,7 @@ public class LocationInfo
 
         if (obj != null) {
             result = new LocationInfo();
-            if (!obj.isNull(JsonFields.FIELD_CALLSIGN)) {
-                result.setCallsign(obj.getString(JsonFields.FIELD_CALLSIGN));
-            }
-            if (obj.containsKey(JsonFields.FIELD_LATITUDE) && !obj.isNull(JsonFields.FIELD_LATITUDE)) {
-                result.setLatitude(obj.getString(JsonFields.FIELD_LATITUDE));
-            }
-            if (obj.containsKey(JsonFields.FIELD_LONGITUDE) && !obj.isNull(JsonFields.FIELD_LONGITUDE)) {
-                result.setLongitude(obj.getString(JsonFields.FIELD_LONGITUDE));
-            }
-            if (obj.containsKey(JsonFields.FIELD_ALTITUDE) && !obj.isNull(JsonFields.FIELD_ALTITUDE)) {
-                result.setAltitude(obj.getString(JsonFields.FIELD_ALTITUDE));
-            }
-            if (obj.containsKey(JsonFields.FIELD_PITCH) && !obj.isNull(JsonFields.FIELD_PITCH)) {
-                result.setPitch(obj.getString(JsonFields.FIELD_PITCH));
-            }
-            if (obj.containsKey(JsonFields.FIELD_BANK) && !obj.isNull(JsonFields.FIELD_BANK)) {
-                result.setBank(obj.getString(JsonFields.FIELD_BANK));
-            }
-            if (obj.containsKey(JsonFields.FIELD_HEADING) && !obj.isNull(JsonFields.FIELD_HEADING)) {
-                result.setHeading(obj.getString(JsonFields.FIELD_HEADING));
-            }
-            if (obj.containsKey(JsonFields.FIELD_ON_GROUND) && !obj.isNull(JsonFields.FIELD_ON_GROUND)) {
-                result.setOnGround(obj.getBoolean(JsonFields.FIELD_ON_GROUND));
-            }
-            if (obj.containsKey(JsonFields.FIELD_AIRSPEED) && !obj.isNull(JsonFields.FIELD_AIRSPEED)) {
-                result.setAirspeed(obj.getString(JsonFields.FIELD_AIRSPEED));
-            }
+            result.updateFromJsonObject(obj);
         }
 
         return result;
@@ -185,51 +238,51 @@ public class LocationInfo
         this.callsign = callsign;
     }
 
-    public String getLatitude() {
+    public double getLatitude() {
         return latitude;
     }
 
-    public void setLatitude(String latitude) {
+    public void setLatitude(double latitude) {
         this.latitude = latitude;
     }
 
-    public String getLongitude() {
+    public double getLongitude() {
         return longitude;
     }
 
-    public void setLongitude(String longitude) {
+    public void setLongitude(double longitude) {
         this.longitude = longitude;
     }
 
-    public String getAltitude() {
+    public double getAltitude() {
         return altitude;
     }
 
-    public void setAltitude(String altitude) {
+    public void setAltitude(double altitude) {
         this.altitude = altitude;
     }
 
-    public String getPitch() {
+    public double getPitch() {
         return pitch;
     }
 
-    public void setPitch(String pitch) {
+    public void setPitch(double pitch) {
         this.pitch = pitch;
     }
 
-    public String getBank() {
+    public double getBank() {
         return bank;
     }
 
-    public void setBank(String bank) {
+    public void setBank(double bank) {
         this.bank = bank;
     }
 
-    public String getHeading() {
+    public double getHeading() {
         return heading;
     }
 
-    public void setHeading(String heading) {
+    public void setHeading(double heading) {
         this.heading = heading;
     }
 
@@ -241,11 +294,30 @@ public class LocationInfo
         this.onGround = onGround;
     }
 
-    public String getAirspeed() {
+    public double getAirspeed() {
         return airspeed;
     }
 
-    public void setAirspeed(String airspeed) {
+    public void setAirspeed(double airspeed) {
         this.airspeed = airspeed;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LocationInfo)) return false;
+
+        LocationInfo that = (LocationInfo) o;
+
+        return (Double.compare(latitude, that.latitude) == 0) && (Double.compare(longitude, that.longitude) == 0) &&
+               (Double.compare(altitude, that.altitude) == 0) && (Double.compare(pitch, that.pitch) == 0) &&
+               (Double.compare(bank, that.bank) == 0) && (Double.compare(heading, that.heading) == 0) &&
+               (onGround == that.onGround) && (Double.compare(airspeed, that.airspeed) == 0) &&
+               Objects.equals(callsign, that.callsign);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(callsign, latitude, longitude, altitude, pitch, bank, heading, onGround, airspeed);
+    }
 }
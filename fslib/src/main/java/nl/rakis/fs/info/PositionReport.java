@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.info;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.logging.Logger;
+
+/**
+ * Fixed layout binary datagram with the location, controls and lights of an aircraft, for sending position reports
+ * over UDP. All values are big-endian:
+ *
+ * <pre>
+ *   0 int     magic and version, "FSU" 1
+ *   4 long    channel, the first 8 bytes of the SHA-256 of the "Authorization" header
+ *  12 int     sequence number, incremented for every report
+ *  16 double  latitude, longitude, altitude
+ *  40 float   pitch, bank, heading, airspeed
+ *  56 short   flags: bits 0-8 are the lights, bit 9 on ground, bit 10 has lights, bit 11 has controls
+ *  58 byte    gears
+ *  59 byte    reserved
+ *  60 float   rudder, elevator, aileron, their trims, spoilers, flaps, brakes, door
+ * 100 byte[8] tag, the first 8 bytes of the HMAC-SHA256 over bytes 0-99, keyed with the "Authorization" header
+ * </pre>
+ *
+ * The callsign is not in the report, as the server knows it from the channel.
+ */
+public final class PositionReport
+{
+
+    private static final Logger log = Logger.getLogger(PositionReport.class.getName());
+
+    public static final int MAGIC = 0x46535501;
+    public static final int SIZE = 108;
+    public static final int TAG_OFFSET = 100;
+    public static final int TAG_SIZE = 8;
+
+    private static final String HMAC = "HmacSHA256";
+
+    private static final int FLAG_ON_GROUND = 1 << 9;
+    private static final int FLAG_LIGHTS = 1 << 10;
+    private static final int FLAG_CONTROLS = 1 << 11;
+
+    private PositionReport() {
+    }
+
+    /**
+     * @param authHeader The "Authorization" header of the client.
+     * @return The channel the client's reports are sent on.
+     */
+    public static long channelOf(String authHeader) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(authHeader.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param authHeader The "Authorization" header of the client.
+     * @return A Mac for computing the tags of the client's reports. Macs are not thread safe.
+     */
+    public static Mac newMac(String authHeader) {
+        try {
+            final Mac result = Mac.getInstance(HMAC);
+            result.init(new SecretKeySpec(authHeader.getBytes(StandardCharsets.UTF_8), HMAC));
+            return result;
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write a report into the buffer, from its current position.
+     * @param buf The buffer, with at least SIZE bytes remaining.
+     * @param channel The client's channel.
+     * @param seq The sequence number.
+     * @param aircraft The aircraft. Only its location, lights and controls are used.
+     * @param mac The client's Mac.
+     */
+    public static void encode(ByteBuffer buf, long channel, int seq, AircraftInfo aircraft, Mac mac) {
+        final int start = buf.position();
+        final LocationInfo location = (aircraft.getLocation() == null) ? new LocationInfo() : aircraft.getLocation();
+        final LightInfo lights = aircraft.getLights();
+        final ControlsInfo controls = aircraft.getControls();
+
+        buf.putInt(MAGIC).putLong(channel).putInt(seq);
+        buf.putDouble(location.getLatitude()).putDouble(location.getLongitude()).putDouble(location.getAltitude());
+        buf.putFloat((float) location.getPitch()).putFloat((float) location.getBank())
+           .putFloat((float) location.getHeading()).putFloat((float) location.getAirspeed());
+
+        int flags = location.isOnGround() ? FLAG_ON_GROUND : 0;
+        if (lights != null) {
+            flags |= FLAG_LIGHTS;
+            final boolean[] bits = { lights.isStrb(), lights.isLand(), lights.isTaxi(), lights.isBcn(), lights.isNav(),
+                                     lights.isLogo(), lights.isWing(), lights.isRecg(), lights.isCabn() };
+            for (int i = 0; i < bits.length; i++) {
+                flags |= bits [i] ? (1 << i) : 0;
+            }
+        }
+        if (controls != null) {
+            flags |= FLAG_CONTROLS;
+        }
+        buf.putShort((short) flags);
+
+        if (controls == null) {
+            buf.put((byte) 0).put((byte) 0);
+            for (int i = 0; i < 10; i++) {
+                buf.putFloat(0.0f);
+            }
+        }
+        else {
+            buf.put((byte) controls.getGrs()).put((byte) 0);
+            buf.putFloat((float) controls.getRdr()).putFloat((float) controls.getEle()).putFloat((float) controls.getAil())
+               .putFloat((float) controls.getRdrtr()).putFloat((float) controls.getEletr()).putFloat((float) controls.getAiltr())
+               .putFloat((float) controls.getSpl()).putFloat((float) controls.getFlp())
+               .putFloat((float) controls.getBrk()).putFloat((float) controls.getDr1());
+        }
+
+        final ByteBuffer signed = buf.duplicate();
+        signed.position(start).limit(start + TAG_OFFSET);
+        mac.update(signed);
+        buf.put(mac.doFinal(), 0, TAG_SIZE);
+    }
+
+    /**
+     * Check the size and magic of a report, starting at position 0 of the buffer.
+     */
+    public static boolean isReport(ByteBuffer buf) {
+        return (buf.limit() == SIZE) && (buf.getInt(0) == MAGIC);
+    }
+
+    public static long getChannel(ByteBuffer buf) {
+        return buf.getLong(4);
+    }
+
+    public static int getSequence(ByteBuffer buf) {
+        return buf.getInt(12);
+    }
+
+    /**
+     * Check the tag of a report, starting at position 0 of the buffer.
+     * @param buf The buffer with the report.
+     * @param mac The sending client's Mac.
+     * @return true if the tag matches.
+     */
+    public static boolean verify(ByteBuffer buf, Mac mac) {
+        final ByteBuffer signed = buf.duplicate();
+        signed.position(0).limit(TAG_OFFSET);
+        mac.update(signed);
+        final byte[] expected = mac.doFinal();
+
+        int diff = 0;
+        for (int i = 0; i < TAG_SIZE; i++) {
+            diff |= expected [i] ^ buf.get(TAG_OFFSET + i);
+        }
+        if (diff != 0) {
+            log.fine("verify(): Bad tag");
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Read a report, starting at position 0 of the buffer.
+     * @param buf The buffer with the report.
+     * @return An update with the location, and the lights and controls if the report has them.
+     */
+    public static AircraftInfo decode(ByteBuffer buf) {
+        final AircraftInfo result = new AircraftInfo();
+
+        final LocationInfo location = new LocationInfo();
+        location.setLatitude(buf.getDouble(16));
+        location.setLongitude(buf.getDouble(24));
+        location.setAltitude(buf.getDouble(32));
+        location.setPitch(buf.getFloat(40));
+        location.setBank(buf.getFloat(44));
+        location.setHeading(buf.getFloat(48));
+        location.setAirspeed(buf.getFloat(52));
+
+        final int flags = buf.getShort(56);
+        location.setOnGround((flags & FLAG_ON_GROUND) != 0);
+        result.setLocation(location);
+
+        if ((flags & FLAG_LIGHTS) != 0) {
+            final LightInfo lights = new LightInfo();
+            lights.setStrb((flags & 0x001) != 0);
+            lights.setLand((flags & 0x002) != 0);
+            lights.setTaxi((flags & 0x004) != 0);
+            lights.setBcn((flags & 0x008) != 0);
+            lights.setNav((flags & 0x010) != 0);
+            lights.setLogo((flags & 0x020) != 0);
+            lights.setWing((flags & 0x040) != 0);
+            lights.setRecg((flags & 0x080) != 0);
+            lights.setCabn((flags & 0x100) != 0);
+            result.setLights(lights);
+        }
+        if ((flags & FLAG_CONTROLS) != 0) {
+            final ControlsInfo controls = new ControlsInfo();
+            controls.setGrs(buf.get(58));
+            controls.setRdr(buf.getFloat(60));
+            controls.setEle(buf.getFloat(64));
+            controls.setAil(buf.getFloat(68));
+            controls.setRdrtr(buf.getFloat(72));
+            controls.setEletr(buf.getFloat(76));
+            controls.setAiltr(buf.getFloat(80));
+            controls.setSpl(buf.getFloat(84));
+            controls.setFlp(buf.getFloat(88));
+            controls.setBrk(buf.getFloat(92));
+            controls.setDr1(buf.getFloat(96));
+            result.setControls(controls);
+        }
+        return result;
+    }
+}
@@ -18,7 +18,10 @@ package nl.rakis.fs.info;
 
 import javax.json.Json;
 import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -36,6 +39,7 @@ public class SessionInfo
     private String name;
     private String description;
     private boolean openSession;
+    private long version;
 
     private List<String> members = new ArrayList<>();
     private List<String> aircraft = new ArrayList<>();
@@ -76,11 +80,27 @@ public class SessionInfo
         return newSession;
     }
 
+    /**
+     * Make a copy, including the version and the member and aircraft lists.
+     * @return A new SessionInfo with the same values.
+     */
+    public SessionInfo copy() {
+        SessionInfo result = cleanClone();
+
+        result.setHref(getHref());
+        result.setOpenSession(isOpenSession());
+        result.setMembers(new ArrayList<>(getMembers()));
+        result.setAircraft(new ArrayList<>(getAircraft()));
+
+        return result;
+    }
+
     public SessionInfo cleanClone() {
         SessionInfo newSession = new SessionInfo();
 
         newSession.setName(getName());
         newSession.setDescription(getDescription());
+        newSession.setVersion(getVersion());
 
         return newSession;
     }
@@ -107,12 +127,28 @@ public class SessionInfo
 
     @Override
     public JsonObject toJsonObject() {
-        return Json.createObjectBuilder()
+        JsonObjectBuilder bld = Json.createObjectBuilder()
                 .add(JsonFields.FIELD_TYPE, getType())
                 .add(JsonFields.FIELD_NAME, getName())
                 .add(JsonFields.FIELD_DESCRIPTION, (description == null) ? "" : description)
-                .add(JsonFields.FIELD_AIRCRAFT, toArray(aircraft))
-                .build();
+                .add(JsonFields.FIELD_AIRCRAFT, toArray(aircraft));
+
+        if (getVersion() > 0) {
+            bld.add(JsonFields.FIELD_VERSION, getVersion());
+        }
+        return bld.build();
+    }
+
+    @Override
+    protected void writeFields(JsonGenerator gen) {
+        gen.write(JsonFields.FIELD_TYPE, getType());
+        writeIf(gen, JsonFields.FIELD_NAME, getName());
+        gen.write(JsonFields.FIELD_DESCRIPTION, (description == null) ? "" : description);
+        writeArray(gen, JsonFields.FIELD_AIRCRAFT, aircraft);
+
+        if (getVersion() > 0) {
+            gen.write(JsonFields.FIELD_VERSION, getVersion());
+        }
     }
 
     @Override
@@ -130,6 +166,38 @@ public class SessionInfo
         }
     }
 
+    @Override
+    public void readFrom(JsonParser parser) {
+        readObject(parser, (String field, JsonParser.Event event) -> {
+            switch (field) {
+                case JsonFields.FIELD_NAME:
+                    setName(readString(parser, event, getName()));
+                    return true;
+                case JsonFields.FIELD_DESCRIPTION:
+                    setDescription(readString(parser, event, getDescription()));
+                    return true;
+                case JsonFields.FIELD_VERSION:
+                    setVersion(readLong(parser, event, getVersion()));
+                    return true;
+                default:
+                    return false;
+            }
+        });
+    }
+
+    /**
+     * Update fields that are set in the given record, leave the others alone.
+     * @param update A (partial) record, for example read with {@link #readFrom(JsonParser)}
+     */
+    public void updateFrom(SessionInfo update) {
+        if (update.getName() != null) {
+            setName(update.getName());
+        }
+        if (update.getDescription() != null) {
+            setDescription(update.getDescription());
+        }
+    }
+
     public static SessionInfo fromJsonObject(JsonObject obj) {
         SessionInfo result = null;
 
@@ -191,4 +259,15 @@ public class SessionInfo
     public void setMembers(List<String> members) {
         this.members = members;
     }
+
+    /**
+     * @return The version of this record, which the server increments on every change, or 0 if unversioned.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
 }
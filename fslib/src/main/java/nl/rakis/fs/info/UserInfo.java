@@ -20,6 +20,8 @@ import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
 import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Map;
@@ -119,6 +121,16 @@ public class UserInfo
         return bld.build();
     }
 
+    @Override
+    protected void writeFields(JsonGenerator gen) {
+        gen.write(JsonFields.FIELD_TYPE, getType());
+        writeIf(gen, JsonFields.FIELD_USERNAME, getUsername());
+        writeIf(gen, JsonFields.FIELD_PASSWORD, getPassword());
+
+        writeIf(gen, JsonFields.FIELD_CALLSIGN, getCallsign());
+        writeIf(gen, JsonFields.FIELD_SESSION, getSession());
+    }
+
     @Override
     public String toString() {
         return toJsonObject().toString();
@@ -134,6 +146,28 @@ public class UserInfo
         }
     }
 
+    @Override
+    public void readFrom(JsonParser parser) {
+        readObject(parser, (String field, JsonParser.Event event) -> {
+            switch (field) {
+                case JsonFields.FIELD_USERNAME:
+                    setUsername(readString(parser, event, getUsername()));
+                    return true;
+                case JsonFields.FIELD_PASSWORD:
+                    setPassword(readString(parser, event, getPassword()));
+                    return true;
+                case JsonFields.FIELD_SESSION:
+                    setSession(readString(parser, event, getSession()));
+                    return true;
+                case JsonFields.FIELD_CALLSIGN:
+                    setCallsign(readString(parser, event, getCallsign()));
+                    return true;
+                default:
+                    return false;
+            }
+        });
+    }
+
     public static UserInfo fromJsonObject(JsonObject obj) {
         UserInfo result = null;
 
@@ -19,6 +19,8 @@ package nl.rakis.fs.info;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
 import java.io.StringReader;
 import java.util.HashMap;
 import java.util.Map;
@@ -105,6 +107,16 @@ public class UserSessionInfo
                 .build();
     }
 
+    @Override
+    protected void writeFields(JsonGenerator gen) {
+        gen.write(JsonFields.FIELD_TYPE, getType());
+        writeIf(gen, JsonFields.FIELD_USERNAME, getUsername());
+        writeIf(gen, JsonFields.FIELD_SESSION, getSession());
+        writeIf(gen, JsonFields.FIELD_CALLSIGN, getCallsign());
+        gen.write(JsonFields.FIELD_SESSIONID, getSessionId().toString());
+        gen.write(JsonFields.FIELD_LAST_ACCESS, Long.toString(lastAccess));
+    }
+
     @Override
     public void updateFromJsonObject(JsonObject obj) {
         if (!obj.isNull(JsonFields.FIELD_SESSIONID)) {
@@ -124,6 +136,34 @@ public class UserSessionInfo
         }
     }
 
+    @Override
+    public void readFrom(JsonParser parser) {
+        readObject(parser, (String field, JsonParser.Event event) -> {
+            switch (field) {
+                case JsonFields.FIELD_SESSIONID:
+                    final String id = readString(parser, event, null);
+                    if (id != null) {
+                        setSessionId(UUID.fromString(id));
+                    }
+                    return true;
+                case JsonFields.FIELD_USERNAME:
+                    setUsername(readString(parser, event, getUsername()));
+                    return true;
+                case JsonFields.FIELD_SESSION:
+                    setSession(readString(parser, event, getSession()));
+                    return true;
+                case JsonFields.FIELD_CALLSIGN:
+                    setCallsign(readString(parser, event, getCallsign()));
+                    return true;
+                case JsonFields.FIELD_LAST_ACCESS:
+                    setLastAccess(readLong(parser, event, getLastAccess()));
+                    return true;
+                default:
+                    return false;
+            }
+        });
+    }
+
     public static UserSessionInfo fromJsonObject(JsonObject obj) {
         UserSessionInfo result = null;
 
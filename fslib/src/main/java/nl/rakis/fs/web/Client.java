@@ -20,22 +20,120 @@ import nl.rakis.fs.config.Config;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.json.Json;
+import javax.json.JsonException;
 import javax.json.JsonObject;
-import javax.ws.rs.client.ClientBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
-
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-lived, thread-safe client for JSON resources below a base URL.
+ *
+ * Requests go through HttpURLConnection, which keeps connections alive and shares them through the JVM-wide
+ * keep-alive cache, so callers reuse warm connections as long as every response is read completely. The number of
+ * idle connections kept per host is set with the "http.maxConnections" system property (default 5).
+ *
+ * Asynchronous requests run on a small pool of this client's own, which holds no threads while the client is idle.
+ * Failures are reported as in the JAX-RS client: a WebApplicationException for an error status, and a
+ * ProcessingException if the request or the JSON failed.
+ */
 public class Client {
 
     private static final Logger log = LogManager.getLogger(Client.class);
 
-    private String baseUrl;
+    public static final String CFG_CONNECT_TIMEOUT = "nl.rakis.fs.client.connect.timeout";
+    public static final String DEF_CONNECT_TIMEOUT = "5000";
+    public static final String CFG_READ_TIMEOUT = "nl.rakis.fs.client.read.timeout";
+    public static final String DEF_READ_TIMEOUT = "10000";
+    public static final String CFG_THREADS = "nl.rakis.fs.client.threads";
+    public static final String DEF_THREADS = "4";
+
+    private static final int QUEUE_SIZE = 256;
+    private static final AtomicInteger threadNr = new AtomicInteger();
+    private static final JsonReaderFactory readerFactory = Json.createReaderFactory(null);
+
+    private final String baseUrl;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final ThreadPoolExecutor executor;
 
     public Client(String baseUrl) {
-        this.baseUrl = baseUrl;
+        this(baseUrl, Integer.parseInt(DEF_CONNECT_TIMEOUT), Integer.parseInt(DEF_READ_TIMEOUT), Integer.parseInt(DEF_THREADS));
     }
 
     public Client(Config config, String key, String dfl) {
-        this.baseUrl = config.get(key, dfl);
+        this(config.get(key, dfl),
+             getInt(config, CFG_CONNECT_TIMEOUT, DEF_CONNECT_TIMEOUT),
+             getInt(config, CFG_READ_TIMEOUT, DEF_READ_TIMEOUT),
+             getInt(config, CFG_THREADS, DEF_THREADS));
+    }
+
+    /**
+     * @param baseUrl The URL all requests are relative to.
+     * @param connectTimeoutMillis Milliseconds to wait for a connection, 0 to wait forever.
+     * @param readTimeoutMillis Milliseconds to wait for data, 0 to wait forever.
+     * @param threads The maximum number of asynchronous requests in progress at once.
+     */
+    public Client(String baseUrl, int connectTimeoutMillis, int readTimeoutMillis, int threads) {
+        this.baseUrl = baseUrl;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+            Thread t = new Thread(r, "Client-" + threadNr.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static int getInt(Config config, String key, String dfl) {
+        try {
+            return Integer.parseInt(config.get(key, dfl).trim());
+        }
+        catch (NumberFormatException e) {
+            log.error("getInt(): Bad value for \"" + key + "\", using " + dfl);
+            return Integer.parseInt(dfl);
+        }
+    }
+
+    private String buildUrl(String... args) {
+        StringBuilder bld = new StringBuilder(baseUrl);
+
+        for (String arg: args) {
+            bld.append('/').append(arg);
+        }
+        return bld.toString();
+    }
+
+    /**
+     * Read what's left of a response, so its connection can go back to the keep-alive cache.
+     */
+    private static void drain(InputStream in) throws IOException {
+        if (in != null) {
+            try (InputStream is = in) {
+                final byte[] buf = new byte [4096];
+                while (is.read(buf) >= 0) {
+                    // Discard
+                }
+            }
+        }
     }
 
     private JsonObject getJsonObjectSynch(String url) {
@@ -43,23 +141,47 @@ public class Client {
             log.debug("getJsonObjectSynch(\"" + url + "\")");
         }
 
-        javax.ws.rs.client.Client client = null;
-
         try {
-            client = ClientBuilder.newClient();
-
-            return client.target(url).request(MediaType.APPLICATION_JSON).get(JsonObject.class);
+            final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(connectTimeoutMillis);
+            conn.setReadTimeout(readTimeoutMillis);
+            conn.setRequestProperty(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON);
+
+            final int status = conn.getResponseCode();
+            if ((status < 200) || (status >= 300)) {
+                drain(conn.getErrorStream());
+                throw new WebApplicationException("GET \"" + url + "\" returned " + status, status);
+            }
+            try (InputStream in = conn.getInputStream();
+                 JsonReader reader = readerFactory.createReader(new InputStreamReader(in, StandardCharsets.UTF_8)))
+            {
+                final JsonObject result = reader.readObject();
+                drain(in);
+                return result;
+            }
+        }
+        catch (IOException | JsonException e) {
+            throw new ProcessingException("GET \"" + url + "\" failed", e);
         }
         finally {
-            if (client != null) {
-                client.close();
-            }
             if (log.isDebugEnabled()) {
                 log.debug("getJsonObjectSynch(): Done");
             }
         }
     }
 
+    private CompletableFuture<JsonObject> getJsonObjectAsync(String url) {
+        try {
+            return CompletableFuture.supplyAsync(() -> getJsonObjectSynch(url), executor);
+        }
+        catch (RejectedExecutionException e) {
+            log.warn("getJsonObjectAsync(): Too many requests in progress, refusing \"" + url + "\"");
+            final CompletableFuture<JsonObject> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+        }
+    }
+
     public void getSynch() {
 
     }
@@ -73,12 +195,18 @@ public class Client {
     public JsonObject getSynchasJson(String... args) {
         log.debug("getSynch(...)");
 
-        StringBuilder bld = new StringBuilder(baseUrl);
+        return getJsonObjectSynch(buildUrl(args));
+    }
 
-        for (String arg: args) {
-            bld.append('/').append(arg);
-        }
+    public CompletableFuture<JsonObject> getAsJson() {
+        log.debug("getAsJson()");
+
+        return getJsonObjectAsync(baseUrl);
+    }
+
+    public CompletableFuture<JsonObject> getAsJson(String... args) {
+        log.debug("getAsJson(...)");
 
-        return getJsonObjectSynch(bld.toString());
+        return getJsonObjectAsync(buildUrl(args));
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Bert Laverman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nl.rakis.fs.info;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestBinaryCodec
+{
+
+    private static AircraftInfo newAircraft()
+    {
+        final AircraftInfo result = new AircraftInfo("PH-BLA");
+        result.setUsername("bert");
+        result.setTitle("Cessna Skyhawk 172SP");
+        result.setAtcType("C172");
+        result.setAtcAirline("Rakis");
+        result.setVersion(42);
+
+        final LocationInfo location = new LocationInfo();
+        location.setLatitude(52.3086);
+        location.setLongitude(4.7639);
+        location.setAltitude(1500.5);
+        location.setPitch(-2.5);
+        location.setBank(15.25);
+        location.setHeading(-90.0);
+        location.setAirspeed(110.3);
+        location.setOnGround(false);
+        result.setLocation(location);
+
+        final EngineInfo engines = new EngineInfo();
+        engines.setEng(new int[]{ 1 });
+        engines.setThrt(new int[]{ 85 });
+        result.setEngines(engines);
+
+        final ControlsInfo controls = new ControlsInfo();
+        controls.setEle(0.25);
+        controls.setFlp(0.5);
+        controls.setGrs(1);
+        result.setControls(controls);
+
+        final LightInfo lights = new LightInfo();
+        lights.setBcn(true);
+        lights.setNav(true);
+        lights.setCabn(true);
+        result.setLights(lights);
+
+        return result;
+    }
+
+    private static byte[] write(AircraftInfo aircraft)
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryCodec.write(new DataOutputStream(bytes), aircraft);
+        return bytes.toByteArray();
+    }
+
+    private static AircraftInfo read(byte[] bytes)
+        throws IOException
+    {
+        return BinaryCodec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void testRoundTrip()
+        throws IOException
+    {
+        final AircraftInfo aircraft = newAircraft();
+        final AircraftInfo result = read(write(aircraft));
+
+        Assert.assertEquals("PH-BLA", result.getAtcId());
+        Assert.assertEquals("bert", result.getUsername());
+        Assert.assertEquals("Cessna Skyhawk 172SP", result.getTitle());
+        Assert.assertEquals("C172", result.getAtcType());
+        Assert.assertNull(result.getAtcModel());
+        Assert.assertEquals("Rakis", result.getAtcAirline());
+        Assert.assertNull(result.getAtcFlightNumber());
+        Assert.assertEquals("The record version must survive", 42, result.getVersion());
+
+        final LocationInfo location = result.getLocation();
+        Assert.assertEquals(52.3086, location.getLatitude(), 1e-7);
+        Assert.assertEquals(4.7639, location.getLongitude(), 1e-7);
+        Assert.assertEquals(1500.5, location.getAltitude(), 0.1);
+        Assert.assertEquals(-2.5, location.getPitch(), 0.01);
+        Assert.assertEquals(15.25, location.getBank(), 0.01);
+        Assert.assertEquals(270.0, location.getHeading(), 0.01);
+        Assert.assertEquals(110.3, location.getAirspeed(), 0.1);
+        Assert.assertFalse(location.isOnGround());
+
+        Assert.assertEquals(aircraft.getEngines(), result.getEngines());
+        Assert.assertEquals(aircraft.getControls(), result.getControls());
+        Assert.assertEquals(aircraft.getLights(), result.getLights());
+    }
+
+    @Test
+    public void testMissingParts()
+        throws IOException
+    {
+        final AircraftInfo aircraft = new AircraftInfo("PH-BLA");
+        final EngineInfo engines = new EngineInfo();
+        engines.setEng(new int[0]);
+        engines.setThrt(null);
+        aircraft.setEngines(engines);
+
+        final AircraftInfo result = read(write(aircraft));
+        Assert.assertEquals(0, result.getVersion());
+        Assert.assertNull(result.getLocation());
+        Assert.assertNull(result.getControls());
+        Assert.assertNull(result.getLights());
+        Assert.assertNotNull("An empty engine array must stay empty", result.getEngines().getEng());
+        Assert.assertEquals(0, result.getEngines().getEng().length);
+        Assert.assertNull("A missing engine array must stay missing", result.getEngines().getThrt());
+    }
+
+    @Test
+    public void testPartialLocation()
+        throws IOException
+    {
+        final AircraftInfo aircraft = new AircraftInfo("PH-BLA");
+        final LocationInfo location = new LocationInfo();
+        location.setAltitude(1500.0);
+        location.setOnGround(true);
+        aircraft.setLocation(location);
+
+        final LocationInfo result = read(write(aircraft)).getLocation();
+        Assert.assertFalse("An unknown position must stay unknown", result.hasPosition());
+        Assert.assertFalse(LocationInfo.isSet(result.getHeading()));
+        Assert.assertFalse(LocationInfo.isSet(result.getAirspeed()));
+        Assert.assertEquals(1500.0, result.getAltitude(), 0.1);
+        Assert.assertTrue(result.isOnGround());
+    }
+
+    @Test
+    public void testList()
+        throws IOException
+    {
+        final AircraftInfo other = new AircraftInfo("PH-RKS");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryCodec.writeList(new DataOutputStream(bytes), Arrays.asList(newAircraft(), other));
+
+        final List<AircraftInfo> result = BinaryCodec.readList(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals("PH-BLA", result.get(0).getAtcId());
+        Assert.assertEquals(42, result.get(0).getVersion());
+        Assert.assertEquals("PH-RKS", result.get(1).getAtcId());
+    }
+
+    @Test
+    public void testVersion1()
+        throws IOException
+    {
+        // Version 1, one aircraft with only engines, and both engine arrays empty
+        final byte[] bytes = { 1, (byte) BinaryCodec.KIND_AIRCRAFT, 0x01, 0x00, 0, 0 };
+
+        final AircraftInfo result = read(bytes);
+        Assert.assertEquals(0, result.getVersion());
+        Assert.assertEquals(0, result.getEngines().getEng().length);
+        Assert.assertEquals(0, result.getEngines().getThrt().length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownVersion()
+        throws IOException
+    {
+        final byte[] bytes = write(newAircraft());
+        bytes [0] = (byte) (BinaryCodec.VERSION + 1);
+        read(bytes);
+    }
+}